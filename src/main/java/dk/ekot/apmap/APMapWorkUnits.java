@@ -0,0 +1,152 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.apmap;
+
+import dk.ekot.misc.WorkQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Splits the exhaustive {@link MapWalker#walk()} into work units for a {@link WorkQueue}.
+ *
+ * A work unit is the first markers in row order, as placed by the exhaustive walk, together with the position
+ * to continue from. Workers recreate the board with {@link Mapper#fromJSON(String)} and continue with
+ * {@link MapWalker#walkFrom(int, int, int, boolean)}, so that the units partitions the exhaustive search.
+ *
+ * Payload format: {@code x,y|json} where {@code (x, y)} is the quadratic position to continue from.
+ */
+public class APMapWorkUnits {
+    private static final Logger log = LoggerFactory.getLogger(APMapWorkUnits.class);
+
+    /**
+     * Creates all prefixes with the given number of markers, following the order of {@link MapWalker#walk()}.
+     * Branches that cannot hold the requested number of markers results in shorter prefixes.
+     * @param edge  the edge of the hexagonal board.
+     * @param depth the number of markers in each prefix.
+     * @return the prefixes as payloads.
+     */
+    public static List<String> createPrefixes(int edge, int depth) {
+        List<String> prefixes = new ArrayList<>();
+        createPrefixes(new Mapper(edge), 0, 0, depth, prefixes);
+        return prefixes;
+    }
+
+    private static void createPrefixes(Mapper board, int x, int y, int remaining, List<String> prefixes) {
+        if (remaining == 0) {
+            prefixes.add(x + "," + y + "|" + board.toJSON());
+            return;
+        }
+        long position;
+        boolean any = false;
+        while ((position = board.nextNeutral(x, y)) != -1) {
+            x = (int) (position >> 32);
+            y = (int) (position & 0xFFFFFFFFL);
+            if (board.getMarkedCount() == 0 && y > 0) { // Same restriction as MapWalker.walk
+                break;
+            }
+            any = true;
+            board.markAndDeltaExpand(x, y, false);
+            createPrefixes(board, x+1, y, remaining-1, prefixes);
+            board.rollback(false);
+            ++x;
+        }
+        if (!any && board.getMarkedCount() > 0) { // Leaf before reaching the depth
+            prefixes.add(x + "," + y + "|" + board.toJSON());
+        }
+    }
+
+    /**
+     * Adds all prefixes with the given number of markers to the queue.
+     * @return the number of added units.
+     */
+    public static int enqueue(WorkQueue queue, int edge, int depth) throws IOException {
+        final List<String> prefixes = createPrefixes(edge, depth);
+        for (int i = 0 ; i < prefixes.size() ; i++) {
+            queue.add(String.format(Locale.ROOT, "apmap_%03d_%08d", edge, i), prefixes.get(i));
+        }
+        log.info("Added {} prefixes of depth {} for edge {} to the work queue", prefixes.size(), depth, edge);
+        return prefixes.size();
+    }
+
+    /**
+     * Creates a processor for {@link WorkQueue#processAll(String, Function, long)}.
+     * @param maxMS the maximum time to spend on a single unit.
+     * @return a processor that returns the result as a JSON line.
+     */
+    public static Function<String, String> getProcessor(int maxMS) {
+        return payload -> process(payload, maxMS);
+    }
+
+    /**
+     * Recreates the board from the payload and walks the remaining positions exhaustively.
+     * @return the result as a single JSON line.
+     */
+    public static String process(String payload, int maxMS) {
+        final int split = payload.indexOf('|');
+        final String[] start = payload.substring(0, split).split(",");
+        final Mapper board = Mapper.fromJSON(payload.substring(split+1));
+        final MapWalker walker = new MapWalker(board);
+        final long startTime = System.currentTimeMillis();
+        final long fulls = walker.walkFrom(Integer.parseInt(start[0]), Integer.parseInt(start[1]), maxMS, false);
+        final Mapper best = walker.getBestBoard();
+        return String.format(Locale.ROOT, "{\"edge\":%d,\"markers\":%d,\"fulls\":%d,\"exhausted\":%b,\"best\":\"%s\"}",
+                             board.edge, best.getMarkedCount(), fulls,
+                             System.currentTimeMillis()-startTime < maxMS, best.toJSON());
+    }
+
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println("APMapWorkUnits enqueue <queuefolder> <edge> <depth>");
+        System.out.println("APMapWorkUnits work <queuefolder> <workerID> [maxSecondsPerUnit]");
+        System.out.println("APMapWorkUnits requeue <queuefolder> <staleSeconds>");
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int minArgs = args.length == 0 ? Integer.MAX_VALUE :
+                "enqueue".equals(args[0]) ? 4 :
+                "work".equals(args[0]) || "requeue".equals(args[0]) ? 3 :
+                Integer.MAX_VALUE;
+        if (args.length < minArgs) {
+            usage();
+            return;
+        }
+        final Path root = Paths.get(args[1]);
+        final WorkQueue queue = new WorkQueue(root);
+        switch (args[0]) {
+            case "enqueue": {
+                enqueue(queue, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                break;
+            }
+            case "work": {
+                int maxMS = args.length > 3 ? Integer.parseInt(args[3])*1000 : 60*60*1000;
+                int processed = queue.processAll(args[2], getProcessor(maxMS), 10000);
+                System.out.println("Processed " + processed + " units");
+                break;
+            }
+            case "requeue": {
+                System.out.println("Requeued " + queue.requeueStale(Long.parseLong(args[2])*1000) + " units");
+                break;
+            }
+        }
+    }
+}
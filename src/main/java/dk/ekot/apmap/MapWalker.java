@@ -338,6 +338,18 @@ public class MapWalker {
         walk(-1, x, y, fulls, System.nanoTime()+(maxMS*1000000L), showBest);
     }
 
+    /**
+     * Perform exhaustive walk of the subtree where the markers already on the board are fixed and only positions
+     * from {@code (x, y)} and forward (in row order) are considered for new markers.
+     * Used for processing prefixes, see {@link APMapWorkUnits}.
+     * @return the number of full walks (leaves) visited.
+     */
+    public long walkFrom(int x, int y, int maxMS, boolean showBest) {
+        AtomicLong fulls = new AtomicLong(0);
+        walk(board.getMarkedCount()-1, x, y, fulls, System.nanoTime()+(maxMS*1000000L), showBest);
+        return fulls.get();
+    }
+
     private void walk(int depth, int x, int y, AtomicLong fulls, long maxNanotime, boolean showBest) {
 //            System.out.println("ppp " + position + " edge " + ((board.edge>>2)+1));
         if (System.nanoTime() > maxNanotime || (depth == 0 && y > 0)) { // TODO: Implement idea 3
@@ -0,0 +1,176 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples board change events from the thread changing the board, so that slow observers (visualisation,
+ * logging) never slows the solver.
+ *
+ * Events are written to a lock-free single-producer ring buffer. The producer never waits: If the consumer lags
+ * more than the capacity of the ring, old events are overwritten and the consumer falls back to reporting all
+ * fields as changed. A consumer thread drains the ring at most every {@code intervalMS} and coalesces multiple
+ * events for the same field into a single call to the delegate, with the latest label.
+ *
+ * Only one thread may change the board (the single producer). The delegate is called from the consumer thread,
+ * so board state read by the delegate might be slightly ahead of the events.
+ */
+public class AsyncBoardObserver implements EBoard.Observer, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AsyncBoardObserver.class);
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final EBoard board;
+    private final EBoard.Observer delegate;
+    private final int intervalMS;
+
+    // Ring buffer
+    private final int[] positions; // x << 16 | y
+    private final String[] labels;
+    private final int mask;
+    private long produced = 0;                              // Only touched by the producer
+    private final AtomicLong published = new AtomicLong(0); // Producer: lazySet, consumer: get
+    private long consumed = 0;                              // Only touched by the consumer
+
+    // Coalescing, only touched by the consumer
+    private final boolean[][] dirty;
+    private final String[][] dirtyLabels;
+
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private long overruns = 0;
+
+    /**
+     * Creates an observer with {@link #DEFAULT_CAPACITY}, registers it on the board and starts the consumer.
+     */
+    public AsyncBoardObserver(EBoard board, EBoard.Observer delegate, int intervalMS) {
+        this(board, delegate, intervalMS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an observer, registers it on the board and starts the consumer.
+     * @param board      the board to observe.
+     * @param delegate   receives the coalesced events on the consumer thread.
+     * @param intervalMS the minimum time between draining the ring buffer.
+     * @param capacity   the number of events in the ring buffer. Will be rounded up to nearest power of 2.
+     */
+    public AsyncBoardObserver(EBoard board, EBoard.Observer delegate, int intervalMS, int capacity) {
+        this.board = board;
+        this.delegate = delegate;
+        this.intervalMS = intervalMS;
+        final int size = Integer.highestOneBit(Math.max(2, capacity-1)) << 1;
+        positions = new int[size];
+        labels = new String[size];
+        mask = size-1;
+        dirty = new boolean[board.getWidth()][board.getHeight()];
+        dirtyLabels = new String[board.getWidth()][board.getHeight()];
+
+        consumer = new Thread(this::consume, "AsyncBoardObserver");
+        consumer.setDaemon(true);
+        consumer.start();
+        board.registerObserver(this);
+    }
+
+    /**
+     * Called by the board when a field changes. Never blocks.
+     */
+    @Override
+    public void boardChanged(int x, int y, String label) {
+        final int slot = (int) (produced & mask);
+        positions[slot] = x << 16 | y;
+        labels[slot] = label;
+        published.lazySet(++produced);
+    }
+
+    private void consume() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMS);
+            } catch (InterruptedException e) {
+                log.debug("Interrupted while sleeping");
+            }
+            drain();
+        }
+        drain();
+    }
+
+    /**
+     * Reads all available events, coalesces them and delivers them to the delegate.
+     */
+    private void drain() {
+        final long available = published.get();
+        if (available == consumed) {
+            return;
+        }
+        boolean overrun = available - consumed > positions.length;
+        if (!overrun) {
+            for (long seq = consumed ; seq < available ; seq++) {
+                final int slot = (int) (seq & mask);
+                final int position = positions[slot];
+                final String label = labels[slot];
+                dirty[position >>> 16][position & 0xFFFF] = true;
+                dirtyLabels[position >>> 16][position & 0xFFFF] = label;
+            }
+            // The producer might have lapped us while we were reading
+            overrun = published.get() - consumed > positions.length;
+        }
+        consumed = available;
+
+        if (overrun) {
+            overruns++;
+            for (int x = 0 ; x < board.getWidth() ; x++) {
+                for (int y = 0 ; y < board.getHeight() ; y++) {
+                    delegate.boardChanged(x, y, dirty[x][y] ? dirtyLabels[x][y] : "");
+                    dirty[x][y] = false;
+                }
+            }
+            return;
+        }
+        for (int x = 0 ; x < board.getWidth() ; x++) {
+            for (int y = 0 ; y < board.getHeight() ; y++) {
+                if (dirty[x][y]) {
+                    delegate.boardChanged(x, y, dirtyLabels[x][y]);
+                    dirty[x][y] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the consumer lagged so much that events were lost and all fields were reported.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Unregisters from the board, delivers pending events and stops the consumer thread.
+     */
+    @Override
+    public void close() {
+        board.unregisterObserver(this);
+        running = false;
+        consumer.interrupt();
+        try {
+            consumer.join(intervalMS*10L+1000);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for consumer thread to stop");
+        }
+    }
+}
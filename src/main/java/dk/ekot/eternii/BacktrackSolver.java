@@ -17,15 +17,24 @@ package dk.ekot.eternii;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Tries to solve the puzzle by trying all fields, all pieces until there are no more pieces (or fields).
  * Backtracking when .
  *
+ * The search is iterative with an explicit stack of candidate moves, one entry for each depth. Boards that has
+ * already been fully explored are recognized by their hash (see {@link SeenBoards}) and skipped.
+ *
+ * The stack can be persisted periodically as a {@link SearchCheckpoint} (see {@link #setCheckpointing(Path, long)})
+ * and the search continued from it with {@link #resume(SearchCheckpoint)}.
+ *
  * Primarily used for testing.
  *
  * Note: Always used WalkerA.
@@ -35,65 +44,259 @@ public class BacktrackSolver implements Runnable {
 
     private final EBoard board;
     private final WalkerA walker;
+    private final SeenBoards seen;
+    private final AtomicBoolean stop;
     private int minFree;
-    private final Set<String> encountered = new HashSet<>();
     private long attempts = 0;
+    private long duplicates = 0;
     private long printDelta = 1000000;
     private long nextPrint = printDelta;
 
+    // The explicit stack. For each depth the candidate moves are stored as (x, y, piece, rotation) quadruples
+    private final int[][] moves;
+    private final int[] moveCounts;
+    private final int[] moveIndex; // Index of the next move to try
+    private int depth = 0;
+    private boolean solved = false;
+    private boolean resumed = false;
+
+    private Path checkpointFile = null;
+    private long checkpointIntervalMS = 0;
+    private long nextCheckpoint = Long.MAX_VALUE;
+
     public BacktrackSolver(EBoard board, Walker walker) {
+        this(board, walker, new AtomicBoolean(false));
+    }
+
+    /**
+     * @param board  the board to solve.
+     * @param walker ignored: {@link WalkerA} is always used.
+     * @param stop   if set to true during search, the search terminates.
+     */
+    public BacktrackSolver(EBoard board, Walker walker, AtomicBoolean stop) {
+        this(board, walker, stop, new SeenBoards());
+    }
+
+    /**
+     * @param board  the board to solve.
+     * @param walker ignored: {@link WalkerA} is always used.
+     * @param stop   if set to true during search, the search terminates.
+     * @param seen   hashes of boards that has already been explored. Can be shared between sequential searches
+     *               on boards derived from the same start board, but not between concurrent searches.
+     */
+    public BacktrackSolver(EBoard board, Walker walker, AtomicBoolean stop, SeenBoards seen) {
         this.board = board;
         this.walker = new WalkerA(board);
+        this.stop = stop;
+        this.seen = seen;
         minFree = board.getFreeCount();
+        moves = new int[board.getFreeCount()+1][];
+        moveCounts = new int[moves.length];
+        moveIndex = new int[moves.length];
     }
 
     @Override
     public void run() {
-        dive("");
+        search();
         log.debug(board.getEdgeTracker().toString());
     }
 
     /**
-     * Iterates all possible fields and pieces, recursively calling for each piece.
+     * Iterates all possible fields and pieces, descending for each successfully placed piece.
      * @return true if the bottom was reached, else false.
      */
-    private boolean dive(String all) {
-        if (board.getFreeCount() == 0) { // Bottom reached
-            return true;
+    public boolean search() {
+        if (!resumed) {
+            if (board.getFreeCount() == 0) {
+                return solved = true;
+            }
+            depth = 0;
+            fillMoves(depth);
         }
-        if (minFree > board.getFreeCount()) {
-            minFree = board.getFreeCount();
-            System.out.println("Free: " + minFree);
+        resumed = false;
+
+        while (!stop.get()) {
+            if ((attempts & 0xFFFF) == 0 && System.currentTimeMillis() >= nextCheckpoint) {
+                writeCheckpoint();
+            }
+            if (moveIndex[depth] == moveCounts[depth]) { // All moves tried at this depth
+                if (depth == 0) {
+                    return false;
+                }
+                --depth;
+                final int[] placed = moves[depth];
+                final int pi = (moveIndex[depth]-1)*4;
+                board.removePiece(placed[pi], placed[pi+1]);
+                continue;
+            }
+
+            final int[] candidates = moves[depth];
+            final int ci = moveIndex[depth]++ * 4;
+            attempts++;
+            if (!board.placePiece(candidates[ci], candidates[ci+1], candidates[ci+2], candidates[ci+3], "")) {
+                continue;
+            }
+            if (board.getFreeCount() == 0) { // Bottom reached
+                ++depth;
+                return solved = true;
+            }
+            if (!seen.add(board.getHash())) { // Already explored
+                duplicates++;
+                board.removePiece(candidates[ci], candidates[ci+1]);
+                continue;
+            }
+            if (minFree > board.getFreeCount()) {
+                minFree = board.getFreeCount();
+                System.out.println("Free: " + minFree);
+            }
+            if (attempts >= nextPrint) {
+                System.out.println("Attempts: " + attempts + ", duplicates: " + duplicates);
+                nextPrint = attempts + printDelta;
+            }
+            fillMoves(++depth);
         }
-        if (attempts >= nextPrint) {
-            System.out.println("Attempts: " + attempts);
-            nextPrint = attempts + printDelta;
+        if (checkpointFile != null) { // Stopped from the outside
+            writeCheckpoint();
         }
-        if (!encountered.add(all)) {
-            System.out.println("Duplicate: " + all);
+        return false;
+    }
+
+    /**
+     * Enables periodic persistence of the search state during {@link #search()}. A checkpoint is also written if
+     * the search is stopped.
+     * @param checkpointFile where to store the checkpoint. Overwritten on each checkpoint.
+     * @param intervalMS     the minimum time between checkpoints.
+     */
+    public void setCheckpointing(Path checkpointFile, long intervalMS) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMS = intervalMS;
+        nextCheckpoint = System.currentTimeMillis() + intervalMS;
+    }
+
+    private void writeCheckpoint() {
+        try {
+            getCheckpoint().write(checkpointFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write checkpoint to '" + checkpointFile + "'", e);
         }
+        log.debug("Wrote checkpoint with depth {} and {} attempts to {}", depth, attempts, checkpointFile);
+        nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMS;
+    }
 
-        List<EBoard.Pair<EBoard.Field, List<EBoard.Piece>>> candidates =
-                walker.getFreePieces().collect(Collectors.toList());
-        for (EBoard.Pair<EBoard.Field, List<EBoard.Piece>> free: candidates) {
-            EBoard.Field field = free.left;
-
-            for (EBoard.Piece piece : free.right) {
-//                log.debug("Placing at ({}, {}) piece={} rot={}",
-//                          field.getX(), field.getY(), piece.piece, piece.rotation);
-                attempts++;
-                if (board.placePiece(field.getX(), field.getY(), piece.piece, piece.rotation, "")) {
-                    if (dive(all + " (" + field.getX() + ", " + field.getY() + ")" + board.getPieces().toDisplayString(piece.piece, piece.rotation))) {
-                        return true;
-                    }
-                    board.removePiece(field.getX(), field.getY());
+    /**
+     * @return the current state of the search.
+     */
+    public SearchCheckpoint getCheckpoint() {
+        return new SearchCheckpoint(board.getWidth(), board.getHeight(), attempts,
+                                    getPlacements(), Arrays.copyOf(moveIndex, depth+1));
+    }
+
+    /**
+     * Restores the explicit stack from the checkpoint by replaying the moves onto the board. The board must be in
+     * the same state as when the checkpointed search was started. Call {@link #search()} to continue the search.
+     * @throws IllegalStateException if the checkpoint does not match the candidate moves for the board.
+     */
+    public void resume(SearchCheckpoint checkpoint) {
+        checkpoint.checkDimensions(board);
+        for (depth = 0 ; depth < checkpoint.getDepth() ; depth++) {
+            fillMoves(depth);
+            final int[] placement = checkpoint.getPlacement(depth);
+            final int next = checkpoint.getNextIndex(depth);
+            final int pi = (next-1)*4;
+            if (next < 1 || next > moveCounts[depth] ||
+                !Arrays.equals(placement, Arrays.copyOfRange(moves[depth], pi, pi+4))) {
+                throw new IllegalStateException(
+                        "The checkpoint move " + Arrays.toString(placement) + " at depth " + depth +
+                        " does not match the candidates for the board");
+            }
+            moveIndex[depth] = next;
+            if (!board.placePiece(placement[0], placement[1], placement[2], placement[3], "")) {
+                throw new IllegalStateException(
+                        "Unable to place checkpoint move " + Arrays.toString(placement) + " at depth " + depth);
+            }
+            seen.add(board.getHash());
+        }
+        fillMoves(depth);
+        if (checkpoint.getNextIndex(depth) > moveCounts[depth]) {
+            throw new IllegalStateException("The checkpoint next index " + checkpoint.getNextIndex(depth) +
+                                            " at depth " + depth + " exceeds the " + moveCounts[depth] + " candidates");
+        }
+        moveIndex[depth] = checkpoint.getNextIndex(depth);
+        attempts = checkpoint.getAttempts();
+        nextPrint = attempts + printDelta;
+        minFree = Math.min(minFree, board.getFreeCount());
+        resumed = true;
+        log.info("Resumed search at depth {} with {} attempts", depth, attempts);
+    }
+
+    /**
+     * Resolves all candidate moves for the current board state and stores them at the given depth in the stack.
+     * The pieces for each field are ordered by piece ID to get a deterministic search order.
+     */
+    private void fillMoves(int depth) {
+        int[] buffer = moves[depth] == null ? new int[64*4] : moves[depth];
+        int count = 0;
+        Iterator<EBoard.Pair<EBoard.Field, List<EBoard.Piece>>> free = walker.getFreePieces().iterator();
+        while (free.hasNext()) {
+            EBoard.Pair<EBoard.Field, List<EBoard.Piece>> candidate = free.next();
+            final int fieldStart = count;
+            for (EBoard.Piece piece : candidate.right) {
+                if ((count+1)*4 > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length*2);
                 }
-//                log.debug("Failed placement, trying next (if any)");
+                buffer[count*4] = candidate.left.getX();
+                buffer[count*4+1] = candidate.left.getY();
+                buffer[count*4+2] = piece.piece;
+                buffer[count*4+3] = piece.rotation;
+                count++;
             }
-//            if (field.getPiece() == -1) {
-//                log.info("Tried all pieces " + free.right + " at " + free.left + " without finding a valid one");
-//            }
+            sortByPiece(buffer, fieldStart, count);
         }
-        return false;
+        moves[depth] = buffer;
+        moveCounts[depth] = count;
+        moveIndex[depth] = 0;
+    }
+
+    /**
+     * Insertion sort of the quadruples from moveStart (inclusive) to moveEnd (exclusive) by piece ID.
+     * The number of pieces for a single field is small, so this is fast enough.
+     */
+    private void sortByPiece(int[] quads, int moveStart, int moveEnd) {
+        for (int i = moveStart+1 ; i < moveEnd ; i++) {
+            final int x = quads[i*4], y = quads[i*4+1], piece = quads[i*4+2], rotation = quads[i*4+3];
+            int j = i-1;
+            while (j >= moveStart && quads[j*4+2] > piece) {
+                System.arraycopy(quads, j*4, quads, (j+1)*4, 4);
+                j--;
+            }
+            quads[(j+1)*4] = x;
+            quads[(j+1)*4+1] = y;
+            quads[(j+1)*4+2] = piece;
+            quads[(j+1)*4+3] = rotation;
+        }
+    }
+
+    /**
+     * @return the moves on the stack as {@code [depth][x, y, piece, rotation]}, in the order they were placed.
+     */
+    public int[][] getPlacements() {
+        int[][] placements = new int[depth][];
+        for (int d = 0 ; d < depth ; d++) {
+            final int pi = (moveIndex[d]-1)*4;
+            placements[d] = Arrays.copyOfRange(moves[d], pi, pi+4);
+        }
+        return placements;
+    }
+
+    public boolean isSolved() {
+        return solved;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
     }
 }
@@ -0,0 +1,328 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Anytime beam search for boards with as many matching edges as possible, which is the scoring used in the
+ * Eternity II contest. Contrary to the other solvers, all fields are filled and non-matching edges are allowed.
+ *
+ * The fields are filled in the same order as {@link RowScanSolver}. For each field, every board in the beam is
+ * expanded with the free pieces giving the most matching edges and the best {@code width} boards are kept.
+ * The boards are compact (rotated pieces and a bitmap of used pieces) so copying is cheap. Expansion and
+ * copying are done in parallel.
+ *
+ * The search is repeated with doubling beam width until {@code maxWidth} or until stopped, so that a good board
+ * is available quickly and improved upon over time. New best full boards can be written to disk as they are found.
+ *
+ * Pieces already on the board when the solver is created are kept fixed. The board itself is not changed.
+ */
+public class BeamSolver implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(BeamSolver.class);
+
+    public static final int DEFAULT_START_WIDTH = 100;
+    public static final int DEFAULT_MAX_WIDTH = 100000;
+    public static final int DEFAULT_BRANCH = 4;
+
+    private final EPieces pieces;
+    private final int width;
+    private final int height;
+    private final int threads;
+    private final AtomicBoolean stop;
+
+    private final int[] order;     // Fields (y*width+x) to fill. Fixed fields are not included
+    private final int[] fixedCells; // Rotated pieces (piece << 2 | rotation) or -1 if no piece
+    private final long[] fixedUsed;
+    private final int fixedScore;
+    private final int[][] fieldCandidates;
+
+    private int startWidth = DEFAULT_START_WIDTH;
+    private int maxWidth = DEFAULT_MAX_WIDTH;
+    private int branch = DEFAULT_BRANCH;
+    private Path output = null;
+
+    private int[] best = null;
+    private int bestScore = -1;
+
+    public BeamSolver(EBoard board, Walker walker) {
+        this(board, Runtime.getRuntime().availableProcessors(), new AtomicBoolean(false));
+    }
+
+    /**
+     * @param board   the board to fill. Pieces already on the board are kept fixed.
+     * @param threads the number of threads to use for expansion.
+     * @param stop    if set to true during search, the search terminates.
+     */
+    public BeamSolver(EBoard board, int threads, AtomicBoolean stop) {
+        this.pieces = board.getPieces();
+        this.width = board.getWidth();
+        this.height = board.getHeight();
+        this.threads = threads;
+        this.stop = stop;
+
+        fixedCells = new int[width*height];
+        fixedUsed = new long[(pieces.getTotal()+63) >>> 6];
+        Arrays.fill(fixedCells, -1);
+        for (int y = 0 ; y < height ; y++) {
+            for (int x = 0 ; x < width ; x++) {
+                if (board.getPiece(x, y) != -1) {
+                    fixedCells[y*width+x] = board.getPiece(x, y) << 2 | board.getRotation(x, y);
+                    fixedUsed[board.getPiece(x, y) >>> 6] |= 1L << board.getPiece(x, y);
+                }
+            }
+        }
+        order = Arrays.stream(RowScanSolver.getBorderFirstOrder(width, height))
+                .filter(field -> fixedCells[field] == -1).toArray();
+        int score = 0;
+        for (int field = 0 ; field < fixedCells.length ; field++) { // East and south to count each edge once
+            if (fixedCells[field] != -1) {
+                score += matchesEast(fixedCells, field) + matchesSouth(fixedCells, field);
+            }
+        }
+        fixedScore = score;
+        fieldCandidates = new int[width*height][];
+        for (int field : order) {
+            fieldCandidates[field] = RowScanSolver.resolveFieldCandidates(pieces, width, height, field);
+        }
+    }
+
+    /**
+     * @param startWidth the beam width for the first pass.
+     * @param maxWidth   the beam width is doubled for each pass until it exceeds maxWidth.
+     * @param branch     the maximum number of expansions from a single board.
+     */
+    public void setWidths(int startWidth, int maxWidth, int branch) {
+        this.startWidth = startWidth;
+        this.maxWidth = maxWidth;
+        this.branch = branch;
+    }
+
+    /**
+     * @param output when a new best board is found, its score and viewer URL is written to this file.
+     */
+    public void setOutput(Path output) {
+        this.output = output;
+    }
+
+    @Override
+    public void run() {
+        final long startTime = System.currentTimeMillis();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (int beamWidth = startWidth ; beamWidth <= maxWidth && !stop.get() ; beamWidth <<= 1) {
+                final int width = beamWidth;
+                pool.submit(() -> search(width)).get();
+                log.info("Beam width {} finished with best score {}/{} after {} ms",
+                         beamWidth, bestScore, getMaxScore(), System.currentTimeMillis()-startTime);
+                if (bestScore == getMaxScore()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for beam search");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception during beam search", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Performs a single beam search pass. Must be called from within a ForkJoinPool to control parallelism.
+     */
+    void search(int beamWidth) {
+        State[] beam = new State[]{new State(fixedCells.clone(), fixedUsed.clone(), fixedScore)};
+        for (int depth = 0 ; depth < order.length ; depth++) {
+            if (stop.get()) {
+                return;
+            }
+            final int field = order[depth];
+            final State[] current = beam;
+            // Children are packed as score << 42 | parent << 10 | rotated so that they sort by score
+            final long[] children = IntStream.range(0, current.length).parallel()
+                    .mapToObj(parent -> expand(current[parent], parent, field))
+                    .flatMapToLong(Arrays::stream)
+                    .toArray();
+            if (children.length == 0) {
+                log.debug("No free pieces fits field {} at depth {}", field, depth);
+                return;
+            }
+            Arrays.sort(children);
+            final int keep = Math.min(beamWidth, children.length);
+            beam = IntStream.range(0, keep).parallel()
+                    .mapToObj(i -> {
+                        final long child = children[children.length-1-i];
+                        final State parent = current[(int) ((child >>> 10) & 0xFFFFFFFFL)];
+                        return parent.with(field, (int) (child & 0x3FF), (int) (child >>> 42));
+                    })
+                    .toArray(State[]::new);
+        }
+        updateBest(beam[0]);
+    }
+
+    /**
+     * @return the best children of the state as packed longs.
+     */
+    private long[] expand(State state, int parent, int field) {
+        final long[] children = new long[branch];
+        int count = 0;
+        for (int rotated: fieldCandidates[field]) {
+            final int piece = rotated >>> 2;
+            if ((state.used[piece >>> 6] & (1L << piece)) != 0) {
+                continue;
+            }
+            final int score = state.score + matchCount(state.cells, field, rotated);
+            final long child = (long) score << 42 | (long) parent << 10 | rotated;
+            // Insertion into the children sorted descending, dropping the lowest
+            if (count == branch && children[count-1] >= child) {
+                continue;
+            }
+            int pos = count < branch ? count++ : count-1;
+            while (pos > 0 && children[pos-1] < child) {
+                children[pos] = children[pos-1];
+                pos--;
+            }
+            children[pos] = child;
+        }
+        return count == branch ? children : Arrays.copyOf(children, count);
+    }
+
+    /**
+     * @return the number of edges of the rotated piece that matches the neighbouring pieces.
+     */
+    private int matchCount(int[] cells, int field, int rotated) {
+        final int x = field % width;
+        final int y = field / width;
+        final int edges = pieces.getPacked(rotated);
+        int matches = 0;
+        if (y > 0 && cells[field-width] != -1 &&
+            EPieces.getSouth(pieces.getPacked(cells[field-width])) == EPieces.getNorth(edges)) {
+            matches++;
+        }
+        if (x < width-1 && cells[field+1] != -1 &&
+            EPieces.getWest(pieces.getPacked(cells[field+1])) == EPieces.getEast(edges)) {
+            matches++;
+        }
+        if (y < height-1 && cells[field+width] != -1 &&
+            EPieces.getNorth(pieces.getPacked(cells[field+width])) == EPieces.getSouth(edges)) {
+            matches++;
+        }
+        if (x > 0 && cells[field-1] != -1 &&
+            EPieces.getEast(pieces.getPacked(cells[field-1])) == EPieces.getWest(edges)) {
+            matches++;
+        }
+        return matches;
+    }
+
+    private int matchesEast(int[] cells, int field) {
+        return field % width < width-1 && cells[field+1] != -1 &&
+               EPieces.getEast(pieces.getPacked(cells[field])) == EPieces.getWest(pieces.getPacked(cells[field+1])) ?
+                1 : 0;
+    }
+
+    private int matchesSouth(int[] cells, int field) {
+        return field / width < height-1 && cells[field+width] != -1 &&
+               EPieces.getSouth(pieces.getPacked(cells[field])) == EPieces.getNorth(pieces.getPacked(cells[field+width])) ?
+                1 : 0;
+    }
+
+    private synchronized void updateBest(State state) {
+        if (state.score <= bestScore) {
+            return;
+        }
+        bestScore = state.score;
+        best = state.cells.clone();
+        System.out.println("Best: " + bestScore + "/" + getMaxScore());
+        if (output != null) {
+            writeBest();
+        }
+    }
+
+    private void writeBest() {
+        final int[][] compound = new int[width][height];
+        for (int field = 0 ; field < best.length ; field++) {
+            final int rotated = best[field];
+            compound[field % width][field / width] = rotated == -1 ? -1 : (rotated & 3) << 16 | rotated >>> 2;
+        }
+        final String content = "score=" + bestScore + "/" + getMaxScore() + "\n" +
+                               EBoard.getDisplayURL(pieces, compound) + "\n";
+        try {
+            final Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write best board to '" + output + "'", e);
+        }
+    }
+
+    /**
+     * @return the number of inner edges on the board, which is the score for a solved board.
+     */
+    public int getMaxScore() {
+        return (width-1)*height + width*(height-1);
+    }
+
+    /**
+     * @return the best full board found as rotated pieces ({@code piece << 2 | rotation}), indexed by
+     *         {@code y*width+x}. null if no full board has been found.
+     */
+    public synchronized int[] getBest() {
+        return best == null ? null : best.clone();
+    }
+
+    /**
+     * @return the number of matching inner edges for {@link #getBest()} or -1 if no full board has been found.
+     */
+    public synchronized int getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * Compact board: Rotated pieces, bitmap of used pieces and the number of matching edges.
+     */
+    private static final class State {
+        final int[] cells;
+        final long[] used;
+        final int score;
+
+        State(int[] cells, long[] used, int score) {
+            this.cells = cells;
+            this.used = used;
+            this.score = score;
+        }
+
+        State with(int field, int rotated, int score) {
+            final int[] childCells = cells.clone();
+            final long[] childUsed = used.clone();
+            childCells[field] = rotated;
+            childUsed[rotated >>> 8] |= 1L << (rotated >>> 2);
+            return new State(childCells, childUsed, score);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless alternative to {@link BoardVisualiser} for monitoring long solver runs on servers without X11.
+ *
+ * The exporter observes the board and takes a snapshot whenever the number of filled fields exceeds the best seen
+ * so far, so a best board is recorded even if the solver backtracks from it immediately. A background thread
+ * checks the recorded best at a fixed interval. When the number of filled fields is better than the previous
+ * export, the board is exported as
+ * <ul>
+ *   <li>{@code best.png}: The board rendered from the piece images, if available (see {@link EPieces#hasImages()})</li>
+ *   <li>{@code best.url}: A link to the bucas.name viewer (see {@link EBoard#getDisplayURL()})</li>
+ *   <li>{@code progress.jsonl}: One JSON line per new best, rolled over when it exceeds a given size</li>
+ * </ul>
+ * The solver thread only pays for counting filled fields on each change and for copying the board when a new best
+ * is reached. Rendering and writing happens on the background thread. The filled count is calculated from the
+ * snapshot itself, so the exported files are always consistent with each other.
+ */
+public class BoardExporter implements EBoard.Observer, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(BoardExporter.class);
+
+    public static final int DEFAULT_INTERVAL_MS = 10_000;
+    public static final long DEFAULT_MAX_LOG_BYTES = 10*1024*1024;
+    public static final int DEFAULT_LOG_BACKUPS = 3;
+
+    public static final String PNG = "best.png";
+    public static final String URL = "best.url";
+    public static final String PROGRESS = "progress.jsonl";
+
+    private final EBoard board;
+    private final EPieces pieces;
+    private final Path outputDir;
+    private final long maxLogBytes;
+    private final int logBackups;
+    private final ScheduledExecutorService executor;
+
+    private int best = 0;
+    private int exports = 0;
+
+    // Recorded by the thread changing the board
+    private int bestSeen = 0;
+    private volatile int[][] bestSnapshot = null;
+
+    public BoardExporter(EBoard board, Path outputDir) throws IOException {
+        this(board, outputDir, DEFAULT_INTERVAL_MS, DEFAULT_MAX_LOG_BYTES, DEFAULT_LOG_BACKUPS);
+    }
+
+    /**
+     * Creates an exporter and starts the background thread.
+     * @param board       the board to monitor.
+     * @param outputDir   where to store the exported files. Will be created if it does not exist.
+     * @param intervalMS  the interval between checking for a better board. If &lt;= 0, the background thread is not
+     *                    started and {@link #exportIfBetter()} must be called explicitly.
+     * @param maxLogBytes when {@link #PROGRESS} exceeds this size, it is rolled over.
+     * @param logBackups  the number of rolled over progress logs to keep.
+     */
+    public BoardExporter(EBoard board, Path outputDir, int intervalMS, long maxLogBytes, int logBackups)
+            throws IOException {
+        this.board = board;
+        this.pieces = board.getPieces();
+        this.outputDir = outputDir;
+        this.maxLogBytes = maxLogBytes;
+        this.logBackups = logBackups;
+        Files.createDirectories(outputDir);
+        board.registerObserver(this);
+        if (intervalMS <= 0) {
+            executor = null;
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "BoardExporter");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                exportIfBetter();
+            } catch (Exception e) {
+                log.warn("Unable to export board to " + outputDir, e);
+            }
+        }, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+        log.info("Exporting best boards to {} with an interval of {} ms", outputDir, intervalMS);
+    }
+
+    /**
+     * Called on the thread changing the board. Records a snapshot if the board is the best seen so far.
+     */
+    @Override
+    public void boardChanged(int x, int y, String label) {
+        final int filled = board.getFilledCount();
+        if (filled > bestSeen) {
+            bestSeen = filled;
+            bestSnapshot = board.getSnapshot();
+        }
+    }
+
+    /**
+     * Export the best recorded board, or the current board if it is better, if it has more filled fields than the
+     * previous export.
+     * @return true if the board was exported.
+     * @throws IOException if the board could not be exported.
+     */
+    public synchronized boolean exportIfBetter() throws IOException {
+        int[][] snapshot = board.getSnapshot();
+        int filled = countFilled(snapshot);
+        final int[][] recorded = bestSnapshot;
+        if (recorded != null) {
+            final int recordedFilled = countFilled(recorded);
+            if (recordedFilled > filled) {
+                snapshot = recorded;
+                filled = recordedFilled;
+            }
+        }
+        if (filled <= best) {
+            return false;
+        }
+        best = filled;
+        export(snapshot, filled);
+        return true;
+    }
+
+    private void export(int[][] snapshot, int filled) throws IOException {
+        final String url = EBoard.getDisplayURL(pieces, snapshot);
+        if (pieces.hasImages()) {
+            final BufferedImage image = render(snapshot);
+            final Path tmp = outputDir.resolve(PNG + ".tmp");
+            ImageIO.write(image, "png", tmp.toFile());
+            Files.move(tmp, outputDir.resolve(PNG), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        final Path tmp = outputDir.resolve(URL + ".tmp");
+        Files.write(tmp, (url + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, outputDir.resolve(URL), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appendProgress(toJSON(snapshot, filled, url));
+        exports++;
+        log.debug("Exported board with {} filled fields to {}", filled, outputDir);
+    }
+
+    private BufferedImage render(int[][] snapshot) {
+        final int tileWidth = pieces.getBlank().getWidth();
+        final int tileHeight = pieces.getBlank().getHeight();
+        final BufferedImage image = new BufferedImage(
+                tileWidth*snapshot.length, tileHeight*snapshot[0].length, BufferedImage.TYPE_INT_RGB);
+        final Graphics graphics = image.getGraphics();
+        for (int x = 0 ; x < snapshot.length ; x++) {
+            for (int y = 0 ; y < snapshot[x].length ; y++) {
+                final int compound = snapshot[x][y];
+                final BufferedImage tile = compound == -1 ?
+                        pieces.getBlank() :
+                        pieces.getPieceImage(compound & 0xFFFF, compound >> 16);
+                graphics.drawImage(tile, x*tileWidth, y*tileHeight, null);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private String toJSON(int[][] snapshot, int filled, String url) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":\"").append(Instant.now()).append("\"");
+        sb.append(",\"filled\":").append(filled);
+        sb.append(",\"width\":").append(snapshot.length);
+        sb.append(",\"height\":").append(snapshot[0].length);
+        sb.append(",\"pieces\":[");
+        for (int y = 0 ; y < snapshot[0].length ; y++) {
+            for (int x = 0 ; x < snapshot.length ; x++) {
+                if (x != 0 || y != 0) {
+                    sb.append(",");
+                }
+                final int compound = snapshot[x][y];
+                sb.append(compound == -1 ? "null" : "[" + (compound & 0xFFFF) + "," + (compound >> 16) + "]");
+            }
+        }
+        sb.append("],\"url\":\"").append(url).append("\"}\n");
+        return sb.toString();
+    }
+
+    private void appendProgress(String line) throws IOException {
+        final Path progress = outputDir.resolve(PROGRESS);
+        if (Files.exists(progress) && Files.size(progress) + line.length() > maxLogBytes) {
+            rollProgress(progress);
+        }
+        try (Writer out = Files.newBufferedWriter(progress, StandardCharsets.UTF_8,
+                                                  StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(line);
+        }
+    }
+
+    /**
+     * Shifts {@code progress.jsonl.n} to {@code progress.jsonl.n+1}, discarding the oldest.
+     */
+    private void rollProgress(Path progress) throws IOException {
+        if (logBackups <= 0) {
+            Files.delete(progress);
+            return;
+        }
+        Files.deleteIfExists(outputDir.resolve(PROGRESS + "." + logBackups));
+        for (int i = logBackups-1 ; i >= 1 ; i--) {
+            final Path source = outputDir.resolve(PROGRESS + "." + i);
+            if (Files.exists(source)) {
+                Files.move(source, outputDir.resolve(PROGRESS + "." + (i+1)));
+            }
+        }
+        Files.move(progress, outputDir.resolve(PROGRESS + ".1"));
+    }
+
+    private static int countFilled(int[][] snapshot) {
+        int filled = 0;
+        for (int[] column: snapshot) {
+            for (int compound: column) {
+                if (compound != -1) {
+                    filled++;
+                }
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * @return the number of filled fields in the best exported board.
+     */
+    public synchronized int getBest() {
+        return best;
+    }
+
+    /**
+     * @return the number of exports performed.
+     */
+    public synchronized int getExports() {
+        return exports;
+    }
+
+    /**
+     * Stops observing the board, stops the background thread and performs a final export if the best board is
+     * better than the last export.
+     */
+    @Override
+    public void close() throws IOException {
+        board.unregisterObserver(this);
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for the exporter thread to stop");
+            }
+        }
+        exportIfBetter();
+    }
+}
@@ -38,8 +38,8 @@ public class BoardVisualiser implements EBoard.Observer {
     private final int edgeWidth;
     private final int edgeHeight;
     private final boolean onlyUpdateOnBetter;
-    private boolean needsUpdate = false;
     private final String[][] labels;
+    private final AsyncBoardObserver asyncObserver;
 
     private int best = 0;
 
@@ -52,7 +52,7 @@ public class BoardVisualiser implements EBoard.Observer {
         this.onlyUpdateOnBetter = onlyUpdateOnBetter;
         labels = new String[board.getWidth()][board.getHeight()];
         for (int x = 0 ; x < labels.length ; x++) {
-            labels[x] = new String[board.getWidth()];
+            labels[x] = new String[board.getHeight()];
             for (int y = 0 ; y < board.getHeight() ; y++) {
                 labels[x][y] = "";
             }
@@ -66,34 +66,8 @@ public class BoardVisualiser implements EBoard.Observer {
         invalidateAll();
         boardDisplayComponent = BaseGraphics.displayImage(boardImage);
 
-        Thread t = new Thread(() -> {
-            while (true) {
-                invalidateConditionally();
-                try {
-                    Thread.sleep(UPDATE_INTERVAL);
-                } catch (InterruptedException e) {
-                    log.debug("Interrupted while sleeping");
-                }
-            }
-        }, "BoardVisualizer");
-        t.setDaemon(true);
-        t.start();
-        board.registerObserver(this);
-    }
-
-    private void invalidateConditionally() {
-        if (!needsUpdate) {
-            return;
-        }
-        if (onlyUpdateOnBetter) {
-            if (board.getFilledCount() > best) {
-                best = board.getFilledCount();
-                invalidateAll();
-            }
-            return;
-        }
-        invalidateAll();
-        //updateTile(x, y);
+        // Rendering happens on the thread of the AsyncBoardObserver so the solver is never blocked by the GUI
+        asyncObserver = new AsyncBoardObserver(board, this, UPDATE_INTERVAL);
     }
 
     private void invalidateAll() {
@@ -104,19 +78,30 @@ public class BoardVisualiser implements EBoard.Observer {
         }
     }
 
+    /**
+     * Called from the {@link AsyncBoardObserver} with coalesced changes. If {@code onlyUpdateOnBetter} is true,
+     * the board is redrawn when a better fill count is detected, which might be a bit later than when it happened.
+     */
     @Override
     public void boardChanged(int x, int y, String label) {
         labels[x][y] = label;
-        if (onlyUpdateOnBetter) { // Update immediately on better
+        if (onlyUpdateOnBetter) {
             if (board.getFilledCount() > best) {
                 best = board.getFilledCount();
                 invalidateAll();
             }
         } else {
-            needsUpdate = true;
+            updateTile(x, y);
         }
     }
 
+    /**
+     * Stops tracking changes to the board. The window is left open.
+     */
+    public void close() {
+        asyncObserver.close();
+    }
+
     private void updateTile(int x, int y) {
         BufferedImage tile = pieces.getBlank();
         int piece = board.getPiece(x, y);
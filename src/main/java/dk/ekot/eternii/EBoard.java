@@ -22,9 +22,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -79,9 +77,13 @@ public class EBoard {
     private final int height;
 
     private final int[][] board; // (rotation << 16 | piece)
-    private final EdgeTracker edgeTracker = new EdgeTracker();
+    private final EdgeTracker edgeTracker;
+    private long hash = 0; // Zobrist-style hash of the placed pieces, see {@link #getHash()}
+    private boolean forwardChecking = false;
+    private int[][] fittingCounts = null; // Only maintained if forwardChecking is true
 
-    private final Set<Observer> observers = new HashSet<>();
+    // Copy-on-write so that notification is lock free and costs a single volatile read when there are no observers
+    private volatile Observer[] observers = new Observer[0];
 
     public EBoard(EPieces pieces, int width, int height) {
         this.pieces = pieces;
@@ -92,6 +94,7 @@ public class EBoard {
             Arrays.fill(board[x], -1);
         }
         freeBag = new PieceTracker(pieces);
+        edgeTracker = new EdgeTracker();
 /*        pieces.allPieces()
                 .boxed()
                 .peek(piece -> updatePieceTracking(piece, 1))
@@ -101,6 +104,38 @@ public class EBoard {
         log.debug("EdgeTracker after EBoard construction: " + getEdgeTracker());
     }
 
+    /**
+     * Copy constructor. Observers are not copied.
+     */
+    private EBoard(EBoard other) {
+        this.pieces = other.pieces;
+        this.width = other.width;
+        this.height = other.height;
+        this.board = new int[width][];
+        for (int x = 0 ; x < width ; x++) {
+            board[x] = Arrays.copyOf(other.board[x], height);
+        }
+        freeBag = other.freeBag.copy();
+        edgeTracker = other.edgeTracker.copy();
+        hash = other.hash;
+        forwardChecking = other.forwardChecking;
+        if (other.fittingCounts != null) {
+            fittingCounts = new int[width][];
+            for (int x = 0 ; x < width ; x++) {
+                fittingCounts[x] = Arrays.copyOf(other.fittingCounts[x], height);
+            }
+        }
+    }
+
+    /**
+     * Creates an independent copy of the board, including tracker state. Registered observers are not copied.
+     * Intended for handing sub-searches to other threads.
+     * @return a copy of this board.
+     */
+    public EBoard copy() {
+        return new EBoard(this);
+    }
+
     private boolean isCorner(int x, int y) {
         return (x == 0 && y == 0) || (x == width-1 && y == 0) ||
                (x == 0 && y == height-1) || (x == width-1 && y == height-1);
@@ -114,6 +149,7 @@ public class EBoard {
         if (piece == -1) {
             throw new IllegalStateException("removePiece(" + x + ", " + y + ") called but the field has no piece");
         }
+        hash ^= hashKey(x, y, piece, getRotation(x, y));
         // Remove piece from board
         updateTracker9(x, y, +1);
         board[x][y] = -1;
@@ -122,6 +158,10 @@ public class EBoard {
         // Register piece as free
         updatePieceTracking(piece, +1);
         freeBag.add(piece);
+        if (forwardChecking) {
+            fittingCounts[x][y] = countFitting(x, y);
+            updateNeighbourCounts(x, y);
+        }
         notifyObservers(x, y, "");
     }
 
@@ -130,7 +170,11 @@ public class EBoard {
      * Use only for visualisation!
      */
     public void placeUntrackedPiece(int x, int y, int piece, int rotation) {
+        if (board[x][y] != -1) {
+            hash ^= hashKey(x, y, getPiece(x, y), getRotation(x, y));
+        }
         board[x][y] = (rotation<<16)|piece;
+        hash ^= hashKey(x, y, piece, rotation);
         notifyObservers(x, y, "");
     }
 
@@ -164,10 +208,83 @@ public class EBoard {
         if (!freeBag.remove(piece)) {
            throw new IllegalStateException("Tried removing piece " + piece + " from the free bag but it was not there");
         }
+        if (forwardChecking && !updateNeighbourCounts(x, y)) {
+            // A free neighbour has no fitting pieces left so we rollback
+            freeBag.add(piece);
+            updatePieceTracking(piece, 1);
+            updateTracker9(x, y, +1);
+            board[x][y] = -1;
+            updateTracker9(x, y, -1);
+            updateNeighbourCounts(x, y);
+            return false;
+        }
+        hash ^= hashKey(x, y, piece, rotation);
         notifyObservers(x, y, label);
         return true;
     }
 
+    /**
+     * Enables or disables forward checking: When enabled, {@link #placePiece} also rejects placements that leaves
+     * a free neighbouring field without any fitting free pieces, as resolved by
+     * {@link PieceTracker#getBestMatching(int, int, int, int)}. This prunes dead branches as soon as they are
+     * created, at the cost of 4 extra lookups for each placement.
+     *
+     * The fitting count for a field is updated when the field or one of its neighbours changes. Fields further
+     * away are not updated when the free bag changes, so their counts can be higher than the real count.
+     * @param enabled true to enable forward checking.
+     */
+    public void setForwardChecking(boolean enabled) {
+        forwardChecking = enabled;
+        if (!enabled) {
+            fittingCounts = null;
+            return;
+        }
+        fittingCounts = new int[width][height];
+        for (int x = 0 ; x < width ; x++) {
+            for (int y = 0 ; y < height ; y++) {
+                fittingCounts[x][y] = board[x][y] == -1 ? countFitting(x, y) : -1;
+            }
+        }
+    }
+
+    public boolean isForwardChecking() {
+        return forwardChecking;
+    }
+
+    /**
+     * @return the number of free pieces that fits the field, as of the last change to the field or its neighbours.
+     *         -1 if the field has a piece or forward checking is not enabled.
+     */
+    public int getFittingCount(int x, int y) {
+        return !forwardChecking || board[x][y] != -1 ? -1 : fittingCounts[x][y];
+    }
+
+    /**
+     * Updates the fitting counts for the free fields next to (x, y).
+     * @return false if at least one free neighbour has no fitting pieces.
+     */
+    private boolean updateNeighbourCounts(int x, int y) {
+        // Non-short-circuit & as all neighbours must be updated
+        return updateFittingCount(x, y-1) & updateFittingCount(x+1, y) &
+               updateFittingCount(x, y+1) & updateFittingCount(x-1, y);
+    }
+
+    private boolean updateFittingCount(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return true;
+        }
+        if (board[x][y] != -1) {
+            fittingCounts[x][y] = -1;
+            return true;
+        }
+        return (fittingCounts[x][y] = countFitting(x, y)) > 0;
+    }
+
+    private int countFitting(int x, int y) {
+        return freeBag.getBestMatching(lenientGetBottomEdge(x, y-1), lenientGetLeftEdge(x+1, y),
+                                       lenientGetTopEdge(x, y+1), lenientGetRightEdge(x-1, y)).size();
+    }
+
     /**
      * Register edges from the given pieces and add them to the board bag.
      * @param pieces the pieces to register.
@@ -197,7 +314,8 @@ public class EBoard {
     private boolean updateTracker9(int origoX, int origoY, int delta) {
         AtomicBoolean allOK = new AtomicBoolean(true);
         visit9(origoX, origoY, (x, y) -> {
-            allOK.set(allOK.get() && updateTracker(x, y, delta));
+            // Non-short-circuit & as all fields must be updated to keep rollbacks symmetric
+            allOK.set(updateTracker(x, y, delta) & allOK.get());
 //            if (!allOK.get()) {
 //                System.out.println("Invalidated at " + x + ", " + y);
 //            }
@@ -242,6 +360,26 @@ public class EBoard {
                 });
     }
 
+    /**
+     * The hash is maintained incrementally when pieces are placed and removed, so boards with the same pieces at
+     * the same positions and rotations have the same hash, independent of placement order.
+     * @return a 64 bit hash of the current board state.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Zobrist-style key for the given piece at the given field. The keys are calculated on the fly with a SplitMix64
+     * finalizer instead of being stored in a table of random values.
+     */
+    private long hashKey(int x, int y, int piece, int rotation) {
+        long z = ((((long) (y * width + x) * pieces.getTotal() + piece) << 2) | rotation) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     public EPieces getPieces() {
         return pieces;
     }
@@ -366,31 +504,58 @@ public class EBoard {
     }
 
     public String getDisplayURL() {
+        return getDisplayURL(pieces, board);
+    }
+
+    /**
+     * Create a URL for the viewer at bucas.name from a board snapshot. See {@link #getDisplayURL()}.
+     * @param pieces   the pieces used by the snapshot.
+     * @param compound {@code [x][y]} with {@code (rotation << 16 | piece)} or {@code -1} for empty fields,
+     *                 as delivered by {@link #getSnapshot()}.
+     * @return a URL for viewing the board.
+     */
+    public static String getDisplayURL(EPieces pieces, int[][] compound) {
         // https://e2.bucas.name/#puzzle=displayTest&board_w=16&board_h=16&board_edges=
-        // acdaaepcabteacsbacpcacocadtcaendaboeabgbacrbaencabveacvbadpcaabddsdapgmstmrgsutmplouomnlttkmusrtowmshtrwrvmtnwlmuwswvgwwllogbachdgcamtlgrgrttqvgosnqntkskkntrwpkmmrwrmhmmpjnlsnpsphswnspopprcabpcqealhwqruhhvtkunlktkpllnkpgprhkrkmnhvrkjshvnnnshhunsknhppskbaepeteawvwthnlvkvrnkvwvlwvvppvwhhrpmkqhrphkhtvpnqgtvntqnpgnsuvpeaeueqbawsoqlgosrusgwokuvntovoknrrmoqunrhlsuuqrlgqmqttlqgwstvwlweadwbhcaourhoujusuvukjhuttpjkvrtmqlvngwqsqugrpnqmonplnkosvpnlgvvdadgckfarvwkjnnvvhunhlghplulrlsllkilwhqkuqlhnqoqnouqkqmopqrqvprqdaepfhcawushnkouuhwkgimhuksismwkijjmqovjllwoorglujtrmlljrqwlrtrqeadtcrfasmtrorhmwvlrmujvsthuwhptjumhvgouwvjggsgvtopslugowovuriqodadifqeatjoqhhwjlsnhjprshjqppppjmiwpomnijovmggkopniggrinvmkrqhwmdadheseaoiiswquintmqrkgtqtjkplmtwoklnjrovvijkokviqwoiigqklqiwmuldabmelfaijjluhsjmwuhgsjwjgismkigkgikrjkgistjkqjswtqqgigtqooiuisobaeifufajsiussksujosjrijilpririlijurklqjthjljnthqwingiiwommisommeafofwdailiwkvulomjvinjmpgtniwtguiowqphijijptvviijnviggjmpqgmmupfaemdcaaidacufadjbafjbabtfabtdafofadhbafjfabvcafnfacgfafqfafubafeaab
+        final int width = compound.length;
+        final int height = compound[0].length;
         StringBuilder sb = new StringBuilder();
         sb.append("https://e2.bucas.name/#puzzle=displayTest&board_w=").append(width)
                 .append("&board_h=").append(height).append("&board_edges=");
-        for (int y = 0; y < width; y++) {
+        for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                final int compound = board[x][y];
-                sb.append(compound == -1 ?
+                final int c = compound[x][y];
+                sb.append(c == -1 ?
                                   "aaaa" : // Empty
-                                  pieces.toDisplayString(compound & 0xFFFF, compound>>16));
+                                  pieces.toDisplayString(c & 0xFFFF, c>>16));
             }
         }
         return sb.toString();
     }
 
+    /**
+     * Copy the pieces on the board. This only reads primitive values, so it is safe to call from a thread other
+     * than the one changing the board, with the caveat that the snapshot might be inconsistent if the board is
+     * changed during copying.
+     * @return {@code [x][y]} with {@code (rotation << 16 | piece)} or {@code -1} for empty fields.
+     */
+    public int[][] getSnapshot() {
+        int[][] snapshot = new int[width][];
+        for (int x = 0 ; x < width ; x++) {
+            snapshot[x] = Arrays.copyOf(board[x], height);
+        }
+        return snapshot;
+    }
+
     /**
      * @return true if the piece fits on the board (edges matches).
      */
     private boolean fits(int x, int y, int piece, int rotation) {
+        final int edges = pieces.getPacked(piece, rotation);
         int outerEdge;
-        return ((outerEdge = lenientGetBottomEdge(x, y-1)) == -1 || outerEdge == pieces.getTop(piece, rotation)) &&
-               ((outerEdge = lenientGetLeftEdge(x+1, y)) == -1 || outerEdge == pieces.getRight(piece, rotation)) &&
-               ((outerEdge = lenientGetTopEdge(x, y+1)) == -1 || outerEdge == pieces.getBottom(piece, rotation)) &&
-               ((outerEdge = lenientGetRightEdge(x-1, y)) == -1 || outerEdge == pieces.getLeft(piece, rotation));
+        return ((outerEdge = lenientGetBottomEdge(x, y-1)) == -1 || outerEdge == EPieces.getNorth(edges)) &&
+               ((outerEdge = lenientGetLeftEdge(x+1, y)) == -1 || outerEdge == EPieces.getEast(edges)) &&
+               ((outerEdge = lenientGetTopEdge(x, y+1)) == -1 || outerEdge == EPieces.getSouth(edges)) &&
+               ((outerEdge = lenientGetRightEdge(x-1, y)) == -1 || outerEdge == EPieces.getWest(edges));
     }
 
     public EdgeTracker getEdgeTracker() {
@@ -491,6 +656,22 @@ public class EBoard {
             return -1;
         }
 
+        /**
+         * Checks the 4 possible rotations of the given piece to see which of them fits the field.
+         * @param piece
+         * @return all matching rotations, empty if no match.
+         */
+        public int[] getValidRotations(int piece) {
+            int[] rotations = new int[4];
+            int count = 0;
+            for (int rotation = 0 ; rotation < 4 ; rotation++) {
+                if (fits(x, y, piece, rotation)) {
+                    rotations[count++] = rotation;
+                }
+            }
+            return Arrays.copyOf(rotations, count);
+        }
+
         public List<Piece> getBestPieces() {
             if (freeBag.isEmpty()) {
                 return Collections.emptyList();
@@ -558,7 +739,9 @@ public class EBoard {
      * @param observer called when the board changes.
      */
     public synchronized void registerObserver(Observer observer) {
-        observers.add(observer);
+        Observer[] expanded = Arrays.copyOf(observers, observers.length+1);
+        expanded[observers.length] = observer;
+        observers = expanded;
     }
 
     /**
@@ -567,7 +750,9 @@ public class EBoard {
      * @return true if the observer was previously registered, else false.
      */
     public synchronized boolean unregisterObserver(Observer observer) {
-        boolean wasThere = observers.remove(observer);
+        Observer[] reduced = Arrays.stream(observers).filter(o -> o != observer).toArray(Observer[]::new);
+        boolean wasThere = reduced.length != observers.length;
+        observers = reduced;
         log.debug(wasThere ?
                           "Unregistered board update observer {}" :
                           "Attempted to unregister configuration update observer {} but is was not found",
@@ -577,9 +762,14 @@ public class EBoard {
 
     /**
      * Notify all observers that the field at position {@code (x, y)} was updated.
+     * Observers are called on the thread changing the board. Slow observers should be wrapped in an
+     * {@link AsyncBoardObserver}.
      */
     private void notifyObservers(int x, int y, String label) {
-        observers.forEach(o -> o.boardChanged(x, y, label));
+        final Observer[] current = observers;
+        for (Observer observer: current) {
+            observer.boardChanged(x, y, label);
+        }
     }
 
     /**
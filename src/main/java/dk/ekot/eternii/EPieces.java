@@ -33,6 +33,7 @@ import java.util.stream.IntStream;
  * Holds the pieces/tiles.
  */
 // compound = (rotation << 16 | piece)
+// rotated = (piece << 2 | rotation), used for the edge tables
 public class EPieces {
     private static final Logger log = LoggerFactory.getLogger(EPieces.class);
 
@@ -42,6 +43,12 @@ public class EPieces {
 
     public static final int EDGE_EDGE = 0; // The outermost edges (black/grey)
 
+    // Maps edges from e2pieces.txt to online viewer format
+    private static final String MAP = "glqj" + "othm" + "rkpu" + "insv" + "wbec" + "fda";
+
+    // 4x4 sample in solved state, using the online viewer format
+    private static final String SAMPLE_4X4 = "ajjaajojaetjaaeejoeaootottooeajteojattoootttjajtjeaaoeaeteaejaae";
+
     private final int total;
     private final int[] n;
     private final int[] e;
@@ -49,6 +56,15 @@ public class EPieces {
     private final int[] w;
     private final int[] type; // 0=base, 1=edge, 2=corner
 
+    // Packed edges for rotated pieces: (north << NORTH_SHIFT | east << EAST_SHIFT | south << SOUTH_SHIFT | west)
+    public static final int NORTH_SHIFT = 24;
+    public static final int EAST_SHIFT = 16;
+    public static final int SOUTH_SHIFT = 8;
+    public static final int EDGE_MASK = 0xFF;
+    private int[] packed;
+    // (north * PieceTracker.EF + west) -> rotated pieces
+    private int[][] northWest;
+
     // Holds pieces (not compounds)
     private final Set<Integer> bag = new HashSet<>();
 
@@ -69,15 +85,62 @@ public class EPieces {
         type = new int[total];
         if (total == 256) {
             init256();
+        } else if (total == 16) {
+            init16();
         } else {
             throw new UnsupportedOperationException("Piece total of " + total + " not supported");
         }
+        buildEdgeTables();
+    }
+
+    /**
+     * Calculates the packed NESW edges for all pieces in all rotations as well as the reverse index from
+     * (north, west) to rotated pieces.
+     */
+    private void buildEdgeTables() {
+        packed = new int[total*4];
+        final int[][] nesw = {n, e, s, w};
+        for (int piece = 0 ; piece < total ; piece++) {
+            for (int rotation = 0 ; rotation < 4 ; rotation++) {
+                // Rotating clockwise moves the west edge to the north etc.
+                packed[piece << 2 | rotation] =
+                        nesw[(4-rotation) % 4][piece] << NORTH_SHIFT |
+                        nesw[(5-rotation) % 4][piece] << EAST_SHIFT |
+                        nesw[(6-rotation) % 4][piece] << SOUTH_SHIFT |
+                        nesw[(7-rotation) % 4][piece];
+            }
+        }
+
+        int[] counts = new int[PieceTracker.EF * PieceTracker.EF];
+        for (int rotated = 0 ; rotated < packed.length ; rotated++) {
+            counts[northWestKey(packed[rotated])]++;
+        }
+        northWest = new int[counts.length][];
+        for (int key = 0 ; key < counts.length ; key++) {
+            northWest[key] = new int[counts[key]];
+            counts[key] = 0;
+        }
+        for (int rotated = 0 ; rotated < packed.length ; rotated++) {
+            final int key = northWestKey(packed[rotated]);
+            northWest[key][counts[key]++] = rotated;
+        }
+    }
+
+    private static int northWestKey(int packedEdges) {
+        return getNorth(packedEdges) * PieceTracker.EF + getWest(packedEdges);
     }
 
     public static EPieces getEternii() {
         return new EPieces(256);
     }
 
+    /**
+     * @return the 16 pieces from the 4x4 sample puzzle. Solvable in milliseconds, which makes it usable for tests.
+     */
+    public static EPieces getSample4x4() {
+        return new EPieces(16);
+    }
+
     /**
      * Delivers clue pieces from https://e2.bucas.name/#puzzle=Clues&board_w=16&board_h=16&board_edges=aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaargouaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaartrjaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaavddoaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaajdsoaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaafsknaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa&board_pieces=000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000208000000000000000000000000000000255000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000139000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000181000000000000000000000000000000249000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000&motifs_order=jef
      */
@@ -112,9 +175,24 @@ public class EPieces {
         }
     }
 
+    private void init16() {
+        for (int piece = 0 ; piece < 16 ; piece++) {
+            n[piece] = SAMPLE_4X4.charAt(piece*4)-'a';
+            e[piece] = SAMPLE_4X4.charAt(piece*4+1)-'a';
+            s[piece] = SAMPLE_4X4.charAt(piece*4+2)-'a';
+            w[piece] = SAMPLE_4X4.charAt(piece*4+3)-'a';
+            type[piece] = (n[piece] == 0 ? 1 : 0) + (e[piece] == 0 ? 1 : 0) + (s[piece] == 0 ? 1 : 0) + (w[piece] == 0 ? 1 : 0);
+            bag.add(piece);
+        }
+        if (Thread.currentThread().getContextClassLoader().getResource("eternii/i0.png") == null) {
+            log.warn("No edge images available for the 4x4 sample. Visualisation will not be possible");
+            return;
+        }
+        loadEdgeImages();
+        generatePieceImages();
+    }
+
     private void init256() {
-        // Maps edges from e2pieces.txt to online viewer format
-        final String MAP = "glqj" + "othm" + "rkpu" + "insv" + "wbec" + "fda";
         try (InputStream in = Thread.currentThread().getContextClassLoader().
                 getResourceAsStream("eternii/e2pieces.txt");
              InputStreamReader sin = new InputStreamReader(in, StandardCharsets.UTF_8);
@@ -136,15 +214,7 @@ public class EPieces {
                 ++piece;
             }
 
-            edges = new BufferedImage[MAP.length()];
-            for (int i = 0 ; i < MAP.length() ; i++) {
-                try (InputStream imgIn = Thread.currentThread().getContextClassLoader().
-                        getResourceAsStream("eternii/i" + i + ".png")) {
-                    edges[MAP.charAt(i) - 'a'] = ImageIO.read(imgIn);
-                } catch (Exception e) {
-                    throw new RuntimeException("Unable to load piece eternii/i" + i + ".png");
-                }
-            }
+            loadEdgeImages();
             generatePieceImages();
         } catch (IOException e) {
             throw new RuntimeException("Unable to load pieces information", e);
@@ -158,6 +228,18 @@ public class EPieces {
         }      */
     }
 
+    private void loadEdgeImages() {
+        edges = new BufferedImage[MAP.length()];
+        for (int i = 0 ; i < MAP.length() ; i++) {
+            try (InputStream imgIn = Thread.currentThread().getContextClassLoader().
+                    getResourceAsStream("eternii/i" + i + ".png")) {
+                edges[MAP.charAt(i) - 'a'] = ImageIO.read(imgIn);
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to load piece eternii/i" + i + ".png");
+            }
+        }
+    }
+
     private void generatePieceImages() {
         pieceImages = new BufferedImage[total];
         pieceImages90 = new BufferedImage[total];
@@ -195,6 +277,13 @@ public class EPieces {
         return Character.toString((char)(edge+'a'));
     }
 
+    /**
+     * @return true if piece images are available for {@link #getPieceImage(int, int)} and {@link #getBlank()}.
+     */
+    public boolean hasImages() {
+        return pieceImages != null;
+    }
+
     public BufferedImage getBlank() {
         return blank;
     }
@@ -237,6 +326,10 @@ public class EPieces {
         throw new IllegalStateException("Unable to resolve '" + pieceStr + "'");
     }
 
+    public int getTotal() {
+        return total;
+    }
+
     public IntStream allPieces() {
         return IntStream.range(0, total);
     }
@@ -254,39 +347,64 @@ public class EPieces {
     }
 
     public int getLeft(int piece, int rotation) {
-        switch (rotation) {
-            case 0: return w[piece];
-            case 1: return s[piece];
-            case 2: return e[piece];
-            case 3: return n[piece];
-            default: throw new IllegalArgumentException("Invalid rotation " + rotation);
-        }
+        return packed[rotated(piece, rotation)] & EDGE_MASK;
     }
     public int getTop(int piece, int rotation) {
-        switch (rotation) {
-            case 0: return n[piece];
-            case 1: return w[piece];
-            case 2: return s[piece];
-            case 3: return e[piece];
-            default: throw new IllegalArgumentException("Invalid rotation " + rotation);
-        }
+        return packed[rotated(piece, rotation)] >>> NORTH_SHIFT;
     }
     public int getRight(int piece, int rotation) {
-        switch (rotation) {
-            case 0: return e[piece];
-            case 1: return n[piece];
-            case 2: return w[piece];
-            case 3: return s[piece];
-            default: throw new IllegalArgumentException("Invalid rotation " + rotation);
-        }
+        return (packed[rotated(piece, rotation)] >>> EAST_SHIFT) & EDGE_MASK;
     }
     public int getBottom(int piece, int rotation) {
-        switch (rotation) {
-            case 0: return s[piece];
-            case 1: return e[piece];
-            case 2: return n[piece];
-            case 3: return w[piece];
-            default: throw new IllegalArgumentException("Invalid rotation " + rotation);
+        return (packed[rotated(piece, rotation)] >>> SOUTH_SHIFT) & EDGE_MASK;
+    }
+
+    /**
+     * @return {@code piece << 2 | rotation}.
+     * @throws IllegalArgumentException if the rotation is not 0-3.
+     */
+    private static int rotated(int piece, int rotation) {
+        if ((rotation & ~3) != 0) {
+            throw new IllegalArgumentException("Invalid rotation " + rotation);
         }
+        return piece << 2 | rotation;
+    }
+
+    /**
+     * @param rotated {@code piece << 2 | rotation}.
+     * @return the edges of the rotated piece, packed as {@code north << 24 | east << 16 | south << 8 | west}.
+     */
+    public int getPacked(int rotated) {
+        return packed[rotated];
+    }
+
+    /**
+     * @return the edges of the rotated piece, packed as {@code north << 24 | east << 16 | south << 8 | west}.
+     */
+    public int getPacked(int piece, int rotation) {
+        return packed[rotated(piece, rotation)];
+    }
+
+    /**
+     * Reverse lookup for scan-order solvers, where the north and west neighbours are always known.
+     * The result is shared and must not be modified.
+     * @return all rotated pieces ({@code piece << 2 | rotation}) with the given north and west edges.
+     *         Free as well as placed pieces are returned.
+     */
+    public int[] getByNorthWest(int north, int west) {
+        return northWest[north * PieceTracker.EF + west];
+    }
+
+    public static int getNorth(int packedEdges) {
+        return packedEdges >>> NORTH_SHIFT;
+    }
+    public static int getEast(int packedEdges) {
+        return (packedEdges >>> EAST_SHIFT) & EDGE_MASK;
+    }
+    public static int getSouth(int packedEdges) {
+        return (packedEdges >>> SOUTH_SHIFT) & EDGE_MASK;
+    }
+    public static int getWest(int packedEdges) {
+        return packedEdges & EDGE_MASK;
     }
 }
@@ -31,15 +31,38 @@ public class EdgeTracker {
     public static final int EF = 30; // Must be > max edge type id (int)
 
     // Edge -> count
-    private final Counter one = new Counter();
+    private final Counter one;
     // [edge1, edge2 (clockwise immediately after edge1)] -> count
-    private final Counter two = new Counter();
+    private final Counter two;
     // [edge1, edge2 (clockwise immediately after edge1), edge3 (clockwise immediately after edge2)] -> count
-    private final Counter three = new Counter();
+    private final Counter three;
     // [edge1, edge2 (at the other side of edge)] -> count. One 180 degree rotation
-    private final Counter opposing = new Counter();
+    private final Counter opposing;
     // [edge1, edge2, edge3, edge4] -> count. All rotations
-    private final Counter four = new Counter();
+    private final Counter four;
+
+    public EdgeTracker() {
+        one = new Counter();
+        two = new Counter();
+        three = new Counter();
+        opposing = new Counter();
+        four = new Counter();
+    }
+
+    private EdgeTracker(EdgeTracker other) {
+        one = new Counter(other.one);
+        two = new Counter(other.two);
+        three = new Counter(other.three);
+        opposing = new Counter(other.opposing);
+        four = new Counter(other.four);
+    }
+
+    /**
+     * @return an independent copy of this tracker.
+     */
+    public EdgeTracker copy() {
+        return new EdgeTracker(this);
+    }
 
     /**
      * Adds all valid permutations of the edges.
@@ -55,6 +78,7 @@ public class EdgeTracker {
         // Four
         if (edge1 != -1 && edge2 != -1 && edge3 != -1 && edge4 != -1) { // Called often so this is optimized
             return addFour(edge1, edge2, edge3, edge4, delta) |
+                   addThree(edge1, edge2, edge3, delta) |
                    addThree(edge2, edge3, edge4, delta) |
                    addThree(edge3, edge4, edge1, delta) |
                    addThree(edge4, edge1, edge2, delta) |
@@ -161,7 +185,8 @@ public class EdgeTracker {
 
     public boolean addFour(int edgeType1, int edgeType2, int edgeType3, int edgeType4, int delta) {
         AtomicBoolean allOK = new AtomicBoolean(true);
-        visitFour(edgeType1, edgeType2, edgeType3, edgeType4, key -> allOK.set(allOK.get() && four.add(key, delta)));
+        // Non-short-circuit & as all counters must be updated to keep rollbacks symmetric
+        visitFour(edgeType1, edgeType2, edgeType3, edgeType4, key -> allOK.set(four.add(key, delta) & allOK.get()));
         return allOK.get();
     }
     public int getFour(int edgeType1, int edgeType2, int edgeType3, int edgeType4) {
@@ -178,6 +203,14 @@ public class EdgeTracker {
 
 
     public static class Counter extends HashMap<Integer, Integer> {
+        public Counter() {
+            super();
+        }
+
+        public Counter(Counter other) {
+            super(other);
+        }
+
         /**
          *
          * @param key
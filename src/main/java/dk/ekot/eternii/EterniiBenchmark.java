@@ -0,0 +1,265 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Throughput benchmarks for the core operations of the eternii engine, to get a baseline before changing it.
+ *
+ * Each benchmark is a batch that returns the number of operations it performed. Batches are repeated for a warmup
+ * period, to let the JIT compile the code, followed by a measurement period. The result is reported as operations
+ * per second. Results from the batches are accumulated in {@link #sink} so that the JIT cannot remove the work.
+ *
+ * Batches that need setup, such as creating a fresh board and solver, are prepared outside of the measured time
+ * with {@link #measurePrepared}.
+ *
+ * Benchmarks are run for the 4x4 sample and for the 16x16 board with the official clues, if the pieces are
+ * available.
+ *
+ * Usage: {@code EterniiBenchmark [warmupSeconds [measureSeconds]]}
+ */
+public class EterniiBenchmark {
+    public static final int DEFAULT_WARMUP_MS = 2000;
+    public static final int DEFAULT_MEASURE_MS = 5000;
+
+    private static volatile long sink = 0;
+
+    private final int warmupMS;
+    private final int measureMS;
+    private final List<String> results = new ArrayList<>();
+
+    public EterniiBenchmark(int warmupMS, int measureMS) {
+        this.warmupMS = warmupMS;
+        this.measureMS = measureMS;
+    }
+
+    public static void main(String[] args) {
+        int warmupMS = args.length > 0 ? Integer.parseInt(args[0])*1000 : DEFAULT_WARMUP_MS;
+        int measureMS = args.length > 1 ? Integer.parseInt(args[1])*1000 : DEFAULT_MEASURE_MS;
+        EterniiBenchmark benchmark = new EterniiBenchmark(warmupMS, measureMS);
+        benchmark.runAll("4x4", EterniiBenchmark::getSampleBoard);
+        try {
+            EterniiWorkUnits.getClueBoard();
+            benchmark.runAll("16x16", EterniiWorkUnits::getClueBoard);
+        } catch (Exception e) {
+            System.out.println("Skipping 16x16 benchmarks as the Eternity II pieces could not be loaded: " + e);
+        }
+        System.out.println();
+        System.out.println("Summary (warmup " + warmupMS + " ms, measure " + measureMS + " ms):");
+        benchmark.getResults().forEach(System.out::println);
+    }
+
+    /**
+     * Runs all benchmarks for boards delivered by the given supplier.
+     * @param name          the name of the board, used for reporting.
+     * @param boardSupplier delivers a fresh board for each benchmark.
+     */
+    public void runAll(String name, Supplier<EBoard> boardSupplier) {
+        benchmarkPlaceRemove(name, boardSupplier.get());
+        benchmarkBestMatching(name, boardSupplier.get().getPieces());
+        benchmarkEdgeTracker(name, boardSupplier.get().getPieces());
+        benchmarkWalker(name, "WalkerA", boardSupplier.get(), WalkerA::new);
+        benchmarkWalker(name, "WalkerB", boardSupplier.get(), WalkerB::new);
+        benchmarkWalker(name, "WalkerC", boardSupplier.get(), WalkerC::new);
+        benchmarkWalker(name, "WalkerD", boardSupplier.get(), WalkerD::new);
+        benchmarkWalker(name, "WalkerE", boardSupplier.get(), WalkerE::new);
+        benchmarkSolver(name, "BacktrackSolver", boardSupplier, (board, stop) -> {
+            BacktrackSolver solver = new BacktrackSolver(board, null, stop);
+            return () -> {
+                solver.search();
+                return solver.getAttempts();
+            };
+        });
+        benchmarkSolver(name, "RowScanSolver", boardSupplier, (board, stop) -> {
+            RowScanSolver solver = new RowScanSolver(board, stop);
+            return () -> {
+                solver.search();
+                return solver.getAttempts();
+            };
+        });
+    }
+
+    /**
+     * {@link EBoard#placePiece} followed by {@link EBoard#removePiece} for the first move suggested by
+     * {@link WalkerA}. One operation is a place/remove pair.
+     */
+    private void benchmarkPlaceRemove(String name, EBoard board) {
+        final EBoard.Pair<EBoard.Field, List<EBoard.Piece>> move = new WalkerA(board).get();
+        if (move == null || move.right.isEmpty()) {
+            results.add(name + ": placeRemove skipped as there are no free moves");
+            return;
+        }
+        final int x = move.left.getX();
+        final int y = move.left.getY();
+        final EBoard.Piece piece = move.right.get(0);
+        measure(name + " EBoard.placePiece+removePiece", () -> {
+            long sum = 0;
+            for (int i = 0 ; i < 1000 ; i++) {
+                if (!board.placePiece(x, y, piece.piece, piece.rotation, "")) {
+                    throw new IllegalStateException("Unable to place benchmark piece " + piece);
+                }
+                sum += board.getHash();
+                board.removePiece(x, y);
+            }
+            sink += sum;
+            return 1000;
+        });
+    }
+
+    /**
+     * {@link PieceTracker#getBestMatching} for 1, 2 and 4 known edges, with edges taken from the pieces themselves.
+     */
+    private void benchmarkBestMatching(String name, EPieces pieces) {
+        final PieceTracker tracker = new PieceTracker(pieces);
+        pieces.getBag().forEach(tracker::add);
+        final int total = pieces.getTotal();
+        measure(name + " PieceTracker.getBestMatching", () -> {
+            long sum = 0;
+            for (int piece = 0 ; piece < total ; piece++) {
+                final int n = pieces.getTop(piece, 0), e = pieces.getRight(piece, 0);
+                final int s = pieces.getBottom(piece, 0), w = pieces.getLeft(piece, 0);
+                sum += tracker.getBestMatching(n, -1, -1, -1).size();
+                sum += tracker.getBestMatching(n, -1, -1, w).size();
+                sum += tracker.getBestMatching(n, e, s, w).size();
+            }
+            sink += sum;
+            return total*3L;
+        });
+    }
+
+    /**
+     * {@link EdgeTracker#add} for all pieces, first adding and then removing them.
+     */
+    private void benchmarkEdgeTracker(String name, EPieces pieces) {
+        final EdgeTracker tracker = new EdgeTracker();
+        final int total = pieces.getTotal();
+        measure(name + " EdgeTracker.add", () -> {
+            long sum = 0;
+            for (int delta = 1 ; delta >= -1 ; delta -= 2) {
+                for (int piece = 0 ; piece < total ; piece++) {
+                    sum += tracker.add(pieces.getTop(piece, 0), pieces.getRight(piece, 0),
+                                       pieces.getBottom(piece, 0), pieces.getLeft(piece, 0), delta) ? 1 : 0;
+                }
+            }
+            sink += sum;
+            return total*2L;
+        });
+    }
+
+    private void benchmarkWalker(String name, String walkerName, EBoard board, Function<EBoard, Walker> walkerFactory) {
+        final Walker walker = walkerFactory.apply(board);
+        measure(name + " " + walkerName + ".get", () -> {
+            EBoard.Pair<EBoard.Field, List<EBoard.Piece>> move = walker.get();
+            sink += move == null ? 0 : move.right.size();
+            return 1;
+        });
+    }
+
+    /**
+     * End-to-end search. The solver is restarted on a fresh board until the measurement period is over.
+     * Creation of the board and the solver is not part of the measured time.
+     * One operation is a placement attempt.
+     */
+    private void benchmarkSolver(String name, String solverName, Supplier<EBoard> boardSupplier,
+                                 SolverFactory solverFactory) {
+        measurePrepared(name + " " + solverName + " attempts", () -> {
+            final AtomicBoolean stop = new AtomicBoolean(false);
+            final LongSupplier search = solverFactory.create(boardSupplier.get(), stop);
+            final Timer timer = new Timer("EterniiBenchmark-stop", true);
+            return () -> {
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        stop.set(true);
+                    }
+                }, Math.max(100, measureMS/10));
+                try {
+                    return search.getAsLong();
+                } finally {
+                    timer.cancel();
+                }
+            };
+        });
+    }
+
+    /**
+     * Calls the batch repeatedly during warmup and measurement.
+     * @param batch performs some work and returns the number of operations.
+     * @return operations per second.
+     */
+    public double measure(String name, LongSupplier batch) {
+        return measurePrepared(name, () -> batch);
+    }
+
+    /**
+     * Prepares and calls batches repeatedly during warmup and measurement. Only the time spent in the batches
+     * themselves is measured, not the time spent preparing them.
+     * @param preparer delivers a batch that performs some work and returns the number of operations.
+     * @return operations per second.
+     */
+    public double measurePrepared(String name, Supplier<LongSupplier> preparer) {
+        long warmupEnd = System.nanoTime() + warmupMS*1000000L;
+        while (System.nanoTime() < warmupEnd) {
+            preparer.get().getAsLong();
+        }
+        long operations = 0;
+        long measuredNS = 0;
+        final long measureEnd = System.nanoTime() + measureMS*1000000L;
+        long now;
+        do {
+            final LongSupplier batch = preparer.get();
+            final long batchStart = System.nanoTime();
+            operations += batch.getAsLong();
+            now = System.nanoTime();
+            measuredNS += now-batchStart;
+        } while (now < measureEnd);
+        final double opsPerSecond = operations * 1000000000.0 / measuredNS;
+        final String result = String.format(Locale.ROOT, "%-45s %,16.0f ops/s", name, opsPerSecond);
+        System.out.println(result);
+        results.add(result);
+        return opsPerSecond;
+    }
+
+    public List<String> getResults() {
+        return results;
+    }
+
+    @FunctionalInterface
+    private interface SolverFactory {
+        /**
+         * @return a search on the given board that returns the number of attempts when finished.
+         */
+        LongSupplier create(EBoard board, AtomicBoolean stop);
+    }
+
+    /**
+     * @return the 4x4 sample board with all pieces free.
+     */
+    private static EBoard getSampleBoard() {
+        EPieces pieces = EPieces.getSample4x4();
+        EBoard board = new EBoard(pieces, 4, 4);
+        board.registerFreePieces(pieces.getBag());
+        return board;
+    }
+}
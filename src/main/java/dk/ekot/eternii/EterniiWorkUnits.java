@@ -0,0 +1,210 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import dk.ekot.misc.WorkQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Splits an Eternity II search into work units for a {@link WorkQueue}.
+ *
+ * A work unit is a prefix of placements. The prefixes are created by repeatedly asking a {@link Walker} for the
+ * next field and branching on all its candidate pieces in all rotations that fit the field. As every solution must
+ * have one of the candidates at the chosen field, in one of the fitting rotations, the prefixes partitions the
+ * search space.
+ *
+ * Workers replay the prefix on a fresh board and search the remaining fields with {@link RowScanSolver}, which
+ * keeps the prefix fixed.
+ *
+ * Payload format: {@code x,y,piece,rotation;x,y,piece,rotation;...}
+ */
+public class EterniiWorkUnits {
+    private static final Logger log = LoggerFactory.getLogger(EterniiWorkUnits.class);
+
+    /**
+     * Creates all prefixes with the given number of placements. The board is restored before returning.
+     * @param board  the starting board, typically with clue pieces placed.
+     * @param walker selects the field to branch on. Must be bound to the board.
+     * @param depth  the number of placements in each prefix.
+     * @return the prefixes as payloads.
+     */
+    public static List<String> createPrefixes(EBoard board, Walker walker, int depth) {
+        List<String> prefixes = new ArrayList<>();
+        createPrefixes(board, walker, depth, "", prefixes);
+        return prefixes;
+    }
+
+    private static void createPrefixes(EBoard board, Walker walker, int remaining, String prefix, List<String> prefixes) {
+        if (remaining == 0) {
+            prefixes.add(prefix);
+            return;
+        }
+        final EBoard.Pair<EBoard.Field, List<EBoard.Piece>> next = walker.get();
+        if (next == null) { // Board full
+            prefixes.add(prefix);
+            return;
+        }
+        final int x = next.left.getX();
+        final int y = next.left.getY();
+        // The candidates only holds the first fitting rotation, so all rotations are checked explicitly
+        for (EBoard.Piece piece: next.right) {
+            for (int rotation: next.left.getValidRotations(piece.piece)) {
+                if (!board.placePiece(x, y, piece.piece, rotation, "")) {
+                    continue;
+                }
+                final String placement = x + "," + y + "," + piece.piece + "," + rotation;
+                createPrefixes(board, walker, remaining-1, prefix.isEmpty() ? placement : prefix + ";" + placement,
+                               prefixes);
+                board.removePiece(x, y);
+            }
+        }
+    }
+
+    /**
+     * Adds all prefixes with the given number of placements to the queue.
+     * @return the number of added units.
+     */
+    public static int enqueue(WorkQueue queue, EBoard board, Walker walker, int depth) throws IOException {
+        final List<String> prefixes = createPrefixes(board, walker, depth);
+        for (int i = 0 ; i < prefixes.size() ; i++) {
+            queue.add(String.format(Locale.ROOT, "e2_%08d", i), prefixes.get(i));
+        }
+        log.info("Added {} prefixes of depth {} to the work queue", prefixes.size(), depth);
+        return prefixes.size();
+    }
+
+    /**
+     * Creates a processor for {@link WorkQueue#processAll(String, Function, long)}.
+     * @param boardSupplier delivers a fresh board for each unit.
+     * @param maxMS         the maximum time to spend on a single unit.
+     * @return a processor that returns the result as a JSON line.
+     */
+    public static Function<String, String> getProcessor(Supplier<EBoard> boardSupplier, long maxMS) {
+        return prefix -> process(boardSupplier.get(), prefix, maxMS);
+    }
+
+    /**
+     * Replays the prefix on the board and searches the remaining fields.
+     * @return the result as a single JSON line.
+     */
+    public static String process(EBoard board, String prefix, long maxMS) {
+        replay(board, prefix);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final Timer timer = new Timer("EterniiWorkUnits-timeout", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                stop.set(true);
+            }
+        }, maxMS);
+        final RowScanSolver solver = new RowScanSolver(board, stop);
+        try {
+            solver.search();
+        } finally {
+            timer.cancel();
+        }
+        final int[] best = solver.getBest();
+        final int[][] compound = new int[board.getWidth()][board.getHeight()];
+        int filled = 0;
+        for (int field = 0 ; field < best.length ; field++) {
+            final int rotated = best[field];
+            compound[field % board.getWidth()][field / board.getWidth()] =
+                    rotated == -1 ? -1 : (rotated & 3) << 16 | rotated >>> 2;
+            filled += rotated == -1 ? 0 : 1;
+        }
+        return String.format(Locale.ROOT,
+                             "{\"prefix\":\"%s\",\"solved\":%b,\"exhausted\":%b,\"filled\":%d,\"attempts\":%d,\"url\":\"%s\"}",
+                             prefix, solver.isSolved(), solver.isExhausted(), filled, solver.getAttempts(),
+                             EBoard.getDisplayURL(board.getPieces(), compound));
+    }
+
+    /**
+     * Places the pieces from the prefix on the board.
+     * @throws IllegalStateException if a piece could not be placed.
+     */
+    public static void replay(EBoard board, String prefix) {
+        if (prefix.isEmpty()) {
+            return;
+        }
+        for (String placement: prefix.split(";")) {
+            final String[] tokens = placement.split(",");
+            if (!board.placePiece(Integer.parseInt(tokens[0]), Integer.parseInt(tokens[1]),
+                                  Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]), "")) {
+                throw new IllegalStateException("Unable to place prefix piece " + placement);
+            }
+        }
+    }
+
+    /**
+     * @return the 16x16 board with the official clue pieces.
+     */
+    public static EBoard getClueBoard() {
+        EPieces pieces = EPieces.getEternii();
+        EBoard board = new EBoard(pieces, 16, 16);
+        board.registerFreePieces(pieces.getBag());
+        pieces.processEterniiClues((x, y, piece, rotation) -> board.placePiece(x, y, piece, rotation, ""));
+        return board;
+    }
+
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println("EterniiWorkUnits enqueue <queuefolder> <depth>");
+        System.out.println("EterniiWorkUnits work <queuefolder> <workerID> [maxSecondsPerUnit]");
+        System.out.println("EterniiWorkUnits requeue <queuefolder> <staleSeconds>");
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int minArgs = args.length == 0 ? Integer.MAX_VALUE :
+                "enqueue".equals(args[0]) ? 3 :
+                "work".equals(args[0]) || "requeue".equals(args[0]) ? 3 :
+                Integer.MAX_VALUE;
+        if (args.length < minArgs) {
+            usage();
+            return;
+        }
+        final Path root = Paths.get(args[1]);
+        final WorkQueue queue = new WorkQueue(root);
+        switch (args[0]) {
+            case "enqueue": {
+                EBoard board = getClueBoard();
+                enqueue(queue, board, new WalkerA(board), Integer.parseInt(args[2]));
+                break;
+            }
+            case "work": {
+                long maxMS = args.length > 3 ? Long.parseLong(args[3])*1000 : 60*60*1000L;
+                int processed = queue.processAll(args[2], getProcessor(EterniiWorkUnits::getClueBoard, maxMS), 10000);
+                System.out.println("Processed " + processed + " units");
+                break;
+            }
+            case "requeue": {
+                System.out.println("Requeued " + queue.requeueStale(Long.parseLong(args[2])*1000) + " units");
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel version of {@link BacktrackSolver}: The top-level field/piece choices are resolved once and each choice
+ * is explored by a {@link BacktrackSolver} on its own copy of the board. The sub-searches are executed by a
+ * work-stealing {@link ForkJoinPool}, so uneven subtree sizes are balanced between the threads.
+ *
+ * Each worker thread has its own {@link SeenBoards}, shared by the sub-searches it executes. The sub-searches on a
+ * thread are sequential and a board fully determines its subtree, so a board explored in one subtree is also
+ * explored if reached from another. This also avoids allocating a new set for each top-level move.
+ *
+ * When a solution is found, all sub-searches are stopped and the solution is replayed onto the original board.
+ */
+public class ParallelBacktrackSolver implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBacktrackSolver.class);
+
+    private final EBoard board;
+    private final int threads;
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+    private final AtomicLong attempts = new AtomicLong(0);
+    private final ThreadLocal<SeenBoards> seenBoards = ThreadLocal.withInitial(SeenBoards::new);
+    private int[][] solution = null; // Guarded by this
+
+    public ParallelBacktrackSolver(EBoard board, Walker walker) {
+        this(board, walker, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param board   the board to solve.
+     * @param walker  ignored: {@link WalkerA} is always used.
+     * @param threads the number of threads to use for the search.
+     */
+    public ParallelBacktrackSolver(EBoard board, Walker walker, int threads) {
+        this.board = board;
+        this.threads = threads;
+    }
+
+    @Override
+    public void run() {
+        if (board.getFreeCount() == 0) {
+            return;
+        }
+        List<int[]> topMoves = getTopMoves();
+        log.info("Starting parallel search of {} top-level moves using {} threads", topMoves.size(), threads);
+        final long startTime = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(topMoves.size());
+            for (int[] topMove: topMoves) {
+                tasks.add(pool.submit(() -> solveSubtree(topMove)));
+            }
+            tasks.forEach(ForkJoinTask::join);
+        } finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for pool termination");
+            }
+        }
+
+        int[][] result = getSolution();
+        if (result == null) {
+            log.info("No solution found after {} attempts in {} ms",
+                     attempts.get(), System.currentTimeMillis()-startTime);
+            return;
+        }
+        for (int[] move: result) {
+            if (!board.placePiece(move[0], move[1], move[2], move[3], "")) {
+                throw new IllegalStateException(
+                        "Unable to replay solution move " + move[2] + " at (" + move[0] + ", " + move[1] + ")");
+            }
+        }
+        log.info("Solution found after {} attempts in {} ms", attempts.get(), System.currentTimeMillis()-startTime);
+    }
+
+    /**
+     * @return all candidate moves for the board as {@code [x, y, piece, rotation]}, in the same order as they would
+     *         be tried by {@link BacktrackSolver}.
+     */
+    private List<int[]> getTopMoves() {
+        List<int[]> topMoves = new ArrayList<>();
+        new WalkerA(board).getFreePieces().forEachOrdered(pair -> {
+            List<int[]> fieldMoves = new ArrayList<>(pair.right.size());
+            for (EBoard.Piece piece: pair.right) {
+                fieldMoves.add(new int[]{pair.left.getX(), pair.left.getY(), piece.piece, piece.rotation});
+            }
+            fieldMoves.sort(Comparator.comparingInt(move -> move[2]));
+            topMoves.addAll(fieldMoves);
+        });
+        return topMoves;
+    }
+
+    private void solveSubtree(int[] topMove) {
+        if (stop.get()) {
+            return;
+        }
+        EBoard subBoard = copyBoard();
+        attempts.incrementAndGet();
+        if (!subBoard.placePiece(topMove[0], topMove[1], topMove[2], topMove[3], "")) {
+            return;
+        }
+        BacktrackSolver solver = new BacktrackSolver(subBoard, null, stop, seenBoards.get());
+        boolean solved = solver.search();
+        attempts.addAndGet(solver.getAttempts());
+        if (!solved) {
+            return;
+        }
+        synchronized (this) {
+            if (solution != null) {
+                return;
+            }
+            int[][] subMoves = solver.getPlacements();
+            solution = new int[subMoves.length+1][];
+            solution[0] = topMove;
+            System.arraycopy(subMoves, 0, solution, 1, subMoves.length);
+        }
+        stop.set(true);
+    }
+
+    // The original board is only read while the search is running, but EBoard is not designed for concurrent use
+    private synchronized EBoard copyBoard() {
+        return board.copy();
+    }
+
+    /**
+     * @return the solution as {@code [depth][x, y, piece, rotation]} or null if no solution has been found.
+     */
+    public synchronized int[][] getSolution() {
+        return solution;
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+}
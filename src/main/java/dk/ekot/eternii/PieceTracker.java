@@ -53,6 +53,23 @@ public class PieceTracker {
         this.pieces = pieces;
     }
 
+    private PieceTracker(PieceTracker other) {
+        this.pieces = other.pieces;
+        one.copyFrom(other.one);
+        two.copyFrom(other.two);
+        three.copyFrom(other.three);
+        opposing.copyFrom(other.opposing);
+        four.copyFrom(other.four);
+        all.addAll(other.all);
+    }
+
+    /**
+     * @return an independent copy of this tracker.
+     */
+    public PieceTracker copy() {
+        return new PieceTracker(this);
+    }
+
     public void add(int piece) {
         process(piece, set -> set.add(piece));
         if (!all.add(piece)) {
@@ -94,6 +111,7 @@ public class PieceTracker {
         // All edges are always defined for pieces, so we permutate and call all possible sets
         
         processFour(edge1, edge2, edge3, edge4, adjuster);
+        processThree(edge1, edge2, edge3, adjuster);
         processThree(edge2, edge3, edge4, adjuster);
         processThree(edge3, edge4, edge1, adjuster);
         processThree(edge4, edge1, edge2, adjuster);
@@ -257,6 +275,10 @@ public class PieceTracker {
             return super.get(key);
         }
 
+        public void copyFrom(PieceHolder other) {
+            other.forEach((key, pieces) -> put(key, new HashSet<>(pieces)));
+        }
+
         public void addPiece(Integer key, Integer piece) {
             if (!containsKey(key)) {
                 super.put(key, new HashSet<>());
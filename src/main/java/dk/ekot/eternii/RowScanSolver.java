@@ -0,0 +1,410 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Solves the puzzle by filling the fields in a fixed order: The border ring first (clockwise from the top left
+ * corner), then the interior row by row.
+ *
+ * The solver does not use the trackers in {@link EBoard}. Instead it keeps its own compact state and resolves
+ * candidates with the edge tables in {@link EPieces}: When the north and west neighbours are known, which is
+ * always the case for the interior, {@link EPieces#getByNorthWest(int, int)} is used. The candidate arrays for
+ * each depth are allocated up front, so the search itself does not allocate.
+ *
+ * Pieces already on the board when the solver is created, such as the ones from
+ * {@link EPieces#processEterniiClues(EPieces.ClueCallback)}, are kept fixed.
+ * When a solution is found, it is placed on the board.
+ *
+ * The stack can be persisted periodically as a {@link SearchCheckpoint} (see {@link #setCheckpointing(Path, long)})
+ * and the search continued from it with {@link #resume(SearchCheckpoint)}.
+ */
+public class RowScanSolver implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(RowScanSolver.class);
+
+    private final EBoard board;
+    private final EPieces pieces;
+    private final int width;
+    private final int height;
+    private final AtomicBoolean stop;
+
+    private final int[] order;  // Fields (y*width+x) to fill. Fixed fields are not included
+    private final int[] cells;  // Rotated pieces (piece << 2 | rotation) or -1 if no piece
+    private final boolean[] used;
+    private final int[][] fieldCandidates; // Rotated pieces that satisfies the board-edge constraints for the field
+
+    // The explicit stack, allocated up front
+    private final int[][] candidates;
+    private final int[] candidateCounts;
+    private final int[] candidateIndex;
+    private int depth = 0;
+
+    private int maxDepth = 0;
+    private int[] best;
+    private long attempts = 0;
+    private long printDelta = 10000000;
+    private long nextPrint = printDelta;
+    private boolean solved = false;
+    private boolean exhausted = false;
+    private boolean resumed = false;
+
+    private Path checkpointFile = null;
+    private long checkpointIntervalMS = 0;
+    private long nextCheckpoint = Long.MAX_VALUE;
+
+    public RowScanSolver(EBoard board, Walker walker) {
+        this(board);
+    }
+
+    public RowScanSolver(EBoard board) {
+        this(board, new AtomicBoolean(false));
+    }
+
+    /**
+     * @param board the board to solve. Pieces already on the board are kept fixed.
+     * @param stop  if set to true during search, the search terminates.
+     */
+    public RowScanSolver(EBoard board, AtomicBoolean stop) {
+        this.board = board;
+        this.pieces = board.getPieces();
+        this.width = board.getWidth();
+        this.height = board.getHeight();
+        this.stop = stop;
+
+        cells = new int[width*height];
+        used = new boolean[pieces.getTotal()];
+        Arrays.fill(cells, -1);
+        for (int y = 0 ; y < height ; y++) {
+            for (int x = 0 ; x < width ; x++) {
+                if (board.getPiece(x, y) != -1) {
+                    cells[y*width+x] = board.getPiece(x, y) << 2 | board.getRotation(x, y);
+                    used[board.getPiece(x, y)] = true;
+                }
+            }
+        }
+        order = Arrays.stream(getBorderFirstOrder(width, height)).filter(field -> cells[field] == -1).toArray();
+
+        fieldCandidates = new int[width*height][];
+        for (int field = 0 ; field < fieldCandidates.length ; field++) {
+            fieldCandidates[field] = resolveFieldCandidates(pieces, width, height, field);
+        }
+        candidates = new int[order.length][];
+        for (int d = 0 ; d < order.length ; d++) {
+            candidates[d] = new int[fieldCandidates[order[d]].length];
+        }
+        candidateCounts = new int[order.length];
+        candidateIndex = new int[order.length];
+        best = cells.clone();
+    }
+
+    /**
+     * The border ring clockwise from the top left corner, followed by the interior row by row.
+     * @return field indexes ({@code y*width+x}) for all fields on the board.
+     */
+    public static int[] getBorderFirstOrder(int width, int height) {
+        int[] order = new int[width*height];
+        int index = 0;
+        for (int x = 0 ; x < width ; x++) {             // Top, left to right
+            order[index++] = x;
+        }
+        for (int y = 1 ; y < height ; y++) {            // Right, top to bottom
+            order[index++] = y*width + width-1;
+        }
+        if (height > 1) {
+            for (int x = width-2 ; x >= 0 ; x--) {      // Bottom, right to left
+                order[index++] = (height-1)*width + x;
+            }
+        }
+        if (width > 1) {
+            for (int y = height-2 ; y > 0 ; y--) {      // Left, bottom to top
+                order[index++] = y*width;
+            }
+        }
+        for (int y = 1 ; y < height-1 ; y++) {          // Interior, row by row
+            for (int x = 1 ; x < width-1 ; x++) {
+                order[index++] = y*width + x;
+            }
+        }
+        return order;
+    }
+
+    @Override
+    public void run() {
+        final long startTime = System.currentTimeMillis();
+        search();
+        log.info("Finished search with solved={} after {} attempts in {} ms",
+                 solved, attempts, System.currentTimeMillis()-startTime);
+    }
+
+    /**
+     * Performs the search. If a solution is found, it is placed on the board.
+     * @return true if a solution was found.
+     */
+    public boolean search() {
+        if (solved) {
+            return true;
+        }
+        if (!resumed) {
+            if (order.length == 0) {
+                return solved = true;
+            }
+            depth = 0;
+            fillCandidates(depth);
+        }
+        resumed = false;
+        while (!stop.get()) {
+            if ((attempts & 0xFFFF) == 0 && System.currentTimeMillis() >= nextCheckpoint) {
+                writeCheckpoint();
+            }
+            if (candidateIndex[depth] == candidateCounts[depth]) { // All candidates tried at this depth
+                if (depth == 0) {
+                    exhausted = true;
+                    return false;
+                }
+                --depth;
+                final int field = order[depth];
+                used[cells[field] >>> 2] = false;
+                cells[field] = -1;
+                continue;
+            }
+
+            final int rotated = candidates[depth][candidateIndex[depth]++];
+            attempts++;
+            cells[order[depth]] = rotated;
+            used[rotated >>> 2] = true;
+            ++depth;
+
+            if (depth > maxDepth) {
+                maxDepth = depth;
+                System.arraycopy(cells, 0, best, 0, cells.length);
+                System.out.println("Placed: " + maxDepth + "/" + order.length);
+            }
+            if (depth == order.length) { // Bottom reached
+                solved = true;
+                applyToBoard();
+                return true;
+            }
+            if (attempts >= nextPrint) {
+                System.out.println("Attempts: " + attempts/1000000 + "M, depth=" + depth + ", max=" + maxDepth);
+                nextPrint = attempts + printDelta;
+            }
+            fillCandidates(depth);
+        }
+        if (checkpointFile != null) { // Stopped from the outside
+            writeCheckpoint();
+        }
+        return false;
+    }
+
+    /**
+     * Enables periodic persistence of the search state during {@link #search()}. A checkpoint is also written if
+     * the search is stopped.
+     * @param checkpointFile where to store the checkpoint. Overwritten on each checkpoint.
+     * @param intervalMS     the minimum time between checkpoints.
+     */
+    public void setCheckpointing(Path checkpointFile, long intervalMS) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMS = intervalMS;
+        nextCheckpoint = System.currentTimeMillis() + intervalMS;
+    }
+
+    private void writeCheckpoint() {
+        try {
+            getCheckpoint().write(checkpointFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write checkpoint to '" + checkpointFile + "'", e);
+        }
+        log.debug("Wrote checkpoint with depth {} and {} attempts to {}", depth, attempts, checkpointFile);
+        nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMS;
+    }
+
+    /**
+     * @return the current state of the search. Fixed pieces are not part of the checkpoint.
+     */
+    public SearchCheckpoint getCheckpoint() {
+        final int[][] placements = new int[depth][];
+        for (int d = 0 ; d < depth ; d++) {
+            final int field = order[d];
+            placements[d] = new int[]{field % width, field / width, cells[field] >>> 2, cells[field] & 3};
+        }
+        return new SearchCheckpoint(width, height, attempts, placements, Arrays.copyOf(candidateIndex, depth+1));
+    }
+
+    /**
+     * Restores the explicit stack from the checkpoint. The board must have the same fixed pieces as the board used
+     * for the checkpointed search. Call {@link #search()} to continue the search.
+     * @throws IllegalStateException if the checkpoint does not match the candidates for the board.
+     */
+    public void resume(SearchCheckpoint checkpoint) {
+        checkpoint.checkDimensions(board);
+        if (checkpoint.getDepth() > order.length) {
+            throw new IllegalStateException("The checkpoint depth " + checkpoint.getDepth() +
+                                            " exceeds the " + order.length + " free fields");
+        }
+        for (depth = 0 ; depth < checkpoint.getDepth() ; depth++) {
+            fillCandidates(depth);
+            final int[] placement = checkpoint.getPlacement(depth);
+            final int field = order[depth];
+            final int next = checkpoint.getNextIndex(depth);
+            if (placement[0] != field % width || placement[1] != field / width ||
+                next < 1 || next > candidateCounts[depth] ||
+                candidates[depth][next-1] != (placement[2] << 2 | placement[3])) {
+                throw new IllegalStateException(
+                        "The checkpoint move " + Arrays.toString(placement) + " at depth " + depth +
+                        " does not match the candidates for the board");
+            }
+            candidateIndex[depth] = next;
+            cells[field] = placement[2] << 2 | placement[3];
+            used[placement[2]] = true;
+        }
+        if (depth == order.length) {
+            solved = true;
+            applyToBoard();
+            return;
+        }
+        fillCandidates(depth);
+        if (checkpoint.getNextIndex(depth) > candidateCounts[depth]) {
+            throw new IllegalStateException("The checkpoint next index " + checkpoint.getNextIndex(depth) +
+                                            " at depth " + depth + " exceeds the " + candidateCounts[depth] +
+                                            " candidates");
+        }
+        candidateIndex[depth] = checkpoint.getNextIndex(depth);
+        attempts = checkpoint.getAttempts();
+        nextPrint = attempts + printDelta;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+            System.arraycopy(cells, 0, best, 0, cells.length);
+        }
+        resumed = true;
+        log.info("Resumed search at depth {} with {} attempts", depth, attempts);
+    }
+
+    /**
+     * Resolve all free rotated pieces that fits the field at the given depth and store them in the stack.
+     */
+    private void fillCandidates(int depth) {
+        final int field = order[depth];
+        final int x = field % width;
+        final int y = field / width;
+        final int north = getNeighbourEdge(x, y-1, EPieces.SOUTH_SHIFT);
+        final int east =  getNeighbourEdge(x+1, y, 0);
+        final int south = getNeighbourEdge(x, y+1, EPieces.NORTH_SHIFT);
+        final int west =  getNeighbourEdge(x-1, y, EPieces.EAST_SHIFT);
+
+        final int[] source = north != -1 && west != -1 ?
+                pieces.getByNorthWest(north, west) :
+                fieldCandidates[field];
+        final int[] buffer = candidates[depth];
+        int count = 0;
+        for (int rotated: source) {
+            if (used[rotated >>> 2]) {
+                continue;
+            }
+            final int edges = pieces.getPacked(rotated);
+            if (matches(north, EPieces.getNorth(edges)) && matches(east, EPieces.getEast(edges)) &&
+                matches(south, EPieces.getSouth(edges)) && matches(west, EPieces.getWest(edges))) {
+                buffer[count++] = rotated;
+            }
+        }
+        candidateCounts[depth] = count;
+        candidateIndex[depth] = 0;
+    }
+
+    /**
+     * @param required the required edge or -1 if the neighbour is an empty field.
+     * @param edge     the edge of the candidate piece.
+     * @return true if the edge satisfies the requirement. Empty neighbouring fields cannot use board-edges.
+     */
+    private static boolean matches(int required, int edge) {
+        return required == -1 ? edge != EPieces.EDGE_EDGE : edge == required;
+    }
+
+    /**
+     * @param shift the shift for the edge of the neighbour that faces the field.
+     * @return the facing edge of the neighbour, EPieces.EDGE_EDGE if outside the board and -1 if there is no piece.
+     */
+    private int getNeighbourEdge(int x, int y, int shift) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return EPieces.EDGE_EDGE;
+        }
+        final int rotated = cells[y*width+x];
+        return rotated == -1 ? -1 : (pieces.getPacked(rotated) >>> shift) & EPieces.EDGE_MASK;
+    }
+
+    /**
+     * @return all rotated pieces with board-edges exactly at the sides of the field that faces outside the board.
+     */
+    static int[] resolveFieldCandidates(EPieces pieces, int width, int height, int field) {
+        final int x = field % width;
+        final int y = field / width;
+        final int north = y == 0 ? EPieces.EDGE_EDGE : -1;
+        final int east = x == width-1 ? EPieces.EDGE_EDGE : -1;
+        final int south = y == height-1 ? EPieces.EDGE_EDGE : -1;
+        final int west = x == 0 ? EPieces.EDGE_EDGE : -1;
+        return pieces.allPieces()
+                .flatMap(piece -> Arrays.stream(new int[]{piece << 2, piece << 2 | 1, piece << 2 | 2, piece << 2 | 3}))
+                .filter(rotated -> {
+                    final int edges = pieces.getPacked(rotated);
+                    return matches(north, EPieces.getNorth(edges)) && matches(east, EPieces.getEast(edges)) &&
+                           matches(south, EPieces.getSouth(edges)) && matches(west, EPieces.getWest(edges));
+                })
+                .toArray();
+    }
+
+    private void applyToBoard() {
+        for (int field: order) {
+            if (!board.placePiece(field % width, field / width, cells[field] >>> 2, cells[field] & 3, "")) {
+                throw new IllegalStateException(
+                        "Unable to place solution piece " + (cells[field] >>> 2) +
+                        " at (" + field % width + ", " + field / width + ")");
+            }
+        }
+    }
+
+    /**
+     * @return the fields with the most placed pieces encountered during search, as rotated pieces
+     *         ({@code piece << 2 | rotation}) or -1 for no piece, indexed by {@code y*width+x}.
+     */
+    public int[] getBest() {
+        return best.clone();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public boolean isSolved() {
+        return solved;
+    }
+
+    /**
+     * @return true if the search tried all candidates without finding a solution and without being stopped.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The frontier of a depth first search: The placed moves and the index of the next candidate to try at each depth.
+ * Used by {@link BacktrackSolver} and {@link RowScanSolver} to persist the search so that it can be resumed after
+ * a restart. As the candidates for a given board state are deterministic, this is sufficient to reconstruct the
+ * full explicit stack of the solver. The solvers replay the placements themselves in their {@code resume} methods,
+ * validating each move against the candidates at its depth.
+ *
+ * {@link ParallelBacktrackSolver} does not support checkpoints: Its sub-searches run concurrently and would each
+ * need their own checkpoint.
+ *
+ * Binary format (big endian, as written by {@link DataOutputStream}):
+ * <pre>
+ * int MAGIC, int VERSION, short width, short height, long attempts, int depth,
+ * depth * (byte x, byte y, short piece, byte rotation, int nextIndex),
+ * int nextIndex (for the current depth, where no piece has been placed yet)
+ * </pre>
+ */
+public class SearchCheckpoint {
+    public static final int MAGIC = 0x45324350; // E2CP
+    public static final int VERSION = 1;
+
+    private final int width;
+    private final int height;
+    private final long attempts;
+    private final int[][] placements; // [depth][x, y, piece, rotation]
+    private final int[] nextIndex;    // [depth+1]
+
+    /**
+     * @param placements the placed moves as {@code [depth][x, y, piece, rotation]}.
+     * @param nextIndex  the index of the next candidate to try at each depth. One entry longer than placements.
+     */
+    public SearchCheckpoint(int width, int height, long attempts, int[][] placements, int[] nextIndex) {
+        if (nextIndex.length != placements.length+1) {
+            throw new IllegalArgumentException(
+                    "Expected " + (placements.length+1) + " next indexes but got " + nextIndex.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.attempts = attempts;
+        this.placements = placements;
+        this.nextIndex = nextIndex;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and moves it into place, so that a crash during writing does not
+     * destroy the previous checkpoint.
+     */
+    public void write(Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeLong(attempts);
+            out.writeInt(placements.length);
+            for (int d = 0 ; d < placements.length ; d++) {
+                out.writeByte(placements[d][0]);
+                out.writeByte(placements[d][1]);
+                out.writeShort(placements[d][2]);
+                out.writeByte(placements[d][3]);
+                out.writeInt(nextIndex[d]);
+            }
+            out.writeInt(nextIndex[placements.length]);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static SearchCheckpoint read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("The file '" + file + "' is not a search checkpoint (magic=" + magic + ")");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in '" + file + "'");
+            }
+            final int width = in.readShort();
+            final int height = in.readShort();
+            final long attempts = in.readLong();
+            final int depth = in.readInt();
+            final int[][] placements = new int[depth][];
+            final int[] nextIndex = new int[depth+1];
+            for (int d = 0 ; d < depth ; d++) {
+                placements[d] = new int[]{in.readUnsignedByte(), in.readUnsignedByte(),
+                                          in.readUnsignedShort(), in.readUnsignedByte()};
+                nextIndex[d] = in.readInt();
+            }
+            nextIndex[depth] = in.readInt();
+            return new SearchCheckpoint(width, height, attempts, placements, nextIndex);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the dimensions of the board does not match the checkpoint.
+     */
+    public void checkDimensions(EBoard board) {
+        if (board.getWidth() != width || board.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "The checkpoint is for a " + width + "x" + height + " board but the board is " +
+                    board.getWidth() + "x" + board.getHeight());
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the number of placed moves.
+     */
+    public int getDepth() {
+        return placements.length;
+    }
+
+    /**
+     * @return {@code [x, y, piece, rotation]} for the move at the given depth.
+     */
+    public int[] getPlacement(int depth) {
+        return placements[depth];
+    }
+
+    /**
+     * @return the index of the next candidate to try at the given depth (0 to {@link #getDepth()} inclusive).
+     */
+    public int getNextIndex(int depth) {
+        return nextIndex[depth];
+    }
+
+    @Override
+    public String toString() {
+        return "SearchCheckpoint(" + width + "x" + height + ", depth=" + placements.length +
+               ", attempts=" + attempts + ")";
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.eternii;
+
+/**
+ * Bounded and lossy set of board hashes (see {@link EBoard#getHash()}).
+ *
+ * The set is direct mapped: A new hash overwrites whatever hash occupied its slot, so memory usage is fixed and
+ * {@link #add(long)} is a single array lookup. Previously added boards can be forgotten, but a board is only
+ * reported as seen on a 64 bit hash collision.
+ */
+public class SeenBoards {
+    public static final int DEFAULT_BITS = 20; // 1M entries = 8MB
+
+    private final long[] hashes;
+    private final int mask;
+
+    public SeenBoards() {
+        this(DEFAULT_BITS);
+    }
+
+    /**
+     * @param bits the size of the set is {@code 2^bits} entries.
+     */
+    public SeenBoards(int bits) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30 (inclusive) but was " + bits);
+        }
+        hashes = new long[1 << bits];
+        mask = hashes.length-1;
+    }
+
+    /**
+     * @param hash a board hash.
+     * @return true if the hash was not already in the set.
+     */
+    public boolean add(long hash) {
+        if (hash == 0) { // 0 marks an empty slot
+            hash = 1;
+        }
+        final int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        if (hashes[slot] == hash) {
+            return false;
+        }
+        hashes[slot] = hash;
+        return true;
+    }
+
+    public int capacity() {
+        return hashes.length;
+    }
+}
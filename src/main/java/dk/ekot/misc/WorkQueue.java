@@ -0,0 +1,269 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.misc;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * File system based queue of work units, allowing multiple JVMs on the same or different machines to cooperate
+ * on a search using a shared folder and no external services.
+ *
+ * Work units are small text files that moves between the folders
+ * <ul>
+ *   <li>{@code pending/}: Units waiting to be processed</li>
+ *   <li>{@code claimed/}: Units being processed. The modification time of the unit is the heartbeat</li>
+ *   <li>{@code done/}: Processed units, together with their {@code .result} file</li>
+ * </ul>
+ * Claiming is done with an atomic rename from {@code pending/} to {@code claimed/}: Only one worker can succeed.
+ * Workers that die leave their units in {@code claimed/} with stale heartbeats; they can be moved back to
+ * {@code pending/} with {@link #requeueStale(long)}.
+ *
+ * Note: Atomic renames are guaranteed on local file systems and NFSv3+, but not on all network file systems.
+ */
+public class WorkQueue {
+    private static Log log = LogFactory.getLog(WorkQueue.class);
+
+    public static final String UNIT = ".unit";
+    public static final String RESULT = ".result";
+
+    private final Path pending;
+    private final Path claimed;
+    private final Path done;
+
+    /**
+     * Opens or creates a work queue at the given folder.
+     */
+    public WorkQueue(Path root) throws IOException {
+        pending = Files.createDirectories(root.resolve("pending"));
+        claimed = Files.createDirectories(root.resolve("claimed"));
+        done = Files.createDirectories(root.resolve("done"));
+    }
+
+    /**
+     * Adds a work unit to the queue. If a unit with the same ID is already pending, it is overwritten.
+     * @param id      unique ID for the unit. Must be usable as part of a file name.
+     * @param payload the description of the work.
+     */
+    public void add(String id, String payload) throws IOException {
+        writeAtomically(pending.resolve(id + UNIT), payload, ".tmp");
+    }
+
+    /**
+     * Attempts to claim a pending unit. The units are tried in lexicographical order of their IDs.
+     * @param workerId the ID of the worker, used for logging.
+     * @return a claimed unit or null if there are no pending units.
+     */
+    public Unit claim(String workerId) throws IOException {
+        for (Path candidate: list(pending, UNIT)) {
+            final Path target = claimed.resolve(candidate.getFileName());
+            final String payload;
+            try {
+                // Touch before the rename, so a concurrent requeueStale never sees the enqueue time in claimed/
+                Files.setLastModifiedTime(candidate, FileTime.fromMillis(System.currentTimeMillis()));
+                Files.move(candidate, target, StandardCopyOption.ATOMIC_MOVE);
+                payload = new String(Files.readAllBytes(target), StandardCharsets.UTF_8);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                continue; // Claimed by another worker
+            }
+            final Unit unit = new Unit(toID(target), payload, target, workerId);
+            log.debug("Worker " + workerId + " claimed " + unit.id);
+            return unit;
+        }
+        return null;
+    }
+
+    /**
+     * Signals that the unit is still being processed.
+     */
+    public void heartbeat(Unit unit) throws IOException {
+        Files.setLastModifiedTime(unit.claimedFile, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Stores the result for the unit and moves it to {@code done/}.
+     * @return true if the unit was moved to {@code done/}, false if it had been requeued because of a stale
+     *         heartbeat. The result is stored in both cases.
+     */
+    public boolean complete(Unit unit, String result) throws IOException {
+        writeAtomically(done.resolve(unit.id + RESULT), result, "." + unit.workerId + ".tmp");
+        try {
+            Files.move(unit.claimedFile, done.resolve(unit.id + UNIT),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (NoSuchFileException e) {
+            log.info("Worker " + unit.workerId + " completed " + unit.id + ", but it had been requeued");
+            return false;
+        }
+    }
+
+    /**
+     * Moves claimed units with a heartbeat older than maxAgeMS back to {@code pending/}.
+     * @return the number of requeued units.
+     */
+    public int requeueStale(long maxAgeMS) throws IOException {
+        final long limit = System.currentTimeMillis() - maxAgeMS;
+        int requeued = 0;
+        for (Path unit: list(claimed, UNIT)) {
+            try {
+                if (Files.getLastModifiedTime(unit).toMillis() >= limit) {
+                    continue;
+                }
+                Files.move(unit, pending.resolve(unit.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                log.info("Requeued stale unit " + toID(unit));
+                requeued++;
+            } catch (NoSuchFileException e) {
+                // Completed or requeued by another worker
+            }
+        }
+        return requeued;
+    }
+
+    /**
+     * Claims and processes units until there are no more pending units. While a unit is processed, a background
+     * thread updates its heartbeat.
+     * @param workerId    the ID of the worker, used for logging.
+     * @param processor   takes the payload of a unit and returns the result.
+     * @param heartbeatMS the interval between heartbeats.
+     * @return the number of processed units, not counting units that were requeued while being processed.
+     */
+    public int processAll(String workerId, Function<String, String> processor, long heartbeatMS) throws IOException {
+        final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "WorkQueue-heartbeat-" + workerId);
+            t.setDaemon(true);
+            return t;
+        });
+        int processed = 0;
+        try {
+            Unit unit;
+            while ((unit = claim(workerId)) != null) {
+                final Unit current = unit;
+                ScheduledFuture<?> beat = heartbeats.scheduleWithFixedDelay(() -> {
+                    try {
+                        heartbeat(current);
+                    } catch (IOException e) {
+                        log.warn("Unable to update heartbeat for " + current.id, e);
+                    }
+                }, heartbeatMS, heartbeatMS, TimeUnit.MILLISECONDS);
+                final long startTime = System.currentTimeMillis();
+                final String result;
+                try {
+                    result = processor.apply(unit.payload);
+                } finally {
+                    beat.cancel(false);
+                }
+                if (complete(unit, result)) {
+                    log.info("Worker " + workerId + " completed " + unit.id + " in " +
+                             (System.currentTimeMillis()-startTime) + "ms");
+                    processed++;
+                }
+            }
+        } finally {
+            heartbeats.shutdownNow();
+        }
+        return processed;
+    }
+
+    /**
+     * @return the result for a completed unit or null if the unit has not been completed.
+     */
+    public String getResult(String id) throws IOException {
+        final Path result = done.resolve(id + RESULT);
+        return Files.exists(result) ? new String(Files.readAllBytes(result), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @return the IDs of all completed units, sorted.
+     */
+    public List<String> getDoneIDs() throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (Path unit: list(done, UNIT)) {
+            ids.add(toID(unit));
+        }
+        return ids;
+    }
+
+    public int getPendingCount() throws IOException {
+        return list(pending, UNIT).size();
+    }
+
+    public int getClaimedCount() throws IOException {
+        return list(claimed, UNIT).size();
+    }
+
+    public int getDoneCount() throws IOException {
+        return list(done, UNIT).size();
+    }
+
+    private static List<Path> list(Path folder, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + suffix)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static String toID(Path unit) {
+        final String name = unit.getFileName().toString();
+        return name.substring(0, name.length()-UNIT.length());
+    }
+
+    private static void writeAtomically(Path file, String content, String tmpSuffix) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + tmpSuffix);
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * A claimed work unit.
+     */
+    public static class Unit {
+        public final String id;
+        public final String payload;
+        private final Path claimedFile;
+        private final String workerId;
+
+        private Unit(String id, String payload, Path claimedFile, String workerId) {
+            this.id = id;
+            this.payload = payload;
+            this.claimedFile = claimedFile;
+            this.workerId = workerId;
+        }
+
+        @Override
+        public String toString() {
+            return "Unit(id=" + id + ", payload=" + payload + ")";
+        }
+    }
+}
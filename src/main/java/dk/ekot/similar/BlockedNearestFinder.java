@@ -0,0 +1,234 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exact nearest neighbour for batches of queries.
+ *
+ * The point range is split into one slice per thread, with the same semantics as
+ * {@link #findNearest(int, int, int)}, and the per-slice results are merged afterwards.
+ * Inside a slice the points are processed in tiles of {@code pointBlock} points and each tile is compared against
+ * {@code queryBlock} queries before moving on, so the vectors of the tile are read from cache instead of memory
+ * for all but the first query. The query vectors of a block are copied to a local array for the same reason.
+ *
+ * Distances are calculated with early termination, using the k'th best distance seen so far for the query.
+ * Ties are resolved to the lowest point index, same as the single query {@link NearestFinder}.
+ */
+public class BlockedNearestFinder extends NearestFinder implements AutoCloseable {
+    private static Log log = LogFactory.getLog(BlockedNearestFinder.class);
+
+    public static final int DEFAULT_TILE_BYTES = 256*1024; // Typical L2 size
+    public static final int DEFAULT_QUERY_BLOCK = 32;
+
+    private final int threads;
+    private final int pointBlock;
+    private final int queryBlock;
+    private final ExecutorService executor;
+
+    public BlockedNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockedNearestFinder(MultiDimPoints multiDimPoints, int threads) {
+        this(multiDimPoints, threads,
+             Math.max(1, DEFAULT_TILE_BYTES / (multiDimPoints.getDimensions() * Double.BYTES)),
+             DEFAULT_QUERY_BLOCK);
+    }
+
+    /**
+     * @param multiDimPoints the points to search.
+     * @param threads        the number of slices to split the points into. 1 means no extra threads.
+     * @param pointBlock     the number of points in a tile.
+     * @param queryBlock     the number of queries that are processed against a tile before moving to the next tile.
+     */
+    public BlockedNearestFinder(MultiDimPoints multiDimPoints, int threads, int pointBlock, int queryBlock) {
+        super(multiDimPoints);
+        if (threads < 1 || pointBlock < 1 || queryBlock < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "threads (%d), pointBlock (%d) and queryBlock (%d) must all be >= 1",
+                    threads, pointBlock, queryBlock));
+        }
+        this.threads = threads;
+        this.pointBlock = pointBlock;
+        this.queryBlock = queryBlock;
+        executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "BlockedNearestFinder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return findNearest(new int[]{basePoint})[0];
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        NearestHeap heap = new NearestHeap(1);
+        scan(new int[]{basePoint}, startPoint, endPoint, new NearestHeap[]{heap});
+        return first(basePoint, heap.toNearest(basePoint));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        return findKNearest(new int[]{basePoint}, k)[0];
+    }
+
+    /**
+     * Find the nearest neighbour for all the given points.
+     * @param basePoints the points to find nearest neighbours for.
+     * @return the nearest neighbours, aligned with basePoints.
+     */
+    public Nearest[] findNearest(int[] basePoints) {
+        Nearest[][] kNearest = findKNearest(basePoints, 1);
+        Nearest[] result = new Nearest[basePoints.length];
+        for (int q = 0; q < basePoints.length; q++) {
+            result[q] = first(basePoints[q], kNearest[q]);
+        }
+        return result;
+    }
+
+    /**
+     * Find the k nearest neighbours for all the given points.
+     * @param basePoints the points to find nearest neighbours for.
+     * @param k          the maximum number of neighbours for each point.
+     * @return the nearest neighbours sorted by ascending distance, aligned with basePoints.
+     */
+    public Nearest[][] findKNearest(int[] basePoints, int k) {
+        final int[] ks = new int[basePoints.length];
+        Arrays.fill(ks, k);
+        return findKNearest(basePoints, ks);
+    }
+
+    /**
+     * Find nearest neighbours for all the given points, with an individual k for each point. All points are answered
+     * with a single scan.
+     * @param basePoints the points to find nearest neighbours for.
+     * @param ks         the maximum number of neighbours for each point, aligned with basePoints.
+     * @return the nearest neighbours sorted by ascending distance, aligned with basePoints.
+     */
+    public Nearest[][] findKNearest(int[] basePoints, int[] ks) {
+        if (ks.length != basePoints.length) {
+            throw new IllegalArgumentException(
+                    "There must be a k for each of the " + basePoints.length + " points, but got " + ks.length);
+        }
+        final int slices = executor == null ? 1 :
+                Math.min(threads, Math.max(1, multiDimPoints.getPoints() / pointBlock));
+        final NearestHeap[][] heaps = new NearestHeap[slices][basePoints.length];
+        final int sliceSize = (multiDimPoints.getPoints() + slices - 1) / slices;
+
+        if (slices == 1) {
+            initHeaps(heaps[0], ks);
+            scan(basePoints, 0, multiDimPoints.getPoints(), heaps[0]);
+        } else {
+            List<Future<?>> jobs = new ArrayList<>(slices);
+            for (int slice = 0; slice < slices; slice++) {
+                final int s = slice;
+                final int start = slice * sliceSize;
+                final int end = Math.min(start + sliceSize, multiDimPoints.getPoints());
+                jobs.add(executor.submit(() -> {
+                    initHeaps(heaps[s], ks);
+                    scan(basePoints, start, end, heaps[s]);
+                }));
+            }
+            for (Future<?> job: jobs) {
+                try {
+                    job.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for nearest neighbour search", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Exception during nearest neighbour search", e.getCause());
+                }
+            }
+        }
+
+        // The heaps resolve ties to the lowest point, so the merged result matches a single threaded scan
+        Nearest[][] result = new Nearest[basePoints.length][];
+        for (int q = 0; q < basePoints.length; q++) {
+            NearestHeap merged = heaps[0][q];
+            for (int slice = 1; slice < slices; slice++) {
+                NearestHeap heap = heaps[slice][q];
+                for (int i = 0 ; i < heap.size() ; i++) {
+                    merged.offer(heap.getPoint(i), heap.getDistance(i));
+                }
+            }
+            result[q] = merged.toNearest(basePoints[q]);
+        }
+        return result;
+    }
+
+    private void initHeaps(NearestHeap[] heaps, int[] ks) {
+        for (int i = 0 ; i < heaps.length ; i++) {
+            heaps[i] = new NearestHeap(ks[i]);
+        }
+    }
+
+    /**
+     * Offer the points from startPoint (inclusive) to endPoint (exclusive) to the heaps for the basePoints.
+     */
+    private void scan(int[] basePoints, int startPoint, int endPoint, NearestHeap[] heaps) {
+        final int dims = multiDimPoints.getDimensions();
+        final VectorStorage storage = multiDimPoints.getStorage();
+        final double[] queries = new double[Math.min(queryBlock, basePoints.length) * dims];
+        for (int queryStart = 0; queryStart < basePoints.length; queryStart += queryBlock) {
+            final int queryEnd = Math.min(queryStart + queryBlock, basePoints.length);
+            for (int q = queryStart; q < queryEnd; q++) {
+                final int offset = (q - queryStart) * dims;
+                for (int dim = 0; dim < dims; dim++) {
+                    queries[offset + dim] = multiDimPoints.get(dim, basePoints[q]);
+                }
+            }
+
+            for (int tileStart = startPoint; tileStart < endPoint; tileStart += pointBlock) {
+                final int tileEnd = Math.min(tileStart + pointBlock, endPoint);
+                for (int q = queryStart; q < queryEnd; q++) {
+                    final int basePoint = basePoints[q];
+                    final int offset = (q - queryStart) * dims;
+                    final NearestHeap heap = heaps[q];
+                    for (int point = tileStart; point < tileEnd; point++) {
+                        if (point == basePoint) {
+                            continue;
+                        }
+                        heap.offer(point, storage.atMostDistanceSquared(heap.getBound(), queries, offset, point));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Shut down the worker threads. The finder can still be used single threaded via
+     * {@link #findNearest(int, int, int)} after close.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
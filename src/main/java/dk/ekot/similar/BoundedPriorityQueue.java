@@ -1,49 +0,0 @@
-/*
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *  You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and
- *  limitations under the License.
- *
- */
-package dk.ekot.similar;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.PriorityQueue;
-
-/**
- *
- */
-class BoundedPriorityQueue<T> extends PriorityQueue<T> {
-    final int maxSize;
-
-    public BoundedPriorityQueue(int maxSize) {
-        this.maxSize = maxSize;
-    }
-
-    @Override
-    public boolean add(T t) {
-        boolean reply = super.add(t);
-        if (size() > maxSize) {
-            poll();
-        }
-        return reply;
-    }
-
-    @Override
-    public boolean offer(T t) {
-        boolean reply = super.offer(t);
-        if (size() > maxSize) {
-            poll();
-        }
-        return reply;
-    }
-}
@@ -14,44 +14,27 @@
  */
 package dk.ekot.similar;
 
-import java.io.*;
+import java.io.IOException;
 import java.nio.file.Paths;
 
 /**
  * converts a file with floating point numbers represented as text to float-bits.
+ *
+ * The default conversion produces a {@link VectorFile} with dimensions and point count in the header, using a
+ * {@link VectorIngester} for parallel parsing.
  */
 public class ConvertTextToFloat {
 
     public static void main(String[] args) throws IOException {
-        convert("/home/te/projects/ponder-this/pixplot_vectors_270707.txt.gz", " ", Integer.MAX_VALUE,
-                "/home/te/projects/ponder-this/pixplot_vectors_270707.bin");
+        convert("/home/te/projects/ponder-this/pixplot_vectors_270707.txt.gz", Integer.MAX_VALUE,
+                "/home/te/projects/ponder-this/pixplot_vectors_270707" + VectorFile.EXTENSION);
     }
 
-    private static void convert(String in, String splitRegexp, int maxLines, String out) throws IOException {
+    private static void convert(String in, int maxLines, String out) throws IOException {
         System.out.println("Converting " + in + " to " + out);
-        int totalLines = 0;
-        try (BufferedReader input = MultiDimPoints.getReader(Paths.get(in)) ;
-             OutputStream os = new FileOutputStream(out) ;
-             OutputStream bos = new BufferedOutputStream(os) ;
-             DataOutputStream dos = new DataOutputStream(bos)
-        ) {
-            String line;
-            while ((line = input.readLine()) != null) {
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue;
-                }
-                totalLines++;
-                for (String floatStr : line.split(splitRegexp)) {
-                    dos.writeFloat(Float.parseFloat(floatStr));
-                }
-                if (totalLines == maxLines) {
-                    break;
-                }
-                if (totalLines % 1000 == 0) {
-                    System.out.println(totalLines);
-                }
-            }
-        }
-        System.out.println("Finished converting " + totalLines + " lines");
+        final long startTime = System.nanoTime();
+        final long points = new VectorIngester().convert(Paths.get(in), Paths.get(out), maxLines);
+        System.out.println(String.format("Finished converting %d lines in %d ms",
+                                         points, (System.nanoTime()-startTime)/1000000L));
     }
 }
@@ -17,7 +17,6 @@ package dk.ekot.similar;
 import dk.ekot.misc.Bitmap;
 
 import java.util.Arrays;
-import java.util.PriorityQueue;
 import java.util.Random;
 
 /**
@@ -30,6 +29,9 @@ import java.util.Random;
  * matching divides are taken as candidates for proper distance comparison.
  *
  * Unsolved problem: Too many all- _and_ too many none-matches.
+ *
+ * Superseded by {@link LSHNearestFinder}, which uses multiple tables of random projections and bucket lookups
+ * instead of comparing the divides for all points.
  */
 public class DiceNearestFinder extends NearestFinder {
     final Divide[] divides;
@@ -109,41 +111,27 @@ public class DiceNearestFinder extends NearestFinder {
 
     @Override
     public Nearest findNearest(int basePoint) {
+        return first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
         final Bitmap baseDivides = pointDivides[basePoint];
-        PriorityQueue<DivideCandidate> topCandidates = new BoundedPriorityQueue<>(CANDIDATES);
+        // Negative matches as the heap keeps the smallest values
+        NearestHeap topCandidates = new NearestHeap(Math.max(k, CANDIDATES));
         for (int point = 0; point < multiDimPoints.points ; point++) {
             if (point == basePoint) {
                 continue;
             }
-            topCandidates.add(new DivideCandidate(point, (int) baseDivides.countIntersectingBits(pointDivides[point])));
-        }
-
-        double bestDist = Double.MAX_VALUE;
-        int bestPoint = -1;
-        while (!topCandidates.isEmpty()) {
-            DivideCandidate candidate = topCandidates.poll();
-            double dist = this.atMostDistanceSquared(bestDist, basePoint, candidate.point);
-            if (dist < bestDist) {
-                bestDist = dist;
-                bestPoint = candidate.point;
-            }
-        }
-        return new Nearest(basePoint, bestPoint, bestDist);
-    }
-
-    public static class DivideCandidate implements Comparable<DivideCandidate> {
-        final int point;
-        final int divideMatches;
-
-        public DivideCandidate(int point, int divideMatches) {
-            this.point = point;
-            this.divideMatches = divideMatches;
+            topCandidates.offer(point, -baseDivides.countIntersectingBits(pointDivides[point]));
         }
 
-        @Override
-        public int compareTo(DivideCandidate other) {
-            return Integer.compare(divideMatches, other.divideMatches);
+        NearestHeap nearest = new NearestHeap(k);
+        for (int i = 0 ; i < topCandidates.size() ; i++) {
+            final int candidate = topCandidates.getPoint(i);
+            nearest.offer(candidate, atMostDistanceSquared(nearest.getBound(), basePoint, candidate));
         }
+        return nearest.toNearest(basePoint);
     }
 
     private static class Divide {
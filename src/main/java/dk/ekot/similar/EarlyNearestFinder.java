@@ -37,17 +37,16 @@ public class EarlyNearestFinder extends NearestFinder {
 
     @Override
     protected double getDistance(double shortest, int basePoint, int point) {
-        final int STEP = 100;
         double distance = 0;
-        for (int dimMajor = 0; dimMajor < multiDimPoints.getDimensions(); dimMajor += STEP) {
-            final int dimMax = Math.min(dimMajor + STEP, multiDimPoints.getDimensions());
+        for (int dimMajor = 0, dimMax; dimMajor < multiDimPoints.getDimensions(); dimMajor = dimMax) {
+            dimMax = nextCheck(dimMajor, multiDimPoints.getDimensions());
             for (int dim = dimMajor; dim < dimMax; dim++) {
                 final double diff = multiDimPoints.get(dim, basePoint) - multiDimPoints.get(dim, point);
                 distance += (diff * diff);
             }
             if (distance > shortest) {
                 //System.out.print("[" + dimMajor + "]");
-                dimChecks += dimMajor;
+                dimChecks += dimMax;
                 return distance;
             }
         }
@@ -0,0 +1,458 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reproducible recall/latency benchmark for {@link NearestFinderBase} implementations.
+ *
+ * The exact k nearest neighbours for a seeded random sample of query points are calculated once with a
+ * {@link BlockedNearestFinder} and cached to disk, keyed on the shape and a sampled fingerprint of the points.
+ * Each {@link Candidate} is built once per build parameter set and then measured for every value of its query time
+ * parameter sweep.
+ * Each measurement is a CSV line with recall@k, queries/second, p50/p99 latency, build time and the heap growth
+ * during build, so all finders can be compared on the same recall/speed Pareto front.
+ *
+ * Queries are issued one at a time from a single thread after a warm up, so latencies are comparable across finders
+ * regardless of their internal threading.
+ */
+public class FinderBenchmark {
+    private static Log log = LogFactory.getLog(FinderBenchmark.class);
+
+    public static final String CSV_HEADER =
+            "finder,build_parameters,query_parameters,points,dimensions,k,queries," +
+            "recall,qps,p50_ms,p99_ms,build_ms,memory_mb";
+    public static final int DEFAULT_WARMUP = 50;
+
+    private static final int MAGIC = 0x47545255; // GTRU
+    private static final int VERSION = 2;
+    private static final int FINGERPRINT_SAMPLES = 4096;
+
+    private final MultiDimPoints multiDimPoints;
+    private final int k;
+    private final int[] queries;
+    private final int[][] truth; // query index, neighbours
+    private int warmup = DEFAULT_WARMUP;
+
+    /**
+     * @param multiDimPoints the points to search.
+     * @param queryCount     the number of query points, sampled from the points.
+     * @param k              the number of neighbours to find for each query.
+     * @param seed           seed for the query sample.
+     * @param truthCache     file for caching the ground truth. Null means no caching.
+     */
+    public FinderBenchmark(MultiDimPoints multiDimPoints, int queryCount, int k, long seed, Path truthCache)
+            throws IOException {
+        this.multiDimPoints = multiDimPoints;
+        this.k = k;
+        this.queries = KMeans.createSample(multiDimPoints.getPoints(), queryCount, seed);
+        int[][] cached = truthCache != null && Files.exists(truthCache) ? loadTruth(truthCache) : null;
+        if (cached == null) {
+            cached = calculateTruth();
+            if (truthCache != null) {
+                saveTruth(truthCache, cached);
+            }
+        }
+        this.truth = cached;
+    }
+
+    /**
+     * @param warmup the number of queries to issue before measuring each setting.
+     */
+    public void setWarmup(int warmup) {
+        this.warmup = warmup;
+    }
+
+    private int[][] calculateTruth() {
+        final long startTime = System.nanoTime();
+        try (BlockedNearestFinder exact = new BlockedNearestFinder(multiDimPoints)) {
+            Nearest[][] nearest = exact.findKNearest(queries, k);
+            int[][] result = new int[queries.length][];
+            for (int q = 0 ; q < queries.length ; q++) {
+                result[q] = toPoints(nearest[q]);
+            }
+            log.info(String.format("Calculated ground truth for %d queries with k=%d in %dms",
+                                   queries.length, k, (System.nanoTime()-startTime)/1000000L));
+            return result;
+        }
+    }
+
+    private void saveTruth(Path file, int[][] truth) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(multiDimPoints.getPoints());
+            out.writeInt(multiDimPoints.getDimensions());
+            out.writeLong(fingerprint());
+            out.writeInt(k);
+            out.writeInt(queries.length);
+            for (int q = 0 ; q < queries.length ; q++) {
+                out.writeInt(queries[q]);
+                out.writeInt(truth[q].length);
+                for (int point: truth[q]) {
+                    out.writeInt(point);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the cached ground truth or null if it is for other points, queries or k.
+     */
+    private int[][] loadTruth(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("The file '" + file + "' is not a ground truth file. It will be overwritten");
+                return null;
+            }
+            if (in.readInt() != multiDimPoints.getPoints() || in.readInt() != multiDimPoints.getDimensions() ||
+                in.readLong() != fingerprint() || in.readInt() != k || in.readInt() != queries.length) {
+                log.info("The ground truth in '" + file + "' is for other points or settings. Re-calculating");
+                return null;
+            }
+            int[][] result = new int[queries.length][];
+            for (int q = 0 ; q < queries.length ; q++) {
+                if (in.readInt() != queries[q]) {
+                    log.info("The ground truth in '" + file + "' is for other queries. Re-calculating");
+                    return null;
+                }
+                result[q] = new int[in.readInt()];
+                for (int i = 0 ; i < result[q].length ; i++) {
+                    result[q][i] = in.readInt();
+                }
+            }
+            log.info("Loaded ground truth for " + queries.length + " queries from '" + file + "'");
+            return result;
+        }
+    }
+
+    /**
+     * Hashing all values would mean reading the full vector file on every run, even when the cached ground truth
+     * is valid. The points and dimensions are checked separately, so sampling the values is enough to catch other
+     * data with the same shape.
+     * @return a hash of {@link #FINGERPRINT_SAMPLES} evenly spaced values, including the first and the last.
+     */
+    private long fingerprint() {
+        final long size = multiDimPoints.size();
+        final long samples = Math.min(size, FINGERPRINT_SAMPLES);
+        long hash = 17;
+        for (long sample = 0 ; sample < samples ; sample++) {
+            final long index = samples == 1 ? 0 : sample*(size-1)/(samples-1);
+            hash = hash*31 + Double.doubleToLongBits(multiDimPoints.getStorage().get(index));
+        }
+        return hash;
+    }
+
+    /**
+     * Measure all build and query parameter combinations for the candidate.
+     */
+    public List<Result> measure(Candidate<?> candidate) {
+        return candidate.measure(this);
+    }
+
+    /**
+     * Measure all candidates, writing the results to out as CSV as they are available.
+     */
+    public List<Result> measure(List<Candidate<?>> candidates, PrintStream out) {
+        List<Result> results = new ArrayList<>();
+        out.println(CSV_HEADER);
+        for (Candidate<?> candidate: candidates) {
+            for (Result result: candidate.measure(this)) {
+                out.println(result.toCSV());
+                out.flush();
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    private Result measureQueries(String finder, String buildParameters, String queryParameters,
+                                  NearestFinderBase instance, long buildMS, long memoryBytes) {
+        for (int i = 0 ; i < Math.min(warmup, queries.length) ; i++) {
+            instance.findKNearest(queries[i], k);
+        }
+        final long[] latencies = new long[queries.length];
+        long found = 0;
+        long expected = 0;
+        for (int q = 0 ; q < queries.length ; q++) {
+            final long startTime = System.nanoTime();
+            final Nearest[] nearest = instance.findKNearest(queries[q], k);
+            latencies[q] = System.nanoTime() - startTime;
+
+            final Set<Integer> truthSet = new HashSet<>();
+            for (int point: truth[q]) {
+                truthSet.add(point);
+            }
+            for (Nearest n: nearest) {
+                if (truthSet.contains(n.point)) {
+                    found++;
+                }
+            }
+            expected += truth[q].length;
+        }
+        long totalNS = 0;
+        for (long latency: latencies) {
+            totalNS += latency;
+        }
+        Arrays.sort(latencies);
+        return new Result(finder, buildParameters, queryParameters, multiDimPoints.getPoints(),
+                          multiDimPoints.getDimensions(), k, queries.length,
+                          expected == 0 ? 1.0 : found * 1.0 / expected,
+                          totalNS == 0 ? 0 : queries.length / (totalNS / 1000000000.0),
+                          percentile(latencies, 50), percentile(latencies, 99), buildMS, memoryBytes);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length-1, index))] / 1000000.0;
+    }
+
+    private static int[] toPoints(Nearest[] nearest) {
+        final int[] points = new int[nearest.length];
+        for (int i = 0 ; i < nearest.length ; i++) {
+            points[i] = nearest[i].point;
+        }
+        return points;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A finder with a number of build parameter sets and an optional query time parameter to sweep.
+     */
+    public static class Candidate<T extends NearestFinderBase> {
+        private final String name;
+        private final List<String> buildParameters = new ArrayList<>();
+        private final List<Function<MultiDimPoints, T>> builders = new ArrayList<>();
+        private String sweepName = null;
+        private int[] sweepValues = null;
+        private BiConsumer<T, Integer> sweepSetter = null;
+
+        public Candidate(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add a build parameter set.
+         * @param parameters description of the parameters, e.g. {@code "signals=10 fudge=2"}.
+         */
+        public Candidate<T> build(String parameters, Function<MultiDimPoints, T> builder) {
+            buildParameters.add(parameters);
+            builders.add(builder);
+            return this;
+        }
+
+        /**
+         * Measure every build with every value for a query time parameter.
+         */
+        public Candidate<T> sweep(String parameter, int[] values, BiConsumer<T, Integer> setter) {
+            sweepName = parameter;
+            sweepValues = values;
+            sweepSetter = setter;
+            return this;
+        }
+
+        private List<Result> measure(FinderBenchmark benchmark) {
+            List<Result> results = new ArrayList<>();
+            for (int b = 0 ; b < builders.size() ; b++) {
+                final long heapBefore = usedHeap();
+                final long startTime = System.nanoTime();
+                final T finder = builders.get(b).apply(benchmark.multiDimPoints);
+                final long buildMS = (System.nanoTime() - startTime) / 1000000L;
+                final long memoryBytes = Math.max(0, usedHeap() - heapBefore);
+                try {
+                    if (sweepValues == null) {
+                        results.add(benchmark.measureQueries(
+                                name, buildParameters.get(b), "", finder, buildMS, memoryBytes));
+                    } else {
+                        for (int value: sweepValues) {
+                            sweepSetter.accept(finder, value);
+                            results.add(benchmark.measureQueries(
+                                    name, buildParameters.get(b), sweepName + "=" + value,
+                                    finder, buildMS, memoryBytes));
+                        }
+                    }
+                } finally {
+                    if (finder instanceof AutoCloseable) {
+                        try {
+                            ((AutoCloseable) finder).close();
+                        } catch (Exception e) {
+                            log.warn("Exception closing " + name, e);
+                        }
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * @return all finders with parameter sweeps around their defaults.
+     */
+    public static List<Candidate<?>> defaultCandidates() {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        List<Candidate<?>> candidates = new ArrayList<>();
+        candidates.add(new Candidate<>("Dumb").build("", DumbNearestFinder::new));
+        candidates.add(new Candidate<>("Early").build("", EarlyNearestFinder::new));
+        candidates.add(new Candidate<>("Blocked").build("threads=" + threads, BlockedNearestFinder::new));
+        candidates.add(new Candidate<>("Length").build("", LengthNearestFinder::new));
+        candidates.add(new Candidate<>("Pivot")
+                               .build("pivots=8", points -> new PivotNearestFinder(points, 8, 87))
+                               .build("pivots=32", points -> new PivotNearestFinder(points, 32, 87)));
+        candidates.add(new Candidate<>("Random").build("", RandomFinder::new));
+        Candidate<StrongestSignalsFinder> signals = new Candidate<>("StrongestSignals");
+        for (int signalCount: new int[]{5, 10, 20, 40}) {
+            for (int matchFudge: new int[]{0, 2}) {
+                signals.build("signals=" + signalCount + " fudge=" + matchFudge,
+                              points -> new StrongestSignalsFinder(points, signalCount, matchFudge));
+            }
+        }
+        candidates.add(signals);
+        Candidate<DiceNearestFinder> dice = new Candidate<>("Dice");
+        for (int divides: new int[]{5, 10, 20}) {
+            dice.build("divides=" + divides, points -> new DiceNearestFinder(points, divides));
+        }
+        candidates.add(dice);
+        Candidate<LSHNearestFinder> lsh = new Candidate<>("LSH");
+        for (int tables: new int[]{8, 16, 32}) {
+            lsh.build("tables=" + tables + " bits=" + LSHNearestFinder.DEFAULT_BITS,
+                      points -> new LSHNearestFinder(points, tables, LSHNearestFinder.DEFAULT_BITS, 87));
+        }
+        candidates.add(lsh.sweep("probeRadius", new int[]{0, 1, 2}, LSHNearestFinder::setProbeRadius));
+        candidates.add(new Candidate<IVFNearestFinder>("IVF")
+                               .build("lists=sqrt(points)", IVFNearestFinder::new)
+                               .sweep("nprobe", new int[]{1, 4, 16, 64}, IVFNearestFinder::setNprobe));
+        candidates.add(new Candidate<HNSWNearestFinder>("HNSW")
+                               .build("m=16 efConstruction=100",
+                                      points -> new HNSWNearestFinder(points, 16, 100, threads))
+                               .sweep("efSearch", new int[]{16, 64, 256}, HNSWNearestFinder::setEfSearch));
+        candidates.add(new Candidate<QuantizedNearestFinder>("Quantized")
+                               .build("scalar", QuantizedNearestFinder::new)
+                               .sweep("rerank", new int[]{1, 10, 50}, QuantizedNearestFinder::setRerank));
+        return candidates;
+    }
+
+    /**
+     * The measurements for one build and query parameter combination.
+     */
+    public static class Result {
+        public final String finder;
+        public final String buildParameters;
+        public final String queryParameters;
+        public final int points;
+        public final int dimensions;
+        public final int k;
+        public final int queries;
+        public final double recall;
+        public final double qps;
+        public final double p50MS;
+        public final double p99MS;
+        public final long buildMS;
+        public final long memoryBytes;
+
+        public Result(String finder, String buildParameters, String queryParameters, int points, int dimensions,
+                      int k, int queries, double recall, double qps, double p50MS, double p99MS,
+                      long buildMS, long memoryBytes) {
+            this.finder = finder;
+            this.buildParameters = buildParameters;
+            this.queryParameters = queryParameters;
+            this.points = points;
+            this.dimensions = dimensions;
+            this.k = k;
+            this.queries = queries;
+            this.recall = recall;
+            this.qps = qps;
+            this.p50MS = p50MS;
+            this.p99MS = p99MS;
+            this.buildMS = buildMS;
+            this.memoryBytes = memoryBytes;
+        }
+
+        public String toCSV() {
+            return String.format(Locale.ENGLISH, "%s,%s,%s,%d,%d,%d,%d,%.4f,%.1f,%.3f,%.3f,%d,%.1f",
+                                 finder, buildParameters, queryParameters, points, dimensions, k, queries,
+                                 recall, qps, p50MS, p99MS, buildMS, memoryBytes / 1048576.0);
+        }
+
+        @Override
+        public String toString() {
+            return toCSV();
+        }
+    }
+
+    /**
+     * Usage: FinderBenchmark [points-file [maxPoints [queries [k [csv-file]]]]]
+     *
+     * Without a points file, 20,000 random points with 256 dimensions are used. The ground truth is cached next to
+     * the points file (or in the current folder for random points). Loaded points are stored with the dimensions
+     * ordered by descending variance, see {@link MultiDimPoints#orderByVariance()}.
+     */
+    public static void main(String[] args) throws IOException {
+        final int maxPoints = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+        final int queryCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        final int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        final MultiDimPoints multiDimPoints;
+        final Path truthCache;
+        if (args.length > 0) {
+            final Path input = Paths.get(args[0]);
+            multiDimPoints = MultiDimPoints.load(input, maxPoints, MultiDimPoints.STORAGE.floats);
+            // Must be done before any index is built. Distances are not affected, but early termination is faster
+            multiDimPoints.orderByVariance();
+            truthCache = input.resolveSibling(input.getFileName() + ".truth");
+        } else {
+            multiDimPoints = new MultiDimPoints(256, Math.min(maxPoints, 20_000), MultiDimPoints.STORAGE.floats);
+            multiDimPoints.fill(NearestNeighbour.DISTRIBUTION.random, false);
+            truthCache = Paths.get("random_" + multiDimPoints.getPoints() + "_256.truth");
+        }
+        FinderBenchmark benchmark = new FinderBenchmark(multiDimPoints, queryCount, k, 87, truthCache);
+        if (args.length > 4) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(args[4])), true, "utf-8")) {
+                benchmark.measure(defaultCandidates(), out);
+            }
+        } else {
+            benchmark.measure(defaultCandidates(), System.out);
+        }
+    }
+}
@@ -0,0 +1,620 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Hierarchical Navigable Small World graph, as described in https://arxiv.org/abs/1603.09320
+ *
+ * Each point is assigned a random top level with exponentially decreasing probability and is connected to up to
+ * {@code m} neighbours on each level from its top level down, and up to {@code 2*m} neighbours on level 0.
+ * Searches descend greedily from the top level entry point and do a beam search with {@code efSearch} candidates
+ * on level 0. Queries can be points in the graph or free vectors, see {@link #findKNearest(double[], int)}.
+ *
+ * Searches for a sub range of points traverse the full graph but only collect points from the range. Small ranges
+ * are scanned linearly instead, as the graph search would have to visit most of the graph to fill the result.
+ *
+ * Construction can be done with multiple threads: The neighbour lists of each point are guarded by the lock of the
+ * point, so inserts only contend when they update the same points. The graph can be stored with {@link #save} and
+ * loaded with {@link #load} instead of being re-built.
+ */
+public class HNSWNearestFinder extends NearestFinder {
+    private static Log log = LogFactory.getLog(HNSWNearestFinder.class);
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+    private static final int MAX_LEVEL = 16;
+
+    private static final int MAGIC = 0x484E5357; // HNSW
+    private static final int VERSION = 1;
+
+    private final int m;
+    private final int efConstruction;
+    private int efSearch = DEFAULT_EF_SEARCH;
+
+    private final int[] levels;              // point
+    private final int[][][] neighbours;      // point, level, neighbour
+    private final int[][] neighbourCounts;   // point, level
+    private final Object entryLock = new Object();
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    private final ThreadLocal<SearchState> searchStates;
+
+    public HNSWNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build the graph for all points.
+     * @param multiDimPoints the points to index.
+     * @param m              the number of neighbours for each point on levels above 0. Level 0 has 2*m.
+     * @param efConstruction the number of candidates to consider when selecting neighbours during construction.
+     * @param threads        the number of threads to use for construction.
+     */
+    public HNSWNearestFinder(MultiDimPoints multiDimPoints, int m, int efConstruction, int threads) {
+        this(multiDimPoints, m, efConstruction, createLevels(multiDimPoints.getPoints(), m));
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1 but was " + threads);
+        }
+        long ms = -System.currentTimeMillis();
+        if (multiDimPoints.getPoints() > 0) {
+            insert(0);
+        }
+        if (threads == 1) {
+            for (int point = 1 ; point < multiDimPoints.getPoints() ; point++) {
+                insert(point);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.submit(() -> IntStream.range(1, multiDimPoints.getPoints()).parallel().forEach(this::insert))
+                        .get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building HNSW graph", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Exception while building HNSW graph", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        ms += System.currentTimeMillis();
+        log.info(String.format("Built HNSW graph for %d points with m=%d, efConstruction=%d, maxLevel=%d " +
+                               "using %d threads in %dms",
+                               multiDimPoints.getPoints(), m, efConstruction, maxLevel, threads, ms));
+    }
+
+    private HNSWNearestFinder(MultiDimPoints multiDimPoints, int m, int efConstruction, int[] levels) {
+        super(multiDimPoints);
+        if (m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "m (%d) must be >= 2 and efConstruction (%d) must be >= 1", m, efConstruction));
+        }
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levels = levels;
+        neighbours = new int[levels.length][][];
+        neighbourCounts = new int[levels.length][];
+        for (int point = 0 ; point < levels.length ; point++) {
+            neighbours[point] = new int[levels[point]+1][];
+            neighbourCounts[point] = new int[levels[point]+1];
+            for (int level = 0 ; level <= levels[point] ; level++) {
+                neighbours[point][level] = new int[maxConnections(level)];
+            }
+        }
+        searchStates = ThreadLocal.withInitial(() -> new SearchState(levels.length, m, efConstruction));
+    }
+
+    /**
+     * Deterministic level assignment, independent of insertion order.
+     */
+    private static int[] createLevels(int points, int m) {
+        final double levelMultiplier = 1 / Math.log(m);
+        int[] levels = new int[points];
+        for (int point = 0 ; point < points ; point++) {
+            final double random = new Random(point * 0x9E3779B97F4A7C15L + 87).nextDouble();
+            levels[point] = Math.min(MAX_LEVEL, (int) (-Math.log(1 - random) * levelMultiplier));
+        }
+        return levels;
+    }
+
+    private int maxConnections(int level) {
+        return level == 0 ? 2*m : m;
+    }
+
+    /**
+     * @param efSearch the number of candidates to keep during search on level 0. Higher means better recall and
+     *                 slower searches. The effective value is at least k+1.
+     */
+    public void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new IllegalArgumentException("efSearch must be >= 1 but was " + efSearch);
+        }
+        this.efSearch = efSearch;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        return first(basePoint, findKNearest(basePoint, 1, startPoint, endPoint));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        return search(basePoint, null, k, 0, levels.length).toNearest(basePoint);
+    }
+
+    /**
+     * Graph search that only collects points from startPoint (inclusive) to endPoint (exclusive). Ranges with at
+     * most {@code efSearch} points are scanned linearly.
+     */
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k, int startPoint, int endPoint) {
+        if (endPoint - startPoint <= Math.max(efSearch, k+1)) {
+            return super.findKNearest(basePoint, k, startPoint, endPoint);
+        }
+        return search(basePoint, null, k, startPoint, endPoint).toNearest(basePoint);
+    }
+
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        return search(-1, vector, k, 0, levels.length).toNearest(-1);
+    }
+
+    /**
+     * Descend from the entry point and do a beam search on level 0.
+     * @param query  the point to search for or -1 if vector is given. The point itself is not part of the result.
+     * @param vector the values to search for or null if query is given.
+     * @return up to k points from startPoint (inclusive) to endPoint (exclusive), closest to the query.
+     */
+    private NearestHeap search(int query, double[] vector, int k, int startPoint, int endPoint) {
+        final NearestHeap result = new NearestHeap(k);
+        if (entryPoint == -1) {
+            return result;
+        }
+        final SearchState state = searchStates.get();
+        int current = entryPoint;
+        double currentDist = distance(Double.MAX_VALUE, query, vector, current);
+        for (int level = maxLevel ; level > 0 ; level--) {
+            current = greedyClosest(query, vector, current, currentDist, level, state);
+            currentDist = state.greedyDistance;
+        }
+        // +1 as the query point itself is part of the graph
+        NearestHeap found = searchLayer(query, vector, current, Math.max(efSearch, k+1), 0,
+                                        startPoint, endPoint, state);
+        for (int i = 0 ; i < found.size() ; i++) {
+            if (found.getPoint(i) != query) {
+                result.offer(found.getPoint(i), found.getDistance(i));
+            }
+        }
+        return result;
+    }
+
+    /* Construction */
+
+    private void insert(int point) {
+        final int level = levels[point];
+        int current;
+        int top;
+        synchronized (entryLock) {
+            if (entryPoint == -1) {
+                entryPoint = point;
+                maxLevel = level;
+                return;
+            }
+            current = entryPoint;
+            top = maxLevel;
+        }
+
+        final SearchState state = searchStates.get();
+        double currentDist = exactDistanceSquared(point, current);
+        for (int l = top ; l > level ; l--) {
+            current = greedyClosest(point, null, current, currentDist, l, state);
+            currentDist = state.greedyDistance;
+        }
+
+        for (int l = Math.min(level, top) ; l >= 0 ; l--) {
+            NearestHeap found = searchLayer(point, null, current, efConstruction, l, 0, levels.length, state);
+            final int count = found.toSorted(state.sortedPoints, state.sortedDistances);
+            current = state.sortedPoints[0];
+
+            final int selected = selectNeighbours(
+                    state.sortedPoints, state.sortedDistances, count, m, state.selected);
+            synchronized (neighbours[point]) {
+                System.arraycopy(state.selected, 0, neighbours[point][l], 0, selected);
+                neighbourCounts[point][l] = selected;
+            }
+            for (int i = 0 ; i < selected ; i++) {
+                connect(state.selected[i], point, l);
+            }
+        }
+
+        if (level > top) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = point;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add newPoint as neighbour to point, pruning the neighbours of point if there are too many.
+     */
+    private void connect(int point, int newPoint, int level) {
+        final int maxConnections = maxConnections(level);
+        synchronized (neighbours[point]) {
+            final int[] list = neighbours[point][level];
+            final int count = neighbourCounts[point][level];
+            if (count < maxConnections) {
+                list[count] = newPoint;
+                neighbourCounts[point][level]++;
+                return;
+            }
+
+            NearestHeap candidates = new NearestHeap(count+1);
+            for (int i = 0 ; i < count ; i++) {
+                candidates.offer(list[i], exactDistanceSquared(point, list[i]));
+            }
+            candidates.offer(newPoint, exactDistanceSquared(point, newPoint));
+            int[] sortedPoints = new int[count+1];
+            double[] sortedDistances = new double[count+1];
+            candidates.toSorted(sortedPoints, sortedDistances);
+            neighbourCounts[point][level] = selectNeighbours(
+                    sortedPoints, sortedDistances, count+1, maxConnections, list);
+        }
+    }
+
+    /**
+     * The neighbour selection heuristic from the paper: A candidate is selected if it is closer to the base than
+     * to any of the already selected neighbours, which favours neighbours in different directions. Remaining slots
+     * are filled with the closest of the discarded candidates to keep the graph well connected.
+     * @param sortedPoints    candidates sorted by ascending distance to the base.
+     * @param sortedDistances the distances for the candidates.
+     * @return the number of selected neighbours.
+     */
+    private int selectNeighbours(int[] sortedPoints, double[] sortedDistances, int count, int max, int[] selected) {
+        int selectedCount = 0;
+        boolean[] taken = new boolean[count];
+        for (int i = 0 ; i < count && selectedCount < max ; i++) {
+            boolean diverse = true;
+            for (int s = 0 ; s < selectedCount ; s++) {
+                if (atMostDistanceSquared(sortedDistances[i], sortedPoints[i], selected[s]) < sortedDistances[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[selectedCount++] = sortedPoints[i];
+                taken[i] = true;
+            }
+        }
+        for (int i = 0 ; i < count && selectedCount < max ; i++) {
+            if (!taken[i]) {
+                selected[selectedCount++] = sortedPoints[i];
+            }
+        }
+        return selectedCount;
+    }
+
+    /* Search */
+
+    /**
+     * @return the distance between the query (the point query or vector if not null) and point or a value larger
+     *         than atMost.
+     */
+    private double distance(double atMost, int query, double[] vector, int point) {
+        return vector == null ?
+                atMostDistanceSquared(atMost, query, point) :
+                atMostDistanceSquared(atMost, vector, point);
+    }
+
+    /**
+     * @return the point closest to query found by greedy descent on the given level. The distance is stored in
+     *         {@link SearchState#greedyDistance}.
+     */
+    private int greedyClosest(int query, double[] vector, int current, double currentDist, int level,
+                              SearchState state) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int count = copyNeighbours(current, level, state);
+            for (int i = 0 ; i < count ; i++) {
+                final int candidate = state.neighbourBuffer[i];
+                final double distance = distance(currentDist, query, vector, candidate);
+                if (distance < currentDist) {
+                    currentDist = distance;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        state.greedyDistance = currentDist;
+        return current;
+    }
+
+    /**
+     * Beam search on a single level. Points outside of startPoint (inclusive) to endPoint (exclusive) are traversed
+     * but not collected.
+     * @return the heap from the state, holding up to ef points closest to query. Valid until the next search.
+     */
+    private NearestHeap searchLayer(int query, double[] vector, int entry, int ef, int level,
+                                    int startPoint, int endPoint, SearchState state) {
+        state.startVisits();
+        final NearestHeap results = state.results;
+        final Candidates candidates = state.candidates;
+        results.reset(ef);
+        candidates.clear();
+
+        state.visit(entry);
+        final double entryDistance = distance(Double.MAX_VALUE, query, vector, entry);
+        if (entry >= startPoint && entry < endPoint) {
+            results.offer(entry, entryDistance);
+        }
+        candidates.push(entry, entryDistance);
+
+        while (!candidates.isEmpty()) {
+            if (candidates.peekDistance() > results.getBound()) {
+                break;
+            }
+            final int candidate = candidates.pop();
+            final int count = copyNeighbours(candidate, level, state);
+            for (int i = 0 ; i < count ; i++) {
+                final int neighbour = state.neighbourBuffer[i];
+                if (!state.visit(neighbour)) {
+                    continue;
+                }
+                final double distance = distance(results.getBound(), query, vector, neighbour);
+                final boolean expand = neighbour >= startPoint && neighbour < endPoint ?
+                        results.offer(neighbour, distance) :
+                        distance < results.getBound();
+                if (expand) {
+                    candidates.push(neighbour, distance);
+                }
+            }
+        }
+        return results;
+    }
+
+    private int copyNeighbours(int point, int level, SearchState state) {
+        synchronized (neighbours[point]) {
+            final int count = neighbourCounts[point][level];
+            System.arraycopy(neighbours[point][level], 0, state.neighbourBuffer, 0, count);
+            return count;
+        }
+    }
+
+    /* Persistence */
+
+    /**
+     * Store the graph. The points themselves are not stored. The file is written atomically.
+     */
+    public void save(Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(levels.length);
+            out.writeInt(multiDimPoints.getDimensions());
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int point = 0 ; point < levels.length ; point++) {
+                out.writeByte(levels[point]);
+                for (int level = 0 ; level <= levels[point] ; level++) {
+                    final int count = neighbourCounts[point][level];
+                    out.writeShort(count);
+                    for (int i = 0 ; i < count ; i++) {
+                        out.writeInt(neighbours[point][level][i]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a graph stored with {@link #save}.
+     * @param multiDimPoints the points that the graph was built from.
+     */
+    public static HNSWNearestFinder load(Path file, MultiDimPoints multiDimPoints) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("The file '" + file + "' is not a HNSW graph (magic=" + magic + ")");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported HNSW graph version " + version + " in '" + file + "'");
+            }
+            final int points = in.readInt();
+            final int dimensions = in.readInt();
+            if (points != multiDimPoints.getPoints() || dimensions != multiDimPoints.getDimensions()) {
+                throw new IOException(String.format(
+                        "The graph in '%s' is for %d points with %d dimensions, but the given points are %d with %d " +
+                        "dimensions", file, points, dimensions, multiDimPoints.getPoints(),
+                        multiDimPoints.getDimensions()));
+            }
+            final int m = in.readInt();
+            final int efConstruction = in.readInt();
+            final int entryPoint = in.readInt();
+            final int maxLevel = in.readInt();
+            final int[] levels = new int[points];
+            final int[][][] lists = new int[points][][];
+            for (int point = 0 ; point < points ; point++) {
+                levels[point] = in.readUnsignedByte();
+                lists[point] = new int[levels[point]+1][];
+                for (int level = 0 ; level <= levels[point] ; level++) {
+                    lists[point][level] = new int[in.readUnsignedShort()];
+                    for (int i = 0 ; i < lists[point][level].length ; i++) {
+                        lists[point][level][i] = in.readInt();
+                    }
+                }
+            }
+
+            HNSWNearestFinder finder = new HNSWNearestFinder(multiDimPoints, m, efConstruction, levels);
+            for (int point = 0 ; point < points ; point++) {
+                for (int level = 0 ; level <= levels[point] ; level++) {
+                    System.arraycopy(lists[point][level], 0, finder.neighbours[point][level], 0,
+                                     lists[point][level].length);
+                    finder.neighbourCounts[point][level] = lists[point][level].length;
+                }
+            }
+            finder.entryPoint = entryPoint;
+            finder.maxLevel = maxLevel;
+            return finder;
+        }
+    }
+
+    /**
+     * Per-thread buffers, so that searches do not allocate.
+     */
+    private static class SearchState {
+        final int[] visited;
+        int visitMark = 0;
+        final NearestHeap results = new NearestHeap(1);
+        final Candidates candidates = new Candidates();
+        final int[] neighbourBuffer;
+        final int[] selected;
+        final int[] sortedPoints;
+        final double[] sortedDistances;
+        double greedyDistance;
+
+        SearchState(int points, int m, int efConstruction) {
+            visited = new int[points];
+            neighbourBuffer = new int[2*m];
+            selected = new int[2*m];
+            sortedPoints = new int[efConstruction];
+            sortedDistances = new double[efConstruction];
+        }
+
+        void startVisits() {
+            if (++visitMark == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                visitMark = 1;
+            }
+        }
+
+        /**
+         * @return true if the point had not been visited since {@link #startVisits()}.
+         */
+        boolean visit(int point) {
+            if (visited[point] == visitMark) {
+                return false;
+            }
+            visited[point] = visitMark;
+            return true;
+        }
+    }
+
+    /**
+     * Unbounded min-heap of (point, distance) pairs, used as the candidate queue in {@link #searchLayer}.
+     */
+    private static class Candidates {
+        private int[] points = new int[64];
+        private double[] distances = new double[64];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        void push(int point, double distance) {
+            if (size == points.length) {
+                points = Arrays.copyOf(points, size*2);
+                distances = Arrays.copyOf(distances, size*2);
+            }
+            int index = size++;
+            while (index > 0) {
+                final int parent = (index-1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                points[index] = points[parent];
+                distances[index] = distances[parent];
+                index = parent;
+            }
+            points[index] = point;
+            distances[index] = distance;
+        }
+
+        int pop() {
+            final int top = points[0];
+            final int lastPoint = points[--size];
+            final double lastDistance = distances[size];
+            int index = 0;
+            final int half = size >>> 1;
+            while (index < half) {
+                int child = (index << 1) + 1;
+                if (child+1 < size && distances[child+1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= lastDistance) {
+                    break;
+                }
+                points[index] = points[child];
+                distances[index] = distances[child];
+                index = child;
+            }
+            points[index] = lastPoint;
+            distances[index] = lastDistance;
+            return top;
+        }
+    }
+}
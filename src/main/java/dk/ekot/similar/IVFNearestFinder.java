@@ -0,0 +1,154 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted file index: The points are partitioned by their nearest k-means centroid and searches only visit the
+ * {@code nprobe} lists with the centroids nearest to the base point.
+ *
+ * The centroids are trained on a random sample of the points. The point IDs of each list are stored contiguously
+ * in a single array, with list boundaries in a separate offsets array, so the overhead is 4 bytes/point plus the
+ * centroids. Distances to the points in the probed lists are calculated with {@link #atMostDistanceSquared},
+ * bounded by the k'th best distance found so far.
+ */
+public class IVFNearestFinder extends NearestFinder {
+    private static Log log = LogFactory.getLog(IVFNearestFinder.class);
+
+    public static final int DEFAULT_SAMPLE_SIZE = 100_000;
+    public static final int DEFAULT_ITERATIONS = 20;
+    public static final int DEFAULT_NPROBE = 8;
+
+    private final KMeans kMeans;
+    private final int[] listOffsets; // list -> start in listPoints, with an extra entry for the end
+    private final int[] listPoints;
+    private int nprobe = DEFAULT_NPROBE;
+
+    /**
+     * Creates an index with sqrt(points) lists.
+     */
+    public IVFNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, Math.max(1, (int) Math.sqrt(multiDimPoints.getPoints())), DEFAULT_SAMPLE_SIZE,
+             DEFAULT_ITERATIONS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param multiDimPoints the points to index.
+     * @param lists          the number of lists (centroids).
+     * @param sampleSize     the maximum number of points to train the centroids on.
+     * @param iterations     the maximum number of k-means iterations.
+     * @param threads        the number of threads to use for training and assignment.
+     */
+    public IVFNearestFinder(MultiDimPoints multiDimPoints, int lists, int sampleSize, int iterations, int threads) {
+        super(multiDimPoints);
+        final int points = multiDimPoints.getPoints();
+        long ms = -System.currentTimeMillis();
+        kMeans = new KMeans(multiDimPoints, KMeans.createSample(points, Math.max(lists, sampleSize), 87),
+                            lists, iterations, threads, 87);
+
+        // Assign all points in parallel, then lay out the lists with a counting sort
+        final int[] assignments = new int[points];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, points).parallel().forEach(
+                    point -> assignments[point] = kMeans.nearestCentroid(point))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while assigning points to lists", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while assigning points to lists", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        listOffsets = new int[lists+1];
+        for (int assignment: assignments) {
+            listOffsets[assignment+1]++;
+        }
+        for (int list = 0 ; list < lists ; list++) {
+            listOffsets[list+1] += listOffsets[list];
+        }
+        listPoints = new int[points];
+        final int[] next = new int[lists];
+        for (int point = 0 ; point < points ; point++) {
+            final int list = assignments[point];
+            listPoints[listOffsets[list] + next[list]++] = point;
+        }
+        ms += System.currentTimeMillis();
+        log.info(String.format("Built IVF index for %d points with %d lists in %dms", points, lists, ms));
+    }
+
+    /**
+     * @param nprobe the number of lists to search. Setting it to the number of lists gives exact results.
+     */
+    public void setNprobe(int nprobe) {
+        if (nprobe < 1) {
+            throw new IllegalArgumentException("nprobe must be >= 1 but was " + nprobe);
+        }
+        this.nprobe = nprobe;
+    }
+
+    public int getNprobe() {
+        return nprobe;
+    }
+
+    public int getLists() {
+        return kMeans.getK();
+    }
+
+    public int getListSize(int list) {
+        return listOffsets[list+1] - listOffsets[list];
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        return search(multiDimPoints.getVector(basePoint), basePoint, k);
+    }
+
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        return search(vector, -1, k);
+    }
+
+    private Nearest[] search(double[] vector, int basePoint, int k) {
+        final int probes = Math.min(nprobe, kMeans.getK());
+        NearestHeap nearestLists = new NearestHeap(probes);
+        for (int list = 0 ; list < kMeans.getK() ; list++) {
+            nearestLists.offer(list, kMeans.distanceSquared(vector, list, nearestLists.getBound()));
+        }
+
+        NearestHeap heap = new NearestHeap(k);
+        for (int i = 0 ; i < nearestLists.size() ; i++) {
+            final int list = nearestLists.getPoint(i);
+            for (int index = listOffsets[list] ; index < listOffsets[list+1] ; index++) {
+                final int point = listPoints[index];
+                if (point != basePoint) {
+                    heap.offer(point, atMostDistanceSquared(heap.getBound(), vector, point));
+                }
+            }
+        }
+        return heap.toNearest(basePoint);
+    }
+}
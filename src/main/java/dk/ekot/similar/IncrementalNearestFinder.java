@@ -0,0 +1,389 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Nearest neighbour search over a growing {@link SegmentedPoints}, with incremental indexing.
+ *
+ * Added points are first searched with a linear scan. When {@code sealPoints} points have been added, they are
+ * copied to a new {@link MultiDimPoints} and indexed with a finder from the factory in a background thread. When
+ * {@code mergeFactor} index segments of the same size tier exist, they are merged into a single segment in the
+ * background, dropping deleted points. The set of segments is replaced atomically, so searches are never blocked by
+ * indexing.
+ *
+ * Searches query each segment with {@link NearestFinder#findKNearest(double[], int)} and map the results back to
+ * the stable point IDs of the {@link SegmentedPoints}. Deleted points are filtered from the results, asking a
+ * segment for more neighbours if too many of them were deleted. {@link HNSWNearestFinder}, {@link IVFNearestFinder},
+ * {@link LSHNearestFinder}, {@link PivotNearestFinder}, {@link QuantizedNearestFinder} and
+ * {@link StrongestSignalsFinder} answer vector queries with their index. Other finders fall back to a linear scan of
+ * the segment.
+ *
+ * If the factory throws for a segment, e.g. {@link PivotNearestFinder} for fewer points than pivots, the segment is
+ * searched with a linear scan until it is merged, and the failure is reported by the next {@link #flush()}.
+ */
+public class IncrementalNearestFinder implements NearestFinderBase, AutoCloseable {
+    private static Log log = LogFactory.getLog(IncrementalNearestFinder.class);
+
+    public static final int DEFAULT_SEAL_POINTS = 10_000;
+    public static final int DEFAULT_MERGE_FACTOR = 4;
+
+    private final SegmentedPoints points;
+    private final Function<MultiDimPoints, NearestFinder> factory;
+    private final int sealPoints;
+    private final int mergeFactor;
+    private final ExecutorService background;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList(), 0);
+    private int sealed = 0; // Points scheduled for indexing, guarded by this
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>(); // First since last flush
+
+    public IncrementalNearestFinder(SegmentedPoints points, Function<MultiDimPoints, NearestFinder> factory) {
+        this(points, factory, DEFAULT_SEAL_POINTS, DEFAULT_MERGE_FACTOR);
+    }
+
+    /**
+     * @param points      the points to search. Points already in the storage are indexed immediately.
+     * @param factory     creates the finder for a segment, e.g. {@code IVFNearestFinder::new}.
+     * @param sealPoints  the number of unindexed points that triggers indexing of a new segment.
+     * @param mergeFactor the number of segments in a size tier that triggers a merge. Must be at least 2.
+     */
+    public IncrementalNearestFinder(SegmentedPoints points, Function<MultiDimPoints, NearestFinder> factory,
+                                    int sealPoints, int mergeFactor) {
+        if (sealPoints < 1 || mergeFactor < 2) {
+            throw new IllegalArgumentException(String.format(
+                    "sealPoints (%d) must be >= 1 and mergeFactor (%d) must be >= 2", sealPoints, mergeFactor));
+        }
+        this.points = points;
+        this.factory = factory;
+        this.sealPoints = sealPoints;
+        this.mergeFactor = mergeFactor;
+        background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IncrementalNearestFinder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        seal(false);
+    }
+
+    /**
+     * @param vector the values for all dimensions.
+     * @return the ID of the added point.
+     */
+    public int add(double[] vector) {
+        final int id = points.add(vector);
+        seal(false);
+        return id;
+    }
+
+    /**
+     * Delete the point. It is excluded from search results immediately and removed from the index when its
+     * segment is merged.
+     * @return true if the point was not already deleted.
+     */
+    public boolean delete(int id) {
+        return points.delete(id);
+    }
+
+    /**
+     * Index all added points and wait for all background indexing and merging to finish.
+     * @throws IllegalStateException if indexing of a segment failed since the last flush. The points of the segment
+     *                               are still searchable, with a linear scan.
+     */
+    public void flush() {
+        seal(true);
+        try {
+            background.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for indexing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while waiting for indexing", e.getCause());
+        }
+        final RuntimeException failed = failure.getAndSet(null);
+        if (failed != null) {
+            throw new IllegalStateException("Indexing failed, the affected points are searched linearly", failed);
+        }
+    }
+
+    /**
+     * Schedule indexing of whole blocks of sealPoints unindexed points, or all unindexed points if partial is true.
+     */
+    private synchronized void seal(boolean partial) {
+        final int size = points.size();
+        while (size - sealed >= sealPoints || (partial && size > sealed)) {
+            final int start = sealed;
+            final int end = Math.min(size, start + sealPoints);
+            sealed = end;
+            background.submit(() -> {
+                try {
+                    index(start, end);
+                    merge();
+                } catch (RuntimeException e) {
+                    log.error("Exception indexing points " + start + "-" + end, e);
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+    }
+
+    private void index(int start, int end) {
+        final int[] ids = liveIDs(start, end);
+        final Segment segment = ids.length == 0 ? null : createSegment(ids);
+        synchronized (this) {
+            List<Segment> segments = new ArrayList<>(snapshot.segments);
+            if (segment != null) {
+                segments.add(segment);
+            }
+            snapshot = new Snapshot(segments, end);
+        }
+    }
+
+    private int[] liveIDs(int start, int end) {
+        int[] ids = new int[end-start];
+        int live = 0;
+        for (int id = start ; id < end ; id++) {
+            if (!points.isDeleted(id)) {
+                ids[live++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, live);
+    }
+
+    /**
+     * Merge segments as long as any size tier holds mergeFactor segments.
+     */
+    private void merge() {
+        while (true) {
+            final List<Segment> segments = snapshot.segments;
+            List<Segment> merge = null;
+            for (int tier = 0 ; merge == null && tier < 32 ; tier++) {
+                List<Segment> inTier = new ArrayList<>();
+                for (Segment segment: segments) {
+                    if (getTier(segment) == tier) {
+                        inTier.add(segment);
+                    }
+                }
+                if (inTier.size() >= mergeFactor) {
+                    merge = inTier.subList(0, mergeFactor);
+                }
+            }
+            if (merge == null) {
+                return;
+            }
+
+            int[] ids = new int[0];
+            for (Segment segment: merge) {
+                final int offset = ids.length;
+                ids = Arrays.copyOf(ids, offset + segment.ids.length);
+                System.arraycopy(segment.ids, 0, ids, offset, segment.ids.length);
+            }
+            Arrays.sort(ids);
+            int live = 0;
+            for (int id: ids) {
+                if (!points.isDeleted(id)) {
+                    ids[live++] = id;
+                }
+            }
+            final Segment merged = live == 0 ? null : createSegment(Arrays.copyOf(ids, live));
+            synchronized (this) {
+                List<Segment> replaced = new ArrayList<>(snapshot.segments);
+                replaced.removeAll(merge);
+                if (merged != null) {
+                    replaced.add(merged);
+                }
+                snapshot = new Snapshot(replaced, snapshot.indexed);
+            }
+            log.debug("Merged " + merge.size() + " segments into " + live + " points");
+        }
+    }
+
+    /**
+     * @return 0 for segments up to sealPoints, 1 for segments up to sealPoints*mergeFactor and so on.
+     */
+    private int getTier(Segment segment) {
+        int tier = 0;
+        for (long limit = sealPoints ; segment.ids.length > limit ; limit *= mergeFactor) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * @return a segment indexed by a finder from the factory or, if the factory throws, a linearly scanned segment.
+     */
+    private Segment createSegment(int[] ids) {
+        final long startTime = System.nanoTime();
+        final MultiDimPoints segmentPoints = points.toMultiDimPoints(ids);
+        try {
+            final Segment segment = new Segment(ids, factory.apply(segmentPoints));
+            log.debug(String.format("Indexed segment with %d points in %dms",
+                                    ids.length, (System.nanoTime()-startTime)/1000000L));
+            return segment;
+        } catch (RuntimeException e) {
+            log.warn("Exception indexing segment with " + ids.length + " points. It will be searched linearly", e);
+            failure.compareAndSet(null, e);
+            return new Segment(ids, new DumbNearestFinder(segmentPoints));
+        }
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return NearestFinder.first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    /**
+     * Exact search among the points with IDs from startPoint (inclusive) to endPoint (exclusive). This is a linear
+     * scan of the range: Merged index segments hold points from several ID ranges and the segment finders cannot
+     * restrict vector queries to a range.
+     */
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        final double[] vector = points.getVector(basePoint);
+        final NearestHeap heap = new NearestHeap(1);
+        final int end = Math.min(endPoint, points.size());
+        for (int id = Math.max(0, startPoint) ; id < end ; id++) {
+            if (id != basePoint && !points.isDeleted(id)) {
+                heap.offer(id, atMostDistanceSquared(heap.getBound(), vector, id));
+            }
+        }
+        return NearestFinder.first(basePoint, heap.toNearest(basePoint));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        return search(points.getVector(basePoint), basePoint, k);
+    }
+
+    /**
+     * @return at most k nearest points to the vector, sorted by ascending distance, with basePoint -1.
+     */
+    public Nearest[] findKNearest(double[] vector, int k) {
+        return search(vector, -1, k);
+    }
+
+    private Nearest[] search(double[] vector, int basePoint, int k) {
+        final Snapshot current = snapshot;
+        final NearestHeap heap = new NearestHeap(k);
+        for (Segment segment: current.segments) {
+            searchSegment(segment, vector, basePoint, k, heap);
+        }
+        final int size = points.size();
+        for (int id = current.indexed ; id < size ; id++) {
+            if (id != basePoint && !points.isDeleted(id)) {
+                heap.offer(id, atMostDistanceSquared(heap.getBound(), vector, id));
+            }
+        }
+        return heap.toNearest(basePoint);
+    }
+
+    private void searchSegment(Segment segment, double[] vector, int basePoint, int k, NearestHeap heap) {
+        int request = Math.min(k + 1, segment.ids.length); // +1 as basePoint is probably in one of the segments
+        while (true) {
+            final Nearest[] found = segment.finder.findKNearest(vector, request);
+            int accepted = 0;
+            for (Nearest nearest: found) {
+                final int id = segment.ids[nearest.point];
+                if (id != basePoint && !points.isDeleted(id)) {
+                    accepted++;
+                }
+            }
+            if (accepted >= k || found.length < request || request == segment.ids.length) {
+                for (Nearest nearest: found) {
+                    final int id = segment.ids[nearest.point];
+                    if (id != basePoint && !points.isDeleted(id)) {
+                        heap.offer(id, nearest.distance);
+                    }
+                }
+                return;
+            }
+            request = (int) Math.min((long) request * 2, segment.ids.length);
+        }
+    }
+
+    private double atMostDistanceSquared(double atMost, double[] vector, int id) {
+        final int dimensions = points.getDimensions();
+        double distance = 0;
+        for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+            dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+            for (int dim = dimMajor; dim < dimMax; dim++) {
+                final double diff = vector[dim] - points.get(dim, id);
+                distance += (diff * diff);
+            }
+            if (distance > atMost) {
+                return distance;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * @return the number of index segments.
+     */
+    public int getSegmentCount() {
+        return snapshot.segments.size();
+    }
+
+    /**
+     * @return the number of points, counted from ID 0, that are covered by index segments.
+     */
+    public int getIndexedPoints() {
+        return snapshot.indexed;
+    }
+
+    public SegmentedPoints getPoints() {
+        return points;
+    }
+
+    @Override
+    public void close() {
+        background.shutdownNow();
+    }
+
+    private static class Segment {
+        final int[] ids; // local point -> ID in points
+        final NearestFinder finder;
+
+        Segment(int[] ids, NearestFinder finder) {
+            this.ids = ids;
+            this.finder = finder;
+        }
+    }
+
+    /**
+     * Immutable view of the index: The segments cover the points below indexed, later points are scanned.
+     */
+    private static class Snapshot {
+        final List<Segment> segments;
+        final int indexed;
+
+        Snapshot(List<Segment> segments, int indexed) {
+            this.segments = Collections.unmodifiableList(segments);
+            this.indexed = indexed;
+        }
+    }
+}
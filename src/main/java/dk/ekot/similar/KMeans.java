@@ -0,0 +1,276 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lloyd's k-means over a subset of the points in a {@link MultiDimPoints}, optionally restricted to a range of
+ * dimensions (used for the sub spaces in {@link ProductQuantizer}).
+ *
+ * Centroids are stored as a flat array with {@code centroid*dimensions + dimension} layout. Assignments and the
+ * accumulation of new centroids are split across threads, each thread summing its own share of the points before
+ * the partial sums are merged. Empty clusters are re-seeded with a random point from the sample.
+ */
+public class KMeans {
+    private static Log log = LogFactory.getLog(KMeans.class);
+
+    private final MultiDimPoints multiDimPoints;
+    private final int dimStart;
+    private final int dimensions;
+    private final int k;
+    private final double[] centroids;
+
+    /**
+     * Train centroids on the given sample.
+     * @param multiDimPoints the points.
+     * @param sample         the points to train on. Must contain at least k points.
+     * @param k              the number of centroids.
+     * @param iterations     the maximum number of iterations. Training stops earlier if no assignments change.
+     * @param threads        the number of threads to use.
+     * @param seed           seed for the initial centroids and re-seeding of empty clusters.
+     */
+    public KMeans(MultiDimPoints multiDimPoints, int[] sample, int k, int iterations, int threads, long seed) {
+        this(multiDimPoints, 0, multiDimPoints.getDimensions(), sample, k, iterations, threads, seed);
+    }
+
+    /**
+     * Train centroids on the given sample, only using the dimensions from dimStart (inclusive) to dimEnd (exclusive).
+     * Centroid dimension 0 corresponds to point dimension dimStart.
+     */
+    public KMeans(MultiDimPoints multiDimPoints, int dimStart, int dimEnd,
+                  int[] sample, int k, int iterations, int threads, long seed) {
+        if (k < 1 || sample.length < k) {
+            throw new IllegalArgumentException(String.format(
+                    "k (%d) must be >= 1 and the sample (%d points) must be at least k", k, sample.length));
+        }
+        if (dimStart < 0 || dimEnd <= dimStart || dimEnd > multiDimPoints.getDimensions()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid dimension range %d-%d for %d dimensions",
+                    dimStart, dimEnd, multiDimPoints.getDimensions()));
+        }
+        this.multiDimPoints = multiDimPoints;
+        multiDimPoints.markIndexed();
+        this.dimStart = dimStart;
+        this.dimensions = dimEnd - dimStart;
+        this.k = k;
+        this.centroids = new double[k*dimensions];
+
+        final Random random = new Random(seed);
+        int[] initial = sample.clone();
+        for (int c = 0 ; c < k ; c++) { // Partial Fisher-Yates for k distinct sample points
+            final int swapIndex = c + random.nextInt(initial.length - c);
+            final int swap = initial[c];
+            initial[c] = initial[swapIndex];
+            initial[swapIndex] = swap;
+            setCentroid(c, initial[c]);
+        }
+
+        final int[] assignments = new int[sample.length];
+        Arrays.fill(assignments, -1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long ms = -System.currentTimeMillis();
+            int iteration = 0;
+            for (; iteration < iterations ; iteration++) {
+                if (step(sample, assignments, executor, threads, random) == 0) {
+                    break;
+                }
+            }
+            ms += System.currentTimeMillis();
+            log.debug(String.format("Trained %d centroids on %d points in %d iterations (%dms)",
+                                    k, sample.length, iteration, ms));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Assign all sample points to their nearest centroid and calculate new centroids.
+     * @return the number of changed assignments.
+     */
+    private int step(int[] sample, int[] assignments, ExecutorService executor, int threads, Random random) {
+        final int chunkSize = (sample.length + threads - 1) / threads;
+        List<Future<Partial>> jobs = new ArrayList<>(threads);
+        for (int start = 0 ; start < sample.length ; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, sample.length);
+            jobs.add(executor.submit(() -> {
+                Partial partial = new Partial(k, dimensions);
+                for (int i = chunkStart ; i < chunkEnd ; i++) {
+                    final int point = sample[i];
+                    final int centroid = nearestCentroid(point);
+                    if (centroid != assignments[i]) {
+                        assignments[i] = centroid;
+                        partial.changed++;
+                    }
+                    partial.counts[centroid]++;
+                    final int offset = centroid*dimensions;
+                    for (int dim = 0 ; dim < dimensions ; dim++) {
+                        partial.sums[offset + dim] += multiDimPoints.get(dimStart + dim, point);
+                    }
+                }
+                return partial;
+            }));
+        }
+
+        Partial total = new Partial(k, dimensions);
+        for (Future<Partial> job: jobs) {
+            Partial partial = get(job);
+            total.changed += partial.changed;
+            for (int c = 0 ; c < k ; c++) {
+                total.counts[c] += partial.counts[c];
+            }
+            for (int i = 0 ; i < total.sums.length ; i++) {
+                total.sums[i] += partial.sums[i];
+            }
+        }
+
+        for (int c = 0 ; c < k ; c++) {
+            if (total.counts[c] == 0) {
+                setCentroid(c, sample[random.nextInt(sample.length)]);
+                continue;
+            }
+            final int offset = c*dimensions;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                centroids[offset + dim] = total.sums[offset + dim] / total.counts[c];
+            }
+        }
+        return total.changed;
+    }
+
+    /**
+     * @return up to sampleSize distinct random points from 0 (inclusive) to points (exclusive).
+     */
+    public static int[] createSample(int points, int sampleSize, long seed) {
+        int[] all = new int[points];
+        for (int i = 0 ; i < points ; i++) {
+            all[i] = i;
+        }
+        if (sampleSize >= points) {
+            return all;
+        }
+        Random random = new Random(seed);
+        for (int i = 0 ; i < sampleSize ; i++) {
+            final int swapIndex = i + random.nextInt(points - i);
+            final int swap = all[i];
+            all[i] = all[swapIndex];
+            all[swapIndex] = swap;
+        }
+        return Arrays.copyOf(all, sampleSize);
+    }
+
+    private static <T> T get(Future<T> job) {
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during k-means", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception during k-means", e.getCause());
+        }
+    }
+
+    private void setCentroid(int centroid, int point) {
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            centroids[centroid*dimensions + dim] = multiDimPoints.get(dimStart + dim, point);
+        }
+    }
+
+    /**
+     * @return the index of the centroid nearest to the given point.
+     */
+    public int nearestCentroid(int point) {
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int c = 0 ; c < k ; c++) {
+            final double distance = distanceSquared(point, c, bestDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the squared distance between the point and the centroid or a value larger than atMost.
+     */
+    public double distanceSquared(int point, int centroid, double atMost) {
+        final int offset = centroid*dimensions;
+        double distance = 0;
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            final double diff = multiDimPoints.get(dimStart + dim, point) - centroids[offset + dim];
+            distance += diff*diff;
+            if ((dim & 0x3F) == 0x3F && distance > atMost) {
+                return distance;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * @param vector the values for the dimensions of this k-means, starting at index 0.
+     * @return the squared distance between the vector and the centroid or a value larger than atMost.
+     */
+    public double distanceSquared(double[] vector, int centroid, double atMost) {
+        final int offset = centroid*dimensions;
+        double distance = 0;
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            final double diff = vector[dim] - centroids[offset + dim];
+            distance += diff*diff;
+            if ((dim & 0x3F) == 0x3F && distance > atMost) {
+                return distance;
+            }
+        }
+        return distance;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return the centroids with {@code centroid*dimensions + dimension} layout. This is the live array.
+     */
+    public double[] getCentroids() {
+        return centroids;
+    }
+
+    private static class Partial {
+        final double[] sums;
+        final int[] counts;
+        int changed = 0;
+
+        Partial(int k, int dimensions) {
+            sums = new double[k*dimensions];
+            counts = new int[k];
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The k nearest neighbours for all points, found by brute force.
+ *
+ * Candidates are selected with squared distances calculated as {@code |a|^2+|b|^2-2a.b} with pre-calculated norms,
+ * so the work is dominated by dot products. These are calculated for tiles of {@code rowBlock} rows against
+ * {@code columnBlock} columns, with both tiles copied to local arrays sized to stay in cache, and a kernel that
+ * calculates 4 rows against each column so that every loaded column value is used 4 times. Each thread processes
+ * whole row tiles and holds the {@link NearestHeap}s for its rows, so no synchronisation is needed. Symmetry is not
+ * exploited, as that would require updating heaps owned by other threads.
+ *
+ * The expansion loses precision through cancellation for close pairs, such as near-duplicates. The distances to the
+ * selected neighbours are therefore recalculated directly, at a cost of {@code points*degree*dimensions}, and the
+ * neighbours re-sorted, so stored order and distances are exact. Only the selection of the last neighbours can be
+ * affected by rounding, when candidates differ by less than the rounding error.
+ *
+ * The graph has a fixed degree of {@code min(k, points-1)} and is stored with {@link #save} in a compact binary
+ * format: A header followed by the neighbours as ints and the squared distances as floats, point by point.
+ */
+public class KNNGraph {
+    private static Log log = LogFactory.getLog(KNNGraph.class);
+
+    public static final int DEFAULT_ROW_BLOCK = 64;
+    public static final int DEFAULT_TILE_BYTES = 256*1024; // Typical L2 size
+
+    private static final int MAGIC = 0x4B4E4E47; // KNNG
+    private static final int VERSION = 1;
+
+    private final int points;
+    private final int degree;
+    private final int[] neighbours; // point*degree + i, sorted by ascending distance
+    private final float[] distances;
+
+    private KNNGraph(int points, int degree, int[] neighbours, float[] distances) {
+        this.points = points;
+        this.degree = degree;
+        this.neighbours = neighbours;
+        this.distances = distances;
+    }
+
+    public static KNNGraph build(MultiDimPoints multiDimPoints, int k) {
+        return build(multiDimPoints, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static KNNGraph build(MultiDimPoints multiDimPoints, int k, int threads) {
+        final int columnBlock = Math.max(
+                4, DEFAULT_TILE_BYTES / (multiDimPoints.getDimensions() * Double.BYTES));
+        return build(multiDimPoints, k, threads, DEFAULT_ROW_BLOCK, columnBlock);
+    }
+
+    /**
+     * @param multiDimPoints the points.
+     * @param k              the number of neighbours for each point.
+     * @param threads        the number of threads to use.
+     * @param rowBlock       the number of points to find neighbours for in each tile.
+     * @param columnBlock    the number of candidate points in each tile.
+     */
+    public static KNNGraph build(MultiDimPoints multiDimPoints, int k, int threads, int rowBlock, int columnBlock) {
+        if (k < 1 || threads < 1 || rowBlock < 1 || columnBlock < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "k (%d), threads (%d), rowBlock (%d) and columnBlock (%d) must all be >= 1",
+                    k, threads, rowBlock, columnBlock));
+        }
+        final int points = multiDimPoints.getPoints();
+        final int degree = Math.min(k, Math.max(0, points-1));
+        if ((long) points * degree > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many edges: " + points + " points * " + degree + " neighbours");
+        }
+        final long startTime = System.nanoTime();
+        final double[] norms = new double[points];
+        for (int point = 0 ; point < points ; point++) {
+            double norm = 0;
+            for (int dim = 0 ; dim < multiDimPoints.getDimensions() ; dim++) {
+                final double value = multiDimPoints.get(dim, point);
+                norm += value*value;
+            }
+            norms[point] = norm;
+        }
+
+        final int[] neighbours = new int[points*degree];
+        final float[] distances = new float[points*degree];
+        final AtomicInteger nextRowStart = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> jobs = new ArrayList<>(threads);
+            for (int t = 0 ; t < threads ; t++) {
+                jobs.add(executor.submit(() -> {
+                    Tiles tiles = new Tiles(multiDimPoints, norms, degree, rowBlock, columnBlock);
+                    int rowStart;
+                    while ((rowStart = nextRowStart.getAndAdd(rowBlock)) < points) {
+                        tiles.processRows(rowStart, Math.min(rowStart + rowBlock, points), neighbours, distances);
+                    }
+                }));
+            }
+            for (Future<?> job: jobs) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the k-NN graph", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while building the k-NN graph", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info(String.format("Built %d-NN graph for %d points @ %d dimensions with %d threads in %dms",
+                               degree, points, multiDimPoints.getDimensions(), threads,
+                               (System.nanoTime()-startTime)/1000000L));
+        return new KNNGraph(points, degree, neighbours, distances);
+    }
+
+    /**
+     * Per-thread tiles and heaps.
+     */
+    private static class Tiles {
+        private final MultiDimPoints multiDimPoints;
+        private final double[] norms;
+        private final int dimensions;
+        private final int degree;
+        private final int columnBlock;
+        private final double[] rows;
+        private final double[] columns;
+        private final double[] dots;    // row*columnBlock + column
+        private final NearestHeap[] heaps;
+
+        Tiles(MultiDimPoints multiDimPoints, double[] norms, int degree, int rowBlock, int columnBlock) {
+            this.multiDimPoints = multiDimPoints;
+            this.norms = norms;
+            this.dimensions = multiDimPoints.getDimensions();
+            this.degree = degree;
+            this.columnBlock = columnBlock;
+            rows = new double[rowBlock*dimensions];
+            columns = new double[columnBlock*dimensions];
+            dots = new double[rowBlock*columnBlock];
+            heaps = new NearestHeap[rowBlock];
+            for (int i = 0 ; i < rowBlock ; i++) {
+                heaps[i] = new NearestHeap(Math.max(1, degree));
+            }
+        }
+
+        void processRows(int rowStart, int rowEnd, int[] neighbours, float[] distances) {
+            final int rowCount = rowEnd - rowStart;
+            copy(rowStart, rowEnd, rows);
+            for (int i = 0 ; i < rowCount ; i++) {
+                heaps[i].clear();
+            }
+            final int points = multiDimPoints.getPoints();
+            for (int columnStart = 0 ; columnStart < points ; columnStart += columnBlock) {
+                final int columnEnd = Math.min(columnStart + columnBlock, points);
+                final int columnCount = columnEnd - columnStart;
+                copy(columnStart, columnEnd, columns);
+                dotProducts(rowCount, columnCount);
+                for (int i = 0 ; i < rowCount ; i++) {
+                    final int row = rowStart + i;
+                    final NearestHeap heap = heaps[i];
+                    final double rowNorm = norms[row];
+                    for (int j = 0 ; j < columnCount ; j++) {
+                        final int column = columnStart + j;
+                        if (column != row) {
+                            final double distance = rowNorm + norms[column] - 2*dots[i*columnBlock + j];
+                            heap.offer(column, Math.max(0, distance)); // Rounding can give tiny negatives
+                        }
+                    }
+                }
+            }
+            final int[] sortedPoints = new int[degree];
+            final double[] sortedDistances = new double[degree];
+            final VectorStorage storage = multiDimPoints.getStorage();
+            for (int i = 0 ; i < rowCount ; i++) {
+                final int row = rowStart + i;
+                heaps[i].toSorted(sortedPoints, sortedDistances);
+                for (int n = 0 ; n < degree ; n++) {
+                    sortedDistances[n] = storage.distanceSquared(row, sortedPoints[n]);
+                }
+                sortByDistance(sortedPoints, sortedDistances);
+                final int offset = row*degree;
+                for (int n = 0 ; n < degree ; n++) {
+                    neighbours[offset + n] = sortedPoints[n];
+                    distances[offset + n] = (float) sortedDistances[n];
+                }
+            }
+        }
+
+        /**
+         * Insertion sort by ascending distance, as the recalculated distances are nearly sorted.
+         */
+        private static void sortByDistance(int[] points, double[] distances) {
+            for (int i = 1 ; i < points.length ; i++) {
+                final int point = points[i];
+                final double distance = distances[i];
+                int j = i - 1;
+                for (; j >= 0 && distances[j] > distance ; j--) {
+                    points[j+1] = points[j];
+                    distances[j+1] = distances[j];
+                }
+                points[j+1] = point;
+                distances[j+1] = distance;
+            }
+        }
+
+        private void copy(int start, int end, double[] tile) {
+            for (int point = start ; point < end ; point++) {
+                final int offset = (point-start)*dimensions;
+                for (int dim = 0 ; dim < dimensions ; dim++) {
+                    tile[offset + dim] = multiDimPoints.get(dim, point);
+                }
+            }
+        }
+
+        /**
+         * Dot products for all rows against all columns, 4 rows at a time.
+         */
+        private void dotProducts(int rowCount, int columnCount) {
+            int i = 0;
+            for (; i + 3 < rowCount ; i += 4) {
+                final int r0 = i*dimensions;
+                final int r1 = r0 + dimensions;
+                final int r2 = r1 + dimensions;
+                final int r3 = r2 + dimensions;
+                for (int j = 0 ; j < columnCount ; j++) {
+                    final int c = j*dimensions;
+                    double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+                    for (int dim = 0 ; dim < dimensions ; dim++) {
+                        final double value = columns[c + dim];
+                        d0 += rows[r0 + dim] * value;
+                        d1 += rows[r1 + dim] * value;
+                        d2 += rows[r2 + dim] * value;
+                        d3 += rows[r3 + dim] * value;
+                    }
+                    dots[i*columnBlock + j] = d0;
+                    dots[(i+1)*columnBlock + j] = d1;
+                    dots[(i+2)*columnBlock + j] = d2;
+                    dots[(i+3)*columnBlock + j] = d3;
+                }
+            }
+            for (; i < rowCount ; i++) {
+                final int r = i*dimensions;
+                for (int j = 0 ; j < columnCount ; j++) {
+                    final int c = j*dimensions;
+                    double d = 0;
+                    for (int dim = 0 ; dim < dimensions ; dim++) {
+                        d += rows[r + dim] * columns[c + dim];
+                    }
+                    dots[i*columnBlock + j] = d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the graph. The file is written to a temporary file first, so a crash does not leave a partial graph.
+     */
+    public void save(Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(points);
+            out.writeInt(degree);
+            for (int point = 0 ; point < points ; point++) {
+                final int offset = point*degree;
+                for (int n = 0 ; n < degree ; n++) {
+                    out.writeInt(neighbours[offset + n]);
+                }
+                for (int n = 0 ; n < degree ; n++) {
+                    out.writeFloat(distances[offset + n]);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a graph stored with {@link #save}.
+     */
+    public static KNNGraph load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("The file '" + file + "' is not a k-NN graph (magic=" + magic + ")");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported k-NN graph version " + version + " in '" + file + "'");
+            }
+            final int points = in.readInt();
+            final int degree = in.readInt();
+            final int[] neighbours = new int[points*degree];
+            final float[] distances = new float[points*degree];
+            for (int point = 0 ; point < points ; point++) {
+                final int offset = point*degree;
+                for (int n = 0 ; n < degree ; n++) {
+                    neighbours[offset + n] = in.readInt();
+                }
+                for (int n = 0 ; n < degree ; n++) {
+                    distances[offset + n] = in.readFloat();
+                }
+            }
+            return new KNNGraph(points, degree, neighbours, distances);
+        }
+    }
+
+    /**
+     * @return the neighbours for the point, sorted by ascending squared distance.
+     */
+    public Nearest[] getNeighbours(int point) {
+        final Nearest[] result = new Nearest[degree];
+        for (int n = 0 ; n < degree ; n++) {
+            result[n] = new Nearest(point, getNeighbour(point, n), getDistance(point, n));
+        }
+        return result;
+    }
+
+    /**
+     * @return the n'th nearest neighbour for the point.
+     */
+    public int getNeighbour(int point, int n) {
+        return neighbours[point*degree + n];
+    }
+
+    /**
+     * @return the squared distance to the n'th nearest neighbour for the point.
+     */
+    public float getDistance(int point, int n) {
+        return distances[point*degree + n];
+    }
+
+    public int getPoints() {
+        return points;
+    }
+
+    /**
+     * @return the number of neighbours for each point: {@code min(k, points-1)}.
+     */
+    public int getDegree() {
+        return degree;
+    }
+}
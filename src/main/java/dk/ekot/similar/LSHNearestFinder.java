@@ -0,0 +1,224 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Locality sensitive hashing with sign random projections.
+ *
+ * Each of the {@code tables} hash tables has {@code bits} random hyperplanes through the mean of the points and
+ * the code for a point is the bit pattern of which side of the planes it is on. Points that are close tend to share
+ * codes, so candidates are the points in the same buckets as the base point, looked up with binary search in the
+ * sorted codes of each table. Multi-probe adds the buckets with codes within a Hamming distance of
+ * {@code probeRadius} from the base code.
+ *
+ * Compared to {@link DiceNearestFinder}, which compares the divides for all points, the candidate generation only
+ * touches the matching buckets. Candidates are compared with {@link #atMostDistanceSquared}.
+ */
+public class LSHNearestFinder extends NearestFinder {
+    private static Log log = LogFactory.getLog(LSHNearestFinder.class);
+
+    public static final int DEFAULT_TABLES = 16;
+    public static final int DEFAULT_BITS = 12;
+    public static final int DEFAULT_PROBE_RADIUS = 1;
+
+    private final int tables;
+    private final int bits;
+    private final double[] means;       // dimension
+    private final double[] planes;      // (table*bits + bit)*dimensions + dimension
+    private final long[][] buckets;     // table, (code << 32 | point) sorted
+    private int probeRadius = DEFAULT_PROBE_RADIUS;
+
+    private final ThreadLocal<Visited> visitedStates;
+
+    public LSHNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, DEFAULT_TABLES, DEFAULT_BITS, 87);
+    }
+
+    /**
+     * @param multiDimPoints the points to index.
+     * @param tables         the number of hash tables.
+     * @param bits           the number of hyperplanes (code bits) for each table. Max 32.
+     * @param seed           seed for the random hyperplanes.
+     */
+    public LSHNearestFinder(MultiDimPoints multiDimPoints, int tables, int bits, long seed) {
+        super(multiDimPoints);
+        if (tables < 1 || bits < 1 || bits > 32) {
+            throw new IllegalArgumentException(String.format(
+                    "tables (%d) must be >= 1 and bits (%d) must be between 1 and 32", tables, bits));
+        }
+        this.tables = tables;
+        this.bits = bits;
+        final int dimensions = multiDimPoints.getDimensions();
+        final int points = multiDimPoints.getPoints();
+
+        long ms = -System.currentTimeMillis();
+        means = new double[dimensions];
+        for (int point = 0 ; point < points ; point++) {
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                means[dim] += multiDimPoints.get(dim, point);
+            }
+        }
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            means[dim] /= Math.max(1, points);
+        }
+
+        Random random = new Random(seed);
+        planes = new double[tables*bits*dimensions];
+        for (int i = 0 ; i < planes.length ; i++) {
+            planes[i] = random.nextGaussian();
+        }
+
+        buckets = new long[tables][points];
+        IntStream.range(0, points).parallel().forEach(point -> {
+            final double[] vector = multiDimPoints.getVector(point);
+            for (int table = 0 ; table < tables ; table++) {
+                buckets[table][point] = (getCode(table, vector) & 0xFFFFFFFFL) << 32 | point;
+            }
+        });
+        for (long[] bucket: buckets) {
+            Arrays.sort(bucket);
+        }
+        visitedStates = ThreadLocal.withInitial(() -> new Visited(points));
+        ms += System.currentTimeMillis();
+        log.info(String.format("Built %d LSH tables of %d bits for %d points in %dms", tables, bits, points, ms));
+    }
+
+    /**
+     * @return the code for the vector in the given table, as an unsigned int.
+     */
+    private int getCode(int table, double[] vector) {
+        final int dimensions = multiDimPoints.getDimensions();
+        int code = 0;
+        for (int bit = 0 ; bit < bits ; bit++) {
+            final int offset = (table*bits + bit)*dimensions;
+            double dot = 0;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                dot += (vector[dim] - means[dim]) * planes[offset + dim];
+            }
+            if (dot >= 0) {
+                code |= 1 << bit;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * @param probeRadius the maximum Hamming distance from the base code for buckets to visit. 0 means only the
+     *                    bucket for the base code, 1 adds {@code bits} buckets/table, 2 adds
+     *                    {@code bits*(bits-1)/2} more.
+     */
+    public void setProbeRadius(int probeRadius) {
+        if (probeRadius < 0 || probeRadius > 2) {
+            throw new IllegalArgumentException("probeRadius must be between 0 and 2 but was " + probeRadius);
+        }
+        this.probeRadius = probeRadius;
+    }
+
+    public int getProbeRadius() {
+        return probeRadius;
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        final Visited visited = visitedStates.get();
+        visited.start();
+        visited.visit(basePoint);
+        return search(multiDimPoints.getVector(basePoint), basePoint, k, visited);
+    }
+
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        final Visited visited = visitedStates.get();
+        visited.start();
+        return search(vector, -1, k, visited);
+    }
+
+    private Nearest[] search(double[] vector, int basePoint, int k, Visited visited) {
+        NearestHeap heap = new NearestHeap(k);
+        for (int table = 0 ; table < tables ; table++) {
+            final int code = getCode(table, vector);
+            probe(table, code, vector, heap, visited);
+            if (probeRadius >= 1) {
+                for (int bit1 = 0 ; bit1 < bits ; bit1++) {
+                    final int code1 = code ^ (1 << bit1);
+                    probe(table, code1, vector, heap, visited);
+                    if (probeRadius >= 2) {
+                        for (int bit2 = bit1 + 1 ; bit2 < bits ; bit2++) {
+                            probe(table, code1 ^ (1 << bit2), vector, heap, visited);
+                        }
+                    }
+                }
+            }
+        }
+        return heap.toNearest(basePoint);
+    }
+
+    private void probe(int table, int code, double[] vector, NearestHeap heap, Visited visited) {
+        final long[] bucket = buckets[table];
+        final long first = (code & 0xFFFFFFFFL) << 32;
+        int index = Arrays.binarySearch(bucket, first);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (; index < bucket.length && (bucket[index] & 0xFFFFFFFF00000000L) == first ; index++) {
+            final int point = (int) bucket[index];
+            if (visited.visit(point)) {
+                heap.offer(point, atMostDistanceSquared(heap.getBound(), vector, point));
+            }
+        }
+    }
+
+    /**
+     * Marks for visited points, reset in constant time by changing the mark.
+     */
+    private static class Visited {
+        private final int[] marks;
+        private int mark = 0;
+
+        Visited(int points) {
+            marks = new int[points];
+        }
+
+        void start() {
+            if (++mark == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+        }
+
+        /**
+         * @return true if the point had not been visited since {@link #start()}.
+         */
+        boolean visit(int point) {
+            if (marks[point] == mark) {
+                return false;
+            }
+            marks[point] = mark;
+            return true;
+        }
+    }
+}
@@ -15,33 +15,58 @@
 package dk.ekot.similar;
 
 /**
+ * Points are sorted by their length and the search walks outward from the base point in both directions.
+ * By the triangle inequality, {@code (|a|-|b|)^2} is a lower bound for the squared distance between a and b, so
+ * a direction is abandoned when the bound exceeds the k'th best distance. The search is further limited to
+ * {@code MAX_EXTRA_CHECKS} checks without improvement, which makes it approximate.
  *
+ * {@link PivotNearestFinder} generalises this to multiple pivots instead of only the origin.
  */
 public class LengthNearestFinder extends NearestFinder {
     private final int MAX_EXTRA_CHECKS = multiDimPoints.points / 10; // 10% overall
     private final Length[] lengths;
+    private final double[] norms; // sqrt of the lengths, aligned with lengths
+    private final int[] ranks;    // point -> index in lengths
 
     public LengthNearestFinder(MultiDimPoints multiDimPoints) {
         super(multiDimPoints);
         lengths = multiDimPoints.getLengths(); // Calculate up front
+        norms = new double[lengths.length];
+        ranks = new int[lengths.length];
+        for (int i = 0 ; i < lengths.length ; i++) {
+            norms[i] = Math.sqrt(lengths[i].getLength());
+            ranks[lengths[i].getPointIndex()] = i;
+        }
     }
 
     @Override
     public Nearest findNearest(int basePoint) {
-        double basePointLength = -1;
-        int backIndex = -1;
-        int forwardIndex = multiDimPoints.points;
-        for (int i = 0; i < lengths.length; i++) {
-            if (basePoint == lengths[i].getPointIndex()) {
-                backIndex = i - 1;
-                forwardIndex = i + 1;
-                basePointLength = lengths[i].getLength();
-                break;
-            }
-        }
+        return findNearest(basePoint, 0, multiDimPoints.points);
+    }
 
-        int bestPointIndex = -1;
-        double shortestDistanceSqr = Double.MAX_VALUE;
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        NearestHeap heap = new NearestHeap(1);
+        int checks = walk(basePoint, startPoint, endPoint, heap);
+        Nearest nearest = first(basePoint, heap.toNearest(basePoint));
+        return new Nearest(basePoint, nearest.point, nearest.distance, "checked=" + checks);
+    }
+
+    @Override
+    protected void collectKNearest(int basePoint, int startPoint, int endPoint, NearestHeap heap) {
+        walk(basePoint, startPoint, endPoint, heap);
+    }
+
+    /**
+     * Walks backward and forward from the basePoint in the list of points sorted by length.
+     * Points outside of startPoint (inclusive) to endPoint (exclusive) are skipped.
+     * @return the number of checks.
+     */
+    private int walk(int basePoint, int startPoint, int endPoint, NearestHeap heap) {
+        final int baseRank = ranks[basePoint];
+        final double baseNorm = norms[baseRank];
+        int backIndex = baseRank - 1;
+        int forwardIndex = baseRank + 1;
 
         int nonMatchesSinceLastReset = 0;
         int checks = 0;
@@ -49,19 +74,9 @@ public class LengthNearestFinder extends NearestFinder {
             checks++;
             if (backIndex >= 0) {
                 nonMatchesSinceLastReset++;
-                Length current = lengths[backIndex];
-//                    double maxDist = current.length + basePointLength;
-                double minDist = current.length - basePointLength;
-                double minDistAbs = Math.abs(minDist);
-                if (minDistAbs < shortestDistanceSqr) {
-                    double exactDistanceSquared = exactDistanceSquared(current.pointIndex, basePoint);
-//                        System.out.println(String.format("Backward: min=%.2f, exact=%.2f, max=%.2f, index=%d",
-//                                                         minDistAbs, exactDistanceSquared, maxDist, backIndex));
-//                        System.out.println("Back: checking for shorter min " + minDistSqr + ", exact " + exactDistanceSquared + " and shortestExact " + shortestDistanceSqr + " with index " + current.pointIndex);
-                    if (exactDistanceSquared < shortestDistanceSqr) {
-//                            System.out.println("Back: New shortest " + exactDistanceSquared + " from " + shortestDistanceSqr + " with index " + current.pointIndex);
-                        shortestDistanceSqr = exactDistanceSquared;
-                        bestPointIndex = current.pointIndex;
+                final double minDist = baseNorm - norms[backIndex];
+                if (minDist*minDist <= heap.getBound()) {
+                    if (offer(basePoint, lengths[backIndex].pointIndex, startPoint, endPoint, heap)) {
                         nonMatchesSinceLastReset = 0;
                     }
                     backIndex--;
@@ -71,17 +86,9 @@ public class LengthNearestFinder extends NearestFinder {
             }
             if (forwardIndex < lengths.length) {
                 nonMatchesSinceLastReset++;
-                Length current = lengths[forwardIndex];
-                double minDist = current.length - basePointLength;
-//                    double maxDist = current.length + basePointLength;
-                double minDistAbs = Math.abs(minDist);
-                if (minDistAbs < shortestDistanceSqr) {
-                    double exactDistanceSquared = exactDistanceSquared(current.pointIndex, basePoint);
-//                        System.out.println(String.format("Forward:  min=%.2f, exact=%.2f, max=%.2f, index=%d",
-//                                                         minDistAbs, exactDistanceSquared, maxDist, forwardIndex));
-                    if (exactDistanceSquared < shortestDistanceSqr) {
-                        shortestDistanceSqr = exactDistanceSquared;
-                        bestPointIndex = current.pointIndex;
+                final double minDist = norms[forwardIndex] - baseNorm;
+                if (minDist*minDist <= heap.getBound()) {
+                    if (offer(basePoint, lengths[forwardIndex].pointIndex, startPoint, endPoint, heap)) {
                         nonMatchesSinceLastReset = 0;
                     }
                     forwardIndex++;
@@ -90,13 +97,12 @@ public class LengthNearestFinder extends NearestFinder {
                 }
             }
         }
-//            System.out.println("checks=" + checks);
-        return new Nearest(basePoint, bestPointIndex, shortestDistanceSqr, "checked=" + checks);
+        return checks;
     }
 
-    @Override
-    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
-        throw new UnsupportedOperationException("Not supported yet");
+    private boolean offer(int basePoint, int point, int startPoint, int endPoint, NearestHeap heap) {
+        return point >= startPoint && point < endPoint &&
+               heap.offer(point, getDistance(heap.getBound(), basePoint, point));
     }
 
     @Override
@@ -15,65 +15,160 @@
 package dk.ekot.similar;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
 /**
- *
+ * Points in a multi dimensional space. The values are held by a {@link VectorStorage}, selected with
+ * {@link STORAGE}.
  */
 public class MultiDimPoints {
+    private static final int TEXT_BLOCK_VALUES = 1 << 20; // 4MB blocks when loading text files
+
     public final int points;
     public final int dimensions;
-    public final double[] inner;
+    private final VectorStorage storage;
 
     private Length[] lengths;
+    private int[] dimensionOrder = null; // stored dimension -> original dimension, null means natural order
+    private volatile boolean indexed = false; // true if an index depending on the dimension order has been built
+
+    /**
+     * doubles: On heap {@code double[]}, 8 bytes/value.<br/>
+     * floats: On heap {@code float[]}, 4 bytes/value.<br/>
+     * mapped: Memory mapped {@code .bin} or {@code .vec} file, no heap and instant loading. Read only.
+     */
+    public enum STORAGE {doubles, floats, mapped}
 
     public static MultiDimPoints load(Path inputFile, int maxPoints, int dimensions) throws IOException {
+        return load(inputFile, maxPoints, dimensions, STORAGE.doubles);
+    }
+
+    /**
+     * Load points from a binary {@code .bin} file with big endian floats, a {@link VectorFile} or a text file.
+     * @param dimensions the number of dimensions. Only used for {@code .bin} files.
+     * @param storage the storage to use. Only {@code .bin} and {@code .vec} files (not gzipped) can be mapped.
+     */
+    public static MultiDimPoints load(Path inputFile, int maxPoints, int dimensions, STORAGE storage)
+            throws IOException {
+        if (VectorFile.isVectorFile(inputFile)) {
+            return new MultiDimPoints(inputFile, maxPoints, VectorFile.readHeader(inputFile), storage);
+        }
         if (inputFile.getFileName().toString().endsWith(".bin")) {
-            return new MultiDimPoints(inputFile, maxPoints, dimensions);
+            return new MultiDimPoints(inputFile, maxPoints, dimensions, storage);
+        }
+        if (storage == STORAGE.mapped) {
+            throw new IllegalArgumentException(
+                    "Only .bin and .vec files can be memory mapped, got '" + inputFile + "'");
         }
-        return new MultiDimPoints(inputFile, maxPoints);
+        return new MultiDimPoints(inputFile, maxPoints, storage);
     }
 
     public static MultiDimPoints load(Path inputFile, int maxPoints) throws IOException {
+        return load(inputFile, maxPoints, STORAGE.doubles);
+    }
+
+    /**
+     * Load points from a {@link VectorFile} or a text file, where the dimensions are derived from the content.
+     */
+    public static MultiDimPoints load(Path inputFile, int maxPoints, STORAGE storage) throws IOException {
         if (inputFile.getFileName().toString().endsWith(".bin")) {
             throw new IllegalArgumentException(
                     "The inputFile was binary: Dimensions must be stated! Use other load-method");
         }
-        return new MultiDimPoints(inputFile, maxPoints);
+        return load(inputFile, maxPoints, -1, storage);
     }
 
     // Binary-based loader
-    private MultiDimPoints(Path inputFile, int maxPoints, int dimensions) throws IOException {
+    private MultiDimPoints(Path inputFile, int maxPoints, int dimensions, STORAGE storage) throws IOException {
         final long startTime = System.nanoTime();
 
         if (!inputFile.getFileName().toString().endsWith(".bin")) {
             throw new IllegalArgumentException("Binary representation only. Use other constructor");
         }
         this.dimensions = dimensions;
-        int filePoints = (int) (Files.size(inputFile) / dimensions);
-        points = Math.min(maxPoints, filePoints);
-        inner = new double[points * dimensions];
+        long filePoints = Files.size(inputFile) / ((long) dimensions * Float.BYTES);
+        points = (int) Math.min(maxPoints, filePoints);
+        if (storage == STORAGE.mapped) {
+            this.storage = new VectorStorage.Mapped(inputFile, dimensions, points);
+        } else {
+            this.storage = createStorage(storage, dimensions, points);
+            readFloats(inputFile, 0, ByteOrder.BIG_ENDIAN);
+        }
+        System.out.println(String.format("Loaded %d binary points @ %d dimensions as %s in %d ms",
+                                         points, dimensions, storage, (System.nanoTime()-startTime)/1000000L));
+    }
 
+    // VectorFile-based loader
+    private MultiDimPoints(Path inputFile, int maxPoints, VectorFile header, STORAGE storage) throws IOException {
+        final long startTime = System.nanoTime();
+        this.dimensions = header.dimensions;
+        this.points = (int) Math.min(maxPoints, Math.min(Integer.MAX_VALUE, header.points));
+        if (storage == STORAGE.mapped) {
+            this.storage = new VectorStorage.Mapped(
+                    inputFile, VectorFile.HEADER_BYTES, ByteOrder.LITTLE_ENDIAN, dimensions, points);
+        } else {
+            this.storage = createStorage(storage, dimensions, points);
+            readFloats(inputFile, VectorFile.HEADER_BYTES, ByteOrder.LITTLE_ENDIAN);
+        }
+        System.out.println(String.format("Loaded %d vector file points @ %d dimensions as %s in %d ms",
+                                         points, dimensions, storage, (System.nanoTime()-startTime)/1000000L));
+    }
+
+    /**
+     * Bulk read of the floats in the file, starting at offset, into {@link #storage}.
+     */
+    private void readFloats(Path inputFile, long offset, ByteOrder order) throws IOException {
+        final long total = (long) points * dimensions;
+        final ByteBuffer bytes = ByteBuffer.allocate(1024*1024);
+        long index = 0;
         try (InputStream is = getStream(inputFile) ;
-             InputStream bis = new BufferedInputStream(is) ;
-             DataInputStream input = new DataInputStream(bis)) {
-            for (int point = 0; point < points; point++) {
-                for (int dimension = 0; dimension < dimensions; dimension++) {
-                    set(dimension, point, input.readFloat());
+             ReadableByteChannel channel = Channels.newChannel(is)) {
+            for (long skipped = 0 ; skipped < offset ; ) {
+                final long skip = is.skip(offset - skipped);
+                if (skip <= 0) {
+                    throw new EOFException("Unable to skip the first " + offset + " bytes of '" + inputFile + "'");
                 }
+                skipped += skip;
             }
+            while (index < total) {
+                if (channel.read(bytes) == -1) {
+                    throw new EOFException("Reached the end of '" + inputFile + "' after " + index + " values, " +
+                                           "while " + total + " values were expected");
+                }
+                bytes.flip();
+                final FloatBuffer floats = bytes.order(order).asFloatBuffer();
+                while (floats.hasRemaining() && index < total) {
+                    storage.set(index++, floats.get());
+                }
+                bytes.position(floats.position()*Float.BYTES);
+                bytes.compact();
+            }
+        }
+    }
+
+    private static VectorStorage createStorage(STORAGE storage, int dimensions, int points) {
+        switch (storage) {
+            case doubles: return new VectorStorage.Doubles(dimensions, points);
+            case floats:  return new VectorStorage.Floats(dimensions, points);
+            default: throw new IllegalArgumentException("The storage " + storage + " must be backed by a file");
         }
-        System.out.println(String.format("Loaded %d binary points @ %d dimensions in %d seconds",
-                                         points, dimensions, (System.nanoTime()-startTime)/1000000000L));
     }
 
-    // Text-based loader
-    private MultiDimPoints(Path inputFile, int maxPoints) throws IOException {
+    // Text-based loader, single pass with a VectorIngester
+    private MultiDimPoints(Path inputFile, int maxPoints, STORAGE storage) throws IOException {
         final long startTime = System.nanoTime();
 
         if (inputFile.getFileName().toString().endsWith(".bin")) {
@@ -81,53 +176,42 @@ public class MultiDimPoints {
                     "Cannot load binary representation without dimensions. Use other constructor");
         }
 
-        int totalLines = 0;
-        int dimensions = -1;
-        try (BufferedReader input = getReader(inputFile)) {
-            String line;
-            while ((line = input.readLine()) != null) {
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue;
-                }
-                totalLines++;
-                if (dimensions == -1) {
-                    dimensions = line.split(" ").length;
-                }
-                if (totalLines > maxPoints) {
-                    break;
+        // The parsed chunks are copied to fixed size blocks and released right away. The blocks are released while
+        // they are copied to the storage, so the peak memory is the values as floats plus the storage
+        final List<float[]> blocks = new ArrayList<>();
+        final long[] valueCount = new long[1];
+        final int[] chunkDimensions = new int[]{-1};
+        this.points = (int) new VectorIngester().ingest(inputFile, maxPoints, (values, chunkPoints, dimensions) -> {
+            chunkDimensions[0] = dimensions;
+            final int length = chunkPoints*dimensions;
+            for (int i = 0 ; i < length ; ) {
+                final int blockOffset = (int) (valueCount[0] % TEXT_BLOCK_VALUES);
+                if (blockOffset == 0) {
+                    blocks.add(new float[TEXT_BLOCK_VALUES]);
                 }
+                final int copy = Math.min(length - i, TEXT_BLOCK_VALUES - blockOffset);
+                System.arraycopy(values, i, blocks.get(blocks.size()-1), blockOffset, copy);
+                i += copy;
+                valueCount[0] += copy;
             }
-        }
-        this.points = Math.min(maxPoints, totalLines);
+        });
         if (points < maxPoints) {
             System.err.println("Warning: Requested a maximum of " + maxPoints + " points, but '" +
                                inputFile.getFileName() + " only holds " + points);
         }
-        this.dimensions = dimensions;
-        inner = new double[points * dimensions];
-
-        try (BufferedReader input = getReader(inputFile)) {
-            String line;
-            int point = 0;
-            while ((line = input.readLine()) != null && point < points) {
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue;
-                }
-                String[] tsneDims = line.split(" ");
-                if (tsneDims.length != dimensions) {
-                    throw new IllegalArgumentException(
-                            "The file '" + inputFile.getFileName() + "' was expected to holds points with dimensions " +
-                            dimensions + ", but a line with dimension " + tsneDims.length + " was encountered:\n" +
-                            line);
-                }
-                for (int dim = 0; dim < dimensions; dim++) {
-                    set(dim, point, Double.parseDouble(tsneDims[dim]));
-                }
-                point++;
+        this.dimensions = chunkDimensions[0];
+        this.storage = createStorage(storage, dimensions, points);
+        long index = 0;
+        for (int block = 0 ; block < blocks.size() ; block++) {
+            final float[] values = blocks.get(block);
+            blocks.set(block, null);
+            final int length = (int) Math.min(TEXT_BLOCK_VALUES, valueCount[0] - index);
+            for (int i = 0 ; i < length ; i++) {
+                this.storage.set(index++, values[i]);
             }
         }
-        System.out.println(String.format("Loaded %d text points @ %d dimensions in %d seconds",
-                                         points, dimensions, (System.nanoTime()-startTime)/1000000000L));
+        System.out.println(String.format("Loaded %d text points @ %d dimensions in %d ms",
+                                         points, dimensions, (System.nanoTime()-startTime)/1000000L));
     }
 
     public static BufferedReader getReader(Path inputFile) throws IOException {
@@ -140,21 +224,47 @@ public class MultiDimPoints {
     }
 
     public MultiDimPoints(int dimensions, int points) {
+        this(dimensions, points, STORAGE.doubles);
+    }
+
+    /**
+     * Creates empty points.
+     * @param storage doubles or floats.
+     */
+    public MultiDimPoints(int dimensions, int points, STORAGE storage) {
         this.points = points;
         this.dimensions = dimensions;
-        inner = new double[points * dimensions];
+        this.storage = createStorage(storage, dimensions, points);
     }
 
     public final double get(final int dimension, final int point) {
-        return inner[point * dimensions + dimension];
+        return storage.get(dimension, point);
     }
 
     public final void set(final int dimension, final int point, final double value) {
-        inner[point * dimensions + dimension] = value;
+        storage.set(dimension, point, value);
+    }
+
+    /**
+     * @return a copy of the values for all dimensions of the point, in the stored dimension order.
+     */
+    public double[] getVector(int point) {
+        final double[] vector = new double[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            vector[dim] = storage.get(dim, point);
+        }
+        return vector;
     }
 
-    public int size() {
-        return inner.length;
+    /**
+     * @return the total number of values: {@code points*dimensions}.
+     */
+    public long size() {
+        return storage.size();
+    }
+
+    public VectorStorage getStorage() {
+        return storage;
     }
 
     public Length[] getLengths() {
@@ -191,29 +301,29 @@ public class MultiDimPoints {
         switch (distribution) {
             case random: {
                 Random random = new Random(87);
-                for (int i = 0; i < inner.length; i++) {
-                    inner[i] = random.nextDouble();
+                for (long i = 0; i < size(); i++) {
+                    storage.set(i, random.nextDouble());
                 }
                 return;
             }
             case linear: {
                 double value = 0;
-                for (int i = 0; i < inner.length; i++) {
-                    inner[i] = (value += 1);
+                for (long i = 0; i < size(); i++) {
+                    storage.set(i, value += 1);
                 }
                 break;
             }
             case exponential: {
                 double value = Float.MAX_VALUE;
-                for (int i = 0; i < inner.length; i++) {
-                    inner[i] = (value /= 2);
+                for (long i = 0; i < size(); i++) {
+                    storage.set(i, value /= 2);
                 }
                 break;
             }
             case logarithmic: {
                 double value = 1;
-                for (int i = 0; i < inner.length; i++) {
-                    inner[i] = Math.log(value);
+                for (long i = 0; i < size(); i++) {
+                    storage.set(i, Math.log(value));
                     value += 1;
                 }
                 break;
@@ -229,18 +339,18 @@ public class MultiDimPoints {
             }
             case thack2: {
                 Random random = new Random(87);
-                int index = 0;
-                for (; index < 20 && index < inner.length; index++) {
-                    inner[index] = random.nextDouble() * 2 + 1;
+                long index = 0;
+                for (; index < 20 && index < size(); index++) {
+                    storage.set(index, random.nextDouble() * 2 + 1);
                 }
-                for (; index < 50 && index < inner.length; index++) {
-                    inner[index] = random.nextDouble() + 1;
+                for (; index < 50 && index < size(); index++) {
+                    storage.set(index, random.nextDouble() + 1);
                 }
-                for (; index < 200 && index < inner.length; index++) {
-                    inner[index] = random.nextDouble() * 0.5 + 0.5;
+                for (; index < 200 && index < size(); index++) {
+                    storage.set(index, random.nextDouble() * 0.5 + 0.5);
                 }
-                for (; index < inner.length; index++) {
-                    inner[index] = random.nextDouble() * 0.2;
+                for (; index < size(); index++) {
+                    storage.set(index, random.nextDouble() * 0.2);
                 }
                 break;
             }
@@ -255,12 +365,92 @@ public class MultiDimPoints {
 
     public void randomizeOrder() {
         Random random = new Random(87);
-        for (int i = inner.length - 1; i > 0; i--) {
-            int index = random.nextInt(i + 1);
-            double swap = inner[index];
-            inner[index] = inner[i];
-            inner[i] = swap;
+        for (long i = size() - 1; i > 0; i--) {
+            long index = i < Integer.MAX_VALUE ? random.nextInt((int) (i + 1)) : (random.nextLong() >>> 1) % (i + 1);
+            double swap = storage.get(index);
+            storage.set(index, storage.get(i));
+            storage.set(i, swap);
+        }
+    }
+
+    /**
+     * @return the variance for each dimension, in stored order.
+     */
+    public double[] getVariances() {
+        final double[] sums = new double[dimensions];
+        final double[] squareSums = new double[dimensions];
+        for (int point = 0 ; point < points ; point++) {
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double value = get(dim, point);
+                sums[dim] += value;
+                squareSums[dim] += value*value;
+            }
+        }
+        final double[] variances = new double[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            final double mean = sums[dim] / Math.max(1, points);
+            variances[dim] = Math.max(0, squareSums[dim] / Math.max(1, points) - mean*mean);
         }
+        return variances;
+    }
+
+    /**
+     * Permute the dimensions of all points so that they are stored in descending order of variance. Euclidean
+     * distances are not affected, but the running sum in early terminating distance calculations grows fastest
+     * in the first dimensions, so most candidates are rejected after only part of the dimensions.
+     *
+     * The permutation is done in place, so it is not supported for {@link STORAGE#mapped}.
+     * Use {@link #getOriginalDimension(int)} to map back.
+     *
+     * Indexes such as {@link LSHNearestFinder}, {@link ScalarQuantizer} and {@link StrongestSignalsFinder} depend
+     * on the dimension order, so the ordering must be done directly after loading: It is rejected if any
+     * {@link NearestFinder}, quantizer or {@link KMeans} has been created for the points.
+     * @throws IllegalStateException if an index has been built for the points.
+     */
+    public void orderByVariance() {
+        if (storage instanceof VectorStorage.Mapped) {
+            throw new UnsupportedOperationException(
+                    "Mapped storage is read only. Use STORAGE.floats for variance ordering");
+        }
+        if (indexed) {
+            throw new IllegalStateException(
+                    "An index has been built for the points. The dimensions must be ordered before indexing");
+        }
+        final double[] variances = getVariances();
+        final int[] order = IntStream.range(0, dimensions).boxed()
+                .sorted((d1, d2) -> Double.compare(variances[d2], variances[d1]))
+                .mapToInt(Integer::intValue).toArray();
+
+        final double[] row = new double[dimensions];
+        for (int point = 0 ; point < points ; point++) {
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                row[dim] = get(dim, point);
+            }
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                set(dim, point, row[order[dim]]);
+            }
+        }
+
+        final int[] previous = dimensionOrder;
+        dimensionOrder = new int[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            dimensionOrder[dim] = previous == null ? order[dim] : previous[order[dim]];
+        }
+    }
+
+    /**
+     * Marks the points as indexed, after which the dimension order cannot be changed with {@link #orderByVariance()}.
+     */
+    void markIndexed() {
+        indexed = true;
+    }
+
+    /**
+     * @param dimension a dimension in stored order.
+     * @return the dimension as it was before {@link #orderByVariance()}.
+     */
+    public int getOriginalDimension(int dimension) {
+        return dimensionOrder == null ? dimension : dimensionOrder[dimension];
     }
 
     public int getPoints() {
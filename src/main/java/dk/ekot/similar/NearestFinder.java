@@ -17,16 +17,33 @@ package dk.ekot.similar;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
-import java.util.PriorityQueue;
-
 /**
  *
  */
 public abstract class NearestFinder implements NearestFinderBase {
+    public static final int MIN_CHECK_STEP = 16;
+    public static final int MAX_CHECK_STEP = 128;
+
     protected final MultiDimPoints multiDimPoints;
 
+    /**
+     * The early termination policy shared by all distance kernels: The running sum is checked against the bound
+     * after {@link #MIN_CHECK_STEP} dimensions, then with doubling intervals up to {@link #MAX_CHECK_STEP}.
+     * Checking often in the beginning pays off when the dimensions are ordered by descending variance
+     * (see {@link MultiDimPoints#orderByVariance()}), while the longer intervals later keep the overhead of the
+     * checks down.
+     * @param checked    the number of dimensions summed so far.
+     * @param dimensions the total number of dimensions.
+     * @return the number of dimensions to sum before the next check.
+     */
+    public static int nextCheck(int checked, int dimensions) {
+        // With doubling steps from MIN_CHECK_STEP, checked + MIN_CHECK_STEP is always the next step
+        return Math.min(checked + Math.min(checked + MIN_CHECK_STEP, MAX_CHECK_STEP), dimensions);
+    }
+
     public NearestFinder(MultiDimPoints multiDimPoints) {
         this.multiDimPoints = multiDimPoints;
+        multiDimPoints.markIndexed();
     }
 
     public Nearest findNearest(int basePoint) {
@@ -49,34 +66,74 @@ public abstract class NearestFinder implements NearestFinderBase {
         return new Nearest(basePoint, nn, shortest);
     }
 
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        return findKNearest(basePoint, k, 0, multiDimPoints.getPoints());
+    }
+
+    public Nearest[] findKNearest(int basePoint, int k, int startPoint, int endPoint) {
+        NearestHeap heap = new NearestHeap(k);
+        collectKNearest(basePoint, startPoint, endPoint, heap);
+        return heap.toNearest(basePoint);
+    }
+
+    /**
+     * Find the k nearest points to a vector that does not need to be one of the points, e.g. a point from another
+     * segment of an {@link IncrementalNearestFinder}. This implementation scans all points. Finders with an index
+     * that can be queried with a vector should override it.
+     * @param vector the values for all dimensions, in the stored dimension order.
+     * @return at most k nearest points sorted by ascending distance, with basePoint -1. A point equal to the
+     *         vector is included.
+     */
+    public Nearest[] findKNearest(double[] vector, int k) {
+        NearestHeap heap = new NearestHeap(k);
+        for (int point = 0; point < multiDimPoints.getPoints(); point++) {
+            heap.offer(point, atMostDistanceSquared(heap.getBound(), vector, point));
+        }
+        return heap.toNearest(-1);
+    }
+
+    /**
+     * Offer the points from startPoint (inclusive) to endPoint (exclusive) to the heap. The bound of the heap is used
+     * as shortest for {@link #getDistance}, so early terminating implementations prune against the k'th best.
+     */
+    protected void collectKNearest(int basePoint, int startPoint, int endPoint, NearestHeap heap) {
+        for (int point = startPoint; point < endPoint; point++) {
+            if (point == basePoint) {
+                continue;
+            }
+            heap.offer(point, getDistance(heap.getBound(), basePoint, point));
+        }
+    }
+
+    /**
+     * @return the first of the given nearest or a Nearest with point -1 if there are none.
+     */
+    protected static Nearest first(int basePoint, Nearest[] nearest) {
+        return nearest.length == 0 ? new Nearest(basePoint, -1, Double.MAX_VALUE) : nearest[0];
+    }
+
     protected double getDistance(double shortest, int basePoint, int point) {
         return exactDistanceSquared(basePoint, point);
     }
 
     protected double exactDistanceSquared(int basePoint, int point) {
-        double distance = 0;
-        for (int dimIndex = 0; dimIndex < multiDimPoints.getDimensions() ; dimIndex++) {
-            final double diff = multiDimPoints.get(dimIndex, basePoint) - multiDimPoints.get(dimIndex, point);
-            distance += (diff*diff);
-        }
-        return distance;
+        return multiDimPoints.getStorage().distanceSquared(basePoint, point);
     }
 
+    /**
+     * Calculates the squared distance, stopping early if it exceeds atMost. See {@link #nextCheck(int, int)}.
+     * @return the exact squared distance or a partial distance larger than atMost.
+     */
     protected double atMostDistanceSquared(double atMost, int basePoint, int point) {
-        final int STEP = 100;
-        double distance = 0;
-        for (int dimMajor = 0; dimMajor < multiDimPoints.getDimensions(); dimMajor += STEP) {
-            final int dimMax = Math.min(dimMajor + STEP, multiDimPoints.getDimensions());
-            for (int dim = dimMajor; dim < dimMax; dim++) {
-                final double diff = multiDimPoints.get(dim, basePoint) - multiDimPoints.get(dim, point);
-                distance += (diff * diff);
-            }
-            if (distance > atMost) {
-                //System.out.print("[" + dimMajor + "]");
-                return distance;
-            }
-        }
-        return distance;
+        return multiDimPoints.getStorage().atMostDistanceSquared(atMost, basePoint, point);
+    }
+
+    /**
+     * Same as {@link #atMostDistanceSquared(double, int, int)} with the base given as a vector.
+     */
+    protected double atMostDistanceSquared(double atMost, double[] vector, int point) {
+        return multiDimPoints.getStorage().atMostDistanceSquared(atMost, vector, 0, point);
     }
 
 }
@@ -24,4 +24,11 @@ public interface NearestFinderBase {
     public Nearest findNearest(int basePoint);
 
     public Nearest findNearest(int basePoint, int startPoint, int endPoint);
+
+    /**
+     * @param basePoint the point to find neighbours for.
+     * @param k         the maximum number of neighbours to return.
+     * @return at most k nearest neighbours, sorted by ascending distance. The basePoint itself is not included.
+     */
+    public Nearest[] findKNearest(int basePoint, int k);
 }
@@ -0,0 +1,208 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+/**
+ * Bounded max-heap of (point, distance) pairs, backed by primitive arrays.
+ *
+ * The heap holds the {@code capacity} pairs with the smallest distances offered so far. Ties on distance are
+ * resolved to the lowest point, so the content does not depend on the order of offers. The heap can be
+ * {@link #reset} and reused, in which case no objects are allocated after construction.
+ *
+ * {@link #getBound()} is intended as the {@code atMost} for early termination of distance calculations:
+ * Any point with a distance above the bound will be rejected.
+ */
+public class NearestHeap {
+    private int[] points;
+    private double[] distances;
+    private int capacity;
+    private int size = 0;
+
+    public NearestHeap(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be >= 1 but was " + capacity);
+        }
+        points = new int[capacity];
+        distances = new double[capacity];
+        this.capacity = capacity;
+    }
+
+    /**
+     * Clear the heap and set a new capacity. The backing arrays are only re-allocated if they are too small.
+     */
+    public void reset(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be >= 1 but was " + capacity);
+        }
+        if (capacity > points.length) {
+            points = new int[capacity];
+            distances = new double[capacity];
+        }
+        this.capacity = capacity;
+        size = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return true if the pair was added to the heap.
+     */
+    public boolean offer(int point, double distance) {
+        if (size < capacity) {
+            int index = size++;
+            // Sift up
+            while (index > 0) {
+                final int parent = (index-1) >>> 1;
+                if (!isWorse(point, distance, points[parent], distances[parent])) {
+                    break;
+                }
+                points[index] = points[parent];
+                distances[index] = distances[parent];
+                index = parent;
+            }
+            points[index] = point;
+            distances[index] = distance;
+            return true;
+        }
+        if (!isWorse(points[0], distances[0], point, distance)) {
+            return false;
+        }
+        siftDown(point, distance);
+        return true;
+    }
+
+    /**
+     * @return the largest distance in the heap if it is full, else {@link Double#MAX_VALUE}.
+     */
+    public double getBound() {
+        return size < capacity ? Double.MAX_VALUE : distances[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the point at the given position in the heap. The order is not sorted.
+     */
+    public int getPoint(int index) {
+        return points[index];
+    }
+
+    /**
+     * @return the distance at the given position in the heap. The order is not sorted.
+     */
+    public double getDistance(int index) {
+        return distances[index];
+    }
+
+    /**
+     * Linear scan for the point. Intended for small heaps.
+     */
+    public boolean contains(int point) {
+        for (int i = 0 ; i < size ; i++) {
+            if (points[i] == point) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the worst pair from the heap.
+     * @return the point of the removed pair.
+     */
+    public int poll() {
+        if (size == 0) {
+            throw new IllegalStateException("The heap is empty");
+        }
+        final int point = points[0];
+        if (--size > 0) {
+            siftDown(points[size], distances[size]);
+        }
+        return point;
+    }
+
+    /**
+     * Empty the heap into an array of Nearest, sorted by ascending distance.
+     */
+    public Nearest[] toNearest(int basePoint) {
+        Nearest[] result = new Nearest[size];
+        for (int i = result.length-1 ; i >= 0 ; i--) {
+            final double distance = distances[0];
+            result[i] = new Nearest(basePoint, poll(), distance);
+        }
+        return result;
+    }
+
+    /**
+     * Empty the heap into the given array, sorted by ascending distance.
+     * @return the number of points.
+     */
+    public int toPoints(int[] result) {
+        final int count = size;
+        for (int i = count-1 ; i >= 0 ; i--) {
+            result[i] = poll();
+        }
+        return count;
+    }
+
+    /**
+     * Empty the heap into the given arrays, sorted by ascending distance.
+     * @return the number of points.
+     */
+    public int toSorted(int[] resultPoints, double[] resultDistances) {
+        final int count = size;
+        for (int i = count-1 ; i >= 0 ; i--) {
+            resultDistances[i] = distances[0];
+            resultPoints[i] = poll();
+        }
+        return count;
+    }
+
+    private void siftDown(int point, double distance) {
+        int index = 0;
+        final int half = size >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            final int right = child + 1;
+            if (right < size && isWorse(points[right], distances[right], points[child], distances[child])) {
+                child = right;
+            }
+            if (!isWorse(points[child], distances[child], point, distance)) {
+                break;
+            }
+            points[index] = points[child];
+            distances[index] = distances[child];
+            index = child;
+        }
+        points[index] = point;
+        distances[index] = distance;
+    }
+
+    private static boolean isWorse(int point1, double distance1, int point2, double distance2) {
+        return distance1 > distance2 || (distance1 == distance2 && point1 > point2);
+    }
+}
@@ -55,7 +55,8 @@ public class NearestNeighbour {
         log.debug("Creating double array");
         MultiDimPoints multiDimPoints;
         if (distribution == DISTRIBUTION.load) {
-            multiDimPoints = MultiDimPoints.load(Paths.get(VECTOR_SAMPLE_BIN), points, dimensions);
+            multiDimPoints = MultiDimPoints.load(
+                    Paths.get(VECTOR_SAMPLE_BIN), points, dimensions, MultiDimPoints.STORAGE.mapped);
         } else {
             multiDimPoints = new MultiDimPoints(dimensions, points);
             log.debug("Filling array");
@@ -65,11 +66,17 @@ public class NearestNeighbour {
         List<NearestFinder> finders = new ArrayList<>();
 //        finders.add(new DumbNearestFinder(multiDimPoints));
         finders.add(new EarlyNearestFinder(multiDimPoints));
+//        finders.add(new BlockedNearestFinder(multiDimPoints));
+//        finders.add(new HNSWNearestFinder(multiDimPoints));
+//        finders.add(new IVFNearestFinder(multiDimPoints));
+//        finders.add(new QuantizedNearestFinder(multiDimPoints));
 
 //        finders.add(new RandomFinder(multiDimPoints));
         finders.add(new StrongestSignalsFinder(multiDimPoints));
-        finders.add(new DiceNearestFinder(multiDimPoints));
+//        finders.add(new DiceNearestFinder(multiDimPoints));
+        finders.add(new LSHNearestFinder(multiDimPoints));
 //        finders.add(new LengthNearestFinder(multiDimPoints));
+//        finders.add(new PivotNearestFinder(multiDimPoints));
 
         final int[] nearestPoints = new int[runs];
         final double[] nearestDist = new double[runs];
@@ -17,9 +17,13 @@ package dk.ekot.similar;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Testing performance of brute force nearest neighbour on high-dimensional vector spaces.
@@ -78,7 +82,7 @@ public class NearestNeighbourInt {
         log.debug("Filling array");
         multiDimPoints.fill(distribution, true);
         log.debug("Array initialization finished");
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
 
         for (NearestFinderInt finder: new NearestFinderInt[] {
                 new DumbNearestFinderInt(multiDimPoints),
@@ -88,7 +92,7 @@ public class NearestNeighbourInt {
             for (int i = 0; i < runs; i++) {
                 final int basePoint = random.nextInt(multiDimPoints.getPoints());
                 long ns = -System.nanoTime();
-                Nearest nearest = finder.findNearest(basePoint);
+                Nearest nearest = findNearestThreaded(executor, threads, finder, basePoint);
                 ns += System.nanoTime();
                 long pointsPerSec = (long)(points/(ns/1000000000.0));
                 System.out.println(String.format(
@@ -97,6 +101,37 @@ public class NearestNeighbourInt {
             }
             System.out.println();
         }
+        executor.shutdown();
+    }
+
+    /**
+     * Split the points into one slice per thread, search the slices in parallel and return the overall nearest.
+     */
+    private Nearest findNearestThreaded(
+            ExecutorService executor, int threads, NearestFinderBase finder, int basePoint) {
+        final int total = points;
+        final int sliceSize = (total + threads - 1) / threads;
+        List<Future<Nearest>> jobs = new ArrayList<>(threads);
+        for (int start = 0; start < total; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(start + sliceSize, total);
+            jobs.add(executor.submit(() -> finder.findNearest(basePoint, sliceStart, sliceEnd)));
+        }
+        Nearest best = null;
+        for (Future<Nearest> job: jobs) {
+            try {
+                Nearest nearest = job.get();
+                if (best == null || nearest.distance < best.distance) {
+                    best = nearest;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for nearest neighbour search", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Exception during nearest neighbour search", e.getCause());
+            }
+        }
+        return best;
     }
 
     private static class EarlyNearestFinderInt extends NearestFinderInt {
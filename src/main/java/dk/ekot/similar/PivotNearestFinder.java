@@ -0,0 +1,188 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Exact metric index using the distances from all points to a few pivot points.
+ *
+ * For any pivot p, {@code (d(a,p)-d(b,p))^2} is a lower bound for the squared distance between a and b, and the
+ * tightest bound over all pivots is used to skip points without calculating their distance. The points are sorted
+ * by their distance to the first pivot and the search walks outward from the base point, like
+ * {@link LengthNearestFinder} does with the origin as the only pivot. A direction is abandoned when the bound from
+ * the first pivot exceeds the k'th best distance, which makes the search exact.
+ *
+ * Pivots are selected farthest-first: Each new pivot is the point with the largest distance to its nearest
+ * existing pivot, which spreads them across the data.
+ */
+public class PivotNearestFinder extends NearestFinder {
+    private static Log log = LogFactory.getLog(PivotNearestFinder.class);
+
+    public static final int DEFAULT_PIVOTS = 8;
+
+    private final int[] pivots;
+    private final double[] pivotDistances; // point*pivots + pivot, not squared
+    private final int[] order;             // points sorted by distance to the first pivot
+    private final int[] ranks;             // point -> index in order
+
+    public PivotNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, DEFAULT_PIVOTS, 87);
+    }
+
+    /**
+     * @param multiDimPoints the points to index.
+     * @param pivotCount     the number of pivots. Memory overhead is 8 bytes/pivot/point.
+     * @param seed           seed for selecting the first pivot.
+     */
+    public PivotNearestFinder(MultiDimPoints multiDimPoints, int pivotCount, long seed) {
+        super(multiDimPoints);
+        final int points = multiDimPoints.getPoints();
+        if (pivotCount < 1 || pivotCount > points) {
+            throw new IllegalArgumentException("pivotCount must be between 1 and " + points + " but was " + pivotCount);
+        }
+        long ms = -System.currentTimeMillis();
+        pivots = new int[pivotCount];
+        pivotDistances = new double[points * pivotCount];
+        final double[] nearestPivot = new double[points];
+        Arrays.fill(nearestPivot, Double.MAX_VALUE);
+        int pivot = new Random(seed).nextInt(points);
+        for (int p = 0 ; p < pivotCount ; p++) {
+            pivots[p] = pivot;
+            final int pivotIndex = p;
+            final int current = pivot;
+            IntStream.range(0, points).parallel().forEach(point -> {
+                final double distance = Math.sqrt(exactDistanceSquared(current, point));
+                pivotDistances[point*pivotCount + pivotIndex] = distance;
+                nearestPivot[point] = Math.min(nearestPivot[point], distance);
+            });
+            for (int point = 0 ; point < points ; point++) {
+                if (nearestPivot[point] > nearestPivot[pivot]) {
+                    pivot = point;
+                }
+            }
+        }
+
+        order = IntStream.range(0, points).boxed()
+                .sorted((p1, p2) -> Double.compare(pivotDistances[p1*pivotCount], pivotDistances[p2*pivotCount]))
+                .mapToInt(Integer::intValue).toArray();
+        ranks = new int[points];
+        for (int i = 0 ; i < points ; i++) {
+            ranks[order[i]] = i;
+        }
+        ms += System.currentTimeMillis();
+        log.info(String.format("Created pivot index with %d pivots for %d points in %dms", pivotCount, points, ms));
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        return first(basePoint, findKNearest(basePoint, 1, startPoint, endPoint));
+    }
+
+    @Override
+    protected void collectKNearest(int basePoint, int startPoint, int endPoint, NearestHeap heap) {
+        final int pivotCount = pivots.length;
+        final double[] basePivots = Arrays.copyOfRange(
+                pivotDistances, basePoint*pivotCount, (basePoint+1)*pivotCount);
+        walk(basePoint, null, basePivots, ranks[basePoint] - 1, ranks[basePoint] + 1, startPoint, endPoint, heap);
+    }
+
+    /**
+     * The distances from the vector to the pivots are calculated and the search starts at the position of the
+     * vector in the points sorted by distance to the first pivot.
+     */
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        final double[] basePivots = new double[pivots.length];
+        for (int p = 0 ; p < pivots.length ; p++) {
+            basePivots[p] = Math.sqrt(atMostDistanceSquared(Double.MAX_VALUE, vector, pivots[p]));
+        }
+        // The first rank with a distance to the first pivot that is not less than the distance for the vector
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (pivotDistances[order[middle]*pivots.length] < basePivots[0]) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        NearestHeap heap = new NearestHeap(k);
+        walk(-1, vector, basePivots, low - 1, low, 0, multiDimPoints.getPoints(), heap);
+        return heap.toNearest(-1);
+    }
+
+    /**
+     * Walks backward and forward from the base in the points sorted by distance to the first pivot.
+     * Points outside of startPoint (inclusive) to endPoint (exclusive) are skipped.
+     * @param basePoint  the point to search for or -1 if vector is given.
+     * @param vector     the values to search for or null if basePoint is given.
+     * @param basePivots the distances (not squared) from the base to the pivots.
+     * @param back       the first rank to visit walking backward.
+     * @param forward    the first rank to visit walking forward.
+     */
+    private void walk(int basePoint, double[] vector, double[] basePivots, int back, int forward,
+                      int startPoint, int endPoint, NearestHeap heap) {
+        final int pivotCount = pivots.length;
+        final double baseFirst = basePivots[0];
+        while (back >= 0 || forward < order.length) {
+            if (back >= 0) {
+                final double minDist = baseFirst - pivotDistances[order[back]*pivotCount];
+                if (minDist*minDist > heap.getBound()) {
+                    back = -1;
+                } else {
+                    offer(basePoint, vector, basePivots, order[back--], startPoint, endPoint, heap);
+                }
+            }
+            if (forward < order.length) {
+                final double minDist = pivotDistances[order[forward]*pivotCount] - baseFirst;
+                if (minDist*minDist > heap.getBound()) {
+                    forward = order.length;
+                } else {
+                    offer(basePoint, vector, basePivots, order[forward++], startPoint, endPoint, heap);
+                }
+            }
+        }
+    }
+
+    private void offer(int basePoint, double[] vector, double[] basePivots, int point,
+                       int startPoint, int endPoint, NearestHeap heap) {
+        if (point < startPoint || point >= endPoint) {
+            return;
+        }
+        final double bound = heap.getBound();
+        final int pivotCount = pivots.length;
+        final int pointOffset = point*pivotCount;
+        for (int p = 1 ; p < pivotCount ; p++) {
+            final double minDist = basePivots[p] - pivotDistances[pointOffset + p];
+            if (minDist*minDist > bound) {
+                return;
+            }
+        }
+        heap.offer(point, vector == null ?
+                atMostDistanceSquared(bound, basePoint, point) :
+                atMostDistanceSquared(bound, vector, point));
+    }
+
+    public int[] getPivots() {
+        return pivots;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+
+/**
+ * Product quantisation, as described in https://hal.inria.fr/inria-00514462
+ *
+ * The dimensions are split into {@code subspaces} consecutive ranges and k-means with up to 256 centroids is
+ * trained for each range. A point is encoded as the index of the nearest centroid in each range, so memory usage
+ * is 1 byte/subspace/point. Distances are calculated with a per-query table holding the distance from the base
+ * point to every centroid in every subspace, making each distance calculation {@code subspaces} lookups.
+ */
+public class ProductQuantizer implements Quantizer {
+    private static Log log = LogFactory.getLog(ProductQuantizer.class);
+
+    public static final int MAX_CENTROIDS = 256;
+
+    private final int subspaces;
+    private final int[] dimStarts; // subspace -> first dimension, with an extra entry for the end
+    private final KMeans[] quantizers;
+    private final int centroids;
+    private final byte[] codes;    // point*subspaces + subspace
+
+    /**
+     * @param multiDimPoints the points to encode.
+     * @param subspaces      the number of sub spaces. Must be between 1 and the number of dimensions.
+     * @param sampleSize     the maximum number of points to train the centroids on.
+     * @param iterations     the maximum number of k-means iterations.
+     * @param threads        the number of threads to use for training.
+     */
+    public ProductQuantizer(MultiDimPoints multiDimPoints, int subspaces, int sampleSize, int iterations, int threads) {
+        final int dimensions = multiDimPoints.getDimensions();
+        final int points = multiDimPoints.getPoints();
+        if (subspaces < 1 || subspaces > dimensions) {
+            throw new IllegalArgumentException(
+                    "subspaces must be between 1 and " + dimensions + " but was " + subspaces);
+        }
+        if ((long)points * subspaces > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Too many codes for product quantisation: " + points + " points * " + subspaces + " subspaces");
+        }
+        this.subspaces = subspaces;
+
+        long ms = -System.currentTimeMillis();
+        dimStarts = new int[subspaces+1];
+        for (int s = 0 ; s <= subspaces ; s++) {
+            dimStarts[s] = (int) ((long)s * dimensions / subspaces);
+        }
+        final int[] sample = KMeans.createSample(points, sampleSize, 87);
+        centroids = Math.min(MAX_CENTROIDS, sample.length);
+        quantizers = new KMeans[subspaces];
+        for (int s = 0 ; s < subspaces ; s++) {
+            quantizers[s] = new KMeans(multiDimPoints, dimStarts[s], dimStarts[s+1],
+                                       sample, centroids, iterations, threads, 87 + s);
+        }
+
+        codes = new byte[points * subspaces];
+        for (int point = 0 ; point < points ; point++) {
+            for (int s = 0 ; s < subspaces ; s++) {
+                codes[point*subspaces + s] = (byte) quantizers[s].nearestCentroid(point);
+            }
+        }
+        ms += System.currentTimeMillis();
+        log.info(String.format("Trained and encoded %d points with %d subspaces of %d centroids in %dms",
+                               points, subspaces, centroids, ms));
+    }
+
+    @Override
+    public Query query(int basePoint) {
+        final double[] table = new double[subspaces * centroids];
+        for (int s = 0 ; s < subspaces ; s++) {
+            for (int c = 0 ; c < centroids ; c++) {
+                table[s*centroids + c] = quantizers[s].distanceSquared(basePoint, c, Double.MAX_VALUE);
+            }
+        }
+        return tableQuery(table);
+    }
+
+    @Override
+    public Query query(double[] vector) {
+        final double[] table = new double[subspaces * centroids];
+        for (int s = 0 ; s < subspaces ; s++) {
+            final double[] subVector = Arrays.copyOfRange(vector, dimStarts[s], dimStarts[s+1]);
+            for (int c = 0 ; c < centroids ; c++) {
+                table[s*centroids + c] = quantizers[s].distanceSquared(subVector, c, Double.MAX_VALUE);
+            }
+        }
+        return tableQuery(table);
+    }
+
+    /**
+     * @param table the distances from the base to all centroids: {@code subspace*centroids + centroid}.
+     */
+    private Query tableQuery(double[] table) {
+        return point -> {
+            final int offset = point*subspaces;
+            double distance = 0;
+            for (int s = 0 ; s < subspaces ; s++) {
+                distance += table[s*centroids + (codes[offset + s] & 0xFF)];
+            }
+            return distance;
+        };
+    }
+
+    /**
+     * @return the approximate value for the given point and dimension.
+     */
+    public double decode(int dim, int point) {
+        int s = 0;
+        while (dimStarts[s+1] <= dim) {
+            s++;
+        }
+        final int centroid = codes[point*subspaces + s] & 0xFF;
+        return quantizers[s].getCentroids()[centroid*quantizers[s].getDimensions() + dim - dimStarts[s]];
+    }
+
+    @Override
+    public long getCodeBytes() {
+        return codes.length;
+    }
+
+    public int getSubspaces() {
+        return subspaces;
+    }
+}
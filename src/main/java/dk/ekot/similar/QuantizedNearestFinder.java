@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+/**
+ * Two-phase search: All points are scanned using the approximate distances from a {@link Quantizer} and the
+ * {@code k*rerank} best candidates are re-ranked using the exact values from the {@link MultiDimPoints}.
+ *
+ * The scan only touches the compressed codes, so the full vectors are only needed for the re-ranking and can
+ * be kept on storage with {@link MultiDimPoints.STORAGE#mapped}.
+ */
+public class QuantizedNearestFinder extends NearestFinder {
+    public static final int DEFAULT_RERANK = 10;
+
+    private final Quantizer quantizer;
+    private int rerank = DEFAULT_RERANK;
+
+    /**
+     * Uses a {@link ScalarQuantizer}.
+     */
+    public QuantizedNearestFinder(MultiDimPoints multiDimPoints) {
+        this(multiDimPoints, new ScalarQuantizer(multiDimPoints));
+    }
+
+    public QuantizedNearestFinder(MultiDimPoints multiDimPoints, Quantizer quantizer) {
+        super(multiDimPoints);
+        this.quantizer = quantizer;
+    }
+
+    /**
+     * @param rerank the number of candidates to re-rank, as a multiple of k.
+     */
+    public void setRerank(int rerank) {
+        if (rerank < 1) {
+            throw new IllegalArgumentException("rerank must be >= 1 but was " + rerank);
+        }
+        this.rerank = rerank;
+    }
+
+    public Quantizer getQuantizer() {
+        return quantizer;
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint) {
+        return first(basePoint, findKNearest(basePoint, 1));
+    }
+
+    @Override
+    public Nearest findNearest(int basePoint, int startPoint, int endPoint) {
+        return first(basePoint, findKNearest(basePoint, 1, startPoint, endPoint));
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k, int startPoint, int endPoint) {
+        final NearestHeap candidates = scan(quantizer.query(basePoint), basePoint, k, startPoint, endPoint);
+        NearestHeap heap = new NearestHeap(k);
+        for (int i = 0 ; i < candidates.size() ; i++) {
+            final int candidate = candidates.getPoint(i);
+            heap.offer(candidate, atMostDistanceSquared(heap.getBound(), basePoint, candidate));
+        }
+        return heap.toNearest(basePoint);
+    }
+
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        final NearestHeap candidates = scan(quantizer.query(vector), -1, k, 0, multiDimPoints.getPoints());
+        NearestHeap heap = new NearestHeap(k);
+        for (int i = 0 ; i < candidates.size() ; i++) {
+            final int candidate = candidates.getPoint(i);
+            heap.offer(candidate, atMostDistanceSquared(heap.getBound(), vector, candidate));
+        }
+        return heap.toNearest(-1);
+    }
+
+    /**
+     * @return the {@code k*rerank} best candidates from startPoint (inclusive) to endPoint (exclusive) using the
+     *         approximate distances.
+     */
+    private NearestHeap scan(Quantizer.Query query, int basePoint, int k, int startPoint, int endPoint) {
+        NearestHeap candidates = new NearestHeap((int) Math.min(Integer.MAX_VALUE, (long)k * rerank));
+        for (int point = startPoint ; point < endPoint ; point++) {
+            if (point != basePoint) {
+                candidates.offer(point, query.distanceSquared(point));
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+/**
+ * Compressed representation of the points in a {@link MultiDimPoints}, with approximate distance calculation.
+ *
+ * Distances are asymmetric: The base point is used with its exact values while the other points are represented
+ * by their codes.
+ */
+public interface Quantizer {
+    /**
+     * Prepare for distance calculations from the given point.
+     */
+    Query query(int basePoint);
+
+    /**
+     * Prepare for distance calculations from the given vector, which does not need to be one of the points.
+     * @param vector the values for all dimensions.
+     */
+    Query query(double[] vector);
+
+    /**
+     * @return the number of bytes used for the codes of all points.
+     */
+    long getCodeBytes();
+
+    interface Query {
+        /**
+         * @return the approximate squared distance between the base point and the given point.
+         */
+        double distanceSquared(int point);
+    }
+}
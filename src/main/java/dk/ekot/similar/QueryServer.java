@@ -0,0 +1,444 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long lived query service that keeps the points and a {@link NearestFinderBase} resident.
+ *
+ * Requests are queued and a single dispatcher thread coalesces them into micro-batches of up to {@code maxBatch}
+ * requests, waiting at most {@code maxWaitMicros} for a batch to fill. With a {@link BlockedNearestFinder} a batch
+ * is answered with a single cache-blocked scan, with the k for each request, other finders answer the requests in
+ * the batch one at a time. k is clamped to the number of other points, so a large k cannot exhaust the heap.
+ *
+ * Requests can be made in-process with {@link #submit} or {@link #query}, or over a localhost socket started with
+ * {@link #listen}. The socket protocol is line based: {@code <point> <k>} is answered with
+ * {@code OK <point>:<distance> ...}, {@code STATS} with the latency percentiles and {@code QUIT} closes the
+ * connection. Errors are answered with {@code ERROR <message>}.
+ */
+public class QueryServer implements AutoCloseable {
+    private static Log log = LogFactory.getLog(QueryServer.class);
+
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 200;
+    public static final int DEFAULT_LATENCY_SAMPLES = 100_000;
+
+    private final MultiDimPoints multiDimPoints;
+    private final NearestFinderBase finder;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final LatencyStats latencies = new LatencyStats(DEFAULT_LATENCY_SAMPLES);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong batchedRequests = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    private ServerSocket serverSocket = null;
+    private ExecutorService connections = null;
+
+    public QueryServer(MultiDimPoints multiDimPoints, NearestFinderBase finder) {
+        this(multiDimPoints, finder, DEFAULT_MAX_BATCH, DEFAULT_MAX_WAIT_MICROS);
+    }
+
+    /**
+     * @param multiDimPoints the points searched by the finder.
+     * @param finder         the finder used for answering requests.
+     * @param maxBatch       the maximum number of requests to answer together.
+     * @param maxWaitMicros  the maximum time to wait for more requests before answering a batch. 0 means only
+     *                       requests that are already queued are batched.
+     */
+    public QueryServer(MultiDimPoints multiDimPoints, NearestFinderBase finder, int maxBatch, long maxWaitMicros) {
+        if (maxBatch < 1 || maxWaitMicros < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "maxBatch (%d) must be >= 1 and maxWaitMicros (%d) must be >= 0", maxBatch, maxWaitMicros));
+        }
+        this.multiDimPoints = multiDimPoints;
+        this.finder = finder;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = maxWaitMicros*1000;
+        dispatcher = new Thread(this::dispatch, "QueryServer-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue a request for the k nearest neighbours of the given point.
+     * @return the nearest neighbours sorted by ascending distance, when they have been found.
+     */
+    public CompletableFuture<Nearest[]> submit(int basePoint, int k) {
+        Request request = new Request(basePoint, k);
+        if (closed) {
+            request.result.completeExceptionally(new IllegalStateException("The server is closed"));
+            return request.result;
+        }
+        queue.add(request);
+        if (closed && queue.remove(request)) { // Closed while adding
+            request.result.completeExceptionally(new IllegalStateException("The server is closed"));
+        }
+        return request.result;
+    }
+
+    /**
+     * Blocking version of {@link #submit}.
+     */
+    public Nearest[] query(int basePoint, int k) {
+        try {
+            return submit(basePoint, k).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Exception while answering query", e.getCause());
+        }
+    }
+
+    private void dispatch() {
+        final List<Request> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                final Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - batch.size());
+                final long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    final long wait = deadline - System.nanoTime();
+                    final Request next = wait <= 0 ? queue.poll() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                answer(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                // The dispatcher must keep running, so the batch is failed and the next one processed
+                log.error("Exception dispatching a batch of " + batch.size() + " requests", t);
+                for (Request request: batch) {
+                    fail(request, t);
+                }
+                batch.clear();
+            }
+        }
+        for (Request request: batch) {
+            request.result.completeExceptionally(new IllegalStateException("The server was closed"));
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("The server was closed"));
+        }
+    }
+
+    private void answer(List<Request> batch) {
+        final List<Request> valid = new ArrayList<>(batch.size());
+        for (Request request: batch) {
+            if (request.basePoint < 0 || request.basePoint >= multiDimPoints.getPoints() || request.k < 1) {
+                fail(request, new IllegalArgumentException(String.format(
+                        "The point must be between 0 and %d and k must be >= 1, but got point %d and k %d",
+                        multiDimPoints.getPoints()-1, request.basePoint, request.k)));
+                continue;
+            }
+            valid.add(request);
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        batchedRequests.addAndGet(valid.size());
+        try {
+            if (finder instanceof BlockedNearestFinder) {
+                final int[] basePoints = new int[valid.size()];
+                final int[] ks = new int[valid.size()];
+                for (int i = 0 ; i < basePoints.length ; i++) {
+                    basePoints[i] = valid.get(i).basePoint;
+                    ks[i] = clampK(valid.get(i).k);
+                }
+                final Nearest[][] results = ((BlockedNearestFinder) finder).findKNearest(basePoints, ks);
+                for (int i = 0 ; i < basePoints.length ; i++) {
+                    complete(valid.get(i), results[i]);
+                }
+            } else {
+                for (Request request: valid) {
+                    complete(request, finder.findKNearest(request.basePoint, clampK(request.k)));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Exception answering a batch of " + valid.size() + " requests", e);
+            for (Request request: valid) {
+                fail(request, e);
+            }
+        }
+    }
+
+    /**
+     * @return k limited to the number of points besides the base point.
+     */
+    private int clampK(int k) {
+        return Math.max(1, Math.min(k, multiDimPoints.getPoints()-1));
+    }
+
+    private void complete(Request request, Nearest[] nearest) {
+        if (!request.result.isDone()) {
+            request.result.complete(nearest.length > request.k ? Arrays.copyOf(nearest, request.k) : nearest);
+            latencies.record(System.nanoTime() - request.createdNanos);
+        }
+    }
+
+    private void fail(Request request, Throwable cause) {
+        if (request.result.completeExceptionally(cause)) {
+            latencies.record(System.nanoTime() - request.createdNanos);
+        }
+    }
+
+    /**
+     * Start accepting connections on the loopback interface.
+     * @param port the port to listen on. 0 means any free port.
+     * @return the port that the server listens on.
+     */
+    public synchronized int listen(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("The server is already listening on port " + serverSocket.getLocalPort());
+        }
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "QueryServer-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final ServerSocket acceptSocket = serverSocket;
+        final ExecutorService acceptConnections = connections;
+        acceptConnections.submit(() -> {
+            while (!acceptSocket.isClosed()) {
+                try {
+                    final Socket socket = acceptSocket.accept();
+                    acceptConnections.submit(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!acceptSocket.isClosed()) {
+                        log.warn("Exception accepting connection", e);
+                    }
+                }
+            }
+        });
+        log.info("Listening for queries on " + serverSocket.getLocalSocketAddress());
+        return serverSocket.getLocalPort();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket ;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)) ;
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if ("QUIT".equals(line)) {
+                    break;
+                }
+                out.print(handle(line));
+                out.print('\n');
+                out.flush();
+            }
+        } catch (SocketException e) {
+            log.debug("Connection closed: " + e.getMessage());
+        } catch (IOException e) {
+            log.warn("Exception serving connection", e);
+        }
+    }
+
+    private String handle(String line) {
+        if ("STATS".equals(line)) {
+            return "OK " + latencies + String.format(Locale.ENGLISH, ", avgBatch=%.1f", getAverageBatchSize());
+        }
+        final String[] tokens = line.split(" +");
+        final int basePoint;
+        final int k;
+        try {
+            basePoint = Integer.parseInt(tokens[0]);
+            k = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 1;
+        } catch (NumberFormatException e) {
+            return "ERROR Expected '<point> [k]', 'STATS' or 'QUIT' but got '" + line + "'";
+        }
+        try {
+            StringBuilder sb = new StringBuilder("OK");
+            for (Nearest nearest: query(basePoint, k)) {
+                sb.append(' ').append(nearest.point).append(':').append(nearest.distance);
+            }
+            return sb.toString();
+        } catch (RuntimeException e) {
+            return "ERROR " + e.getMessage();
+        }
+    }
+
+    public LatencyStats getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the average number of requests answered together.
+     */
+    public double getAverageBatchSize() {
+        final long b = batches.get();
+        return b == 0 ? 0 : batchedRequests.get() * 1.0 / b;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    log.warn("Exception closing server socket", e);
+                }
+                connections.shutdownNow();
+            }
+        }
+        dispatcher.interrupt();
+        try {
+            dispatcher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Usage: QueryServer <points.vec> [port] [maxPoints]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: QueryServer <points" + VectorFile.EXTENSION + "> [port] [maxPoints]");
+            System.exit(1);
+        }
+        final Path input = Paths.get(args[0]);
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 8765;
+        final int maxPoints = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+        final MultiDimPoints multiDimPoints = MultiDimPoints.load(
+                input, maxPoints, VectorFile.isVectorFile(input) ? MultiDimPoints.STORAGE.mapped :
+                        MultiDimPoints.STORAGE.floats);
+        final BlockedNearestFinder finder = new BlockedNearestFinder(multiDimPoints);
+        final QueryServer server = new QueryServer(multiDimPoints, finder);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            finder.close();
+            System.out.println("Served " + server.getLatencies());
+        }));
+        System.out.println("Serving " + multiDimPoints.getPoints() + " points on port " + server.listen(port));
+        server.dispatcher.join();
+    }
+
+    private static class Request {
+        final int basePoint;
+        final int k;
+        final long createdNanos = System.nanoTime();
+        final CompletableFuture<Nearest[]> result = new CompletableFuture<>();
+
+        Request(int basePoint, int k) {
+            this.basePoint = basePoint;
+            this.k = k;
+        }
+    }
+
+    /**
+     * Latencies for the most recent requests, from submission to answer.
+     */
+    public static class LatencyStats {
+        private final long[] samples;
+        private long count = 0;
+
+        public LatencyStats(int maxSamples) {
+            samples = new long[maxSamples];
+        }
+
+        public synchronized void record(long nanos) {
+            samples[(int) (count++ % samples.length)] = nanos;
+        }
+
+        /**
+         * @return the total number of recorded requests.
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile from 0 to 100.
+         * @return the latency in milliseconds at the given percentile for the retained samples, 0 if there are none.
+         */
+        public double getPercentileMS(double percentile) {
+            final long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+            }
+            if (sorted.length == 0) {
+                return 0;
+            }
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length-1, index))] / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "requests=%d, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+                                 getCount(), getPercentileMS(50), getPercentileMS(90), getPercentileMS(99),
+                                 getPercentileMS(100));
+        }
+    }
+}
@@ -33,4 +33,20 @@ public class RandomFinder extends NearestFinder {
         }
         return new Nearest(basePoint, basePoint, exactDistanceSquared(basePoint, candidate));
     }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        Random random = new Random(basePoint);
+        NearestHeap heap = new NearestHeap(k);
+        for (int i = 0 ; i < k ; i++) {
+            int candidate = random.nextInt(multiDimPoints.points);
+            if (candidate == basePoint) {
+                candidate = (candidate+1) % multiDimPoints.points;
+            }
+            if (!heap.contains(candidate)) {
+                heap.offer(candidate, exactDistanceSquared(basePoint, candidate));
+            }
+        }
+        return heap.toNearest(basePoint);
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import java.util.Arrays;
+
+/**
+ * 8 bit scalar quantisation: Each dimension is mapped linearly from its min-max range to 256 levels.
+ *
+ * Memory usage is 1 byte/dimension/point, compared to 4 for {@link VectorStorage.Floats} and 8 for
+ * {@link VectorStorage.Doubles}. The codes are stored with {@code point*dimensions + dimension} layout.
+ */
+public class ScalarQuantizer implements Quantizer {
+    private final MultiDimPoints multiDimPoints;
+    private final int dimensions;
+    private final double[] mins;
+    private final double[] scales;
+    private final byte[] codes;
+
+    public ScalarQuantizer(MultiDimPoints multiDimPoints) {
+        this.multiDimPoints = multiDimPoints;
+        multiDimPoints.markIndexed();
+        dimensions = multiDimPoints.getDimensions();
+        final int points = multiDimPoints.getPoints();
+        if ((long)points * dimensions > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Too many values for scalar quantisation: " + points + " points * " + dimensions + " dimensions");
+        }
+
+        mins = new double[dimensions];
+        final double[] maxs = new double[dimensions];
+        Arrays.fill(mins, Double.MAX_VALUE);
+        Arrays.fill(maxs, -Double.MAX_VALUE);
+        for (int point = 0 ; point < points ; point++) {
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double value = multiDimPoints.get(dim, point);
+                mins[dim] = Math.min(mins[dim], value);
+                maxs[dim] = Math.max(maxs[dim], value);
+            }
+        }
+        scales = new double[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            scales[dim] = maxs[dim] > mins[dim] ? (maxs[dim] - mins[dim]) / 255 : 1;
+        }
+
+        codes = new byte[points * dimensions];
+        for (int point = 0 ; point < points ; point++) {
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                codes[point*dimensions + dim] = encode(dim, multiDimPoints.get(dim, point));
+            }
+        }
+    }
+
+    private byte encode(int dim, double value) {
+        final long level = Math.round((value - mins[dim]) / scales[dim]);
+        return (byte) Math.max(0, Math.min(255, level));
+    }
+
+    /**
+     * @return the approximate value for the given point and dimension.
+     */
+    public double decode(int dim, int point) {
+        return mins[dim] + scales[dim] * (codes[point*dimensions + dim] & 0xFF);
+    }
+
+    @Override
+    public Query query(int basePoint) {
+        return query(multiDimPoints.getVector(basePoint));
+    }
+
+    @Override
+    public Query query(double[] vector) {
+        // The base values are shifted and scaled so that the distance is a plain difference of levels
+        final double[] base = new double[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            base[dim] = (vector[dim] - mins[dim]) / scales[dim];
+        }
+        return point -> {
+            final int offset = point*dimensions;
+            double distance = 0;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double diff = (base[dim] - (codes[offset + dim] & 0xFF)) * scales[dim];
+                distance += diff*diff;
+            }
+            return distance;
+        };
+    }
+
+    @Override
+    public long getCodeBytes() {
+        return codes.length;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Growable storage for points, used by {@link IncrementalNearestFinder}.
+ *
+ * Points are appended to fixed size segments of floats, so adding points never copies existing values. Point IDs
+ * are assigned sequentially and are stable: Deleting a point only marks it with a tombstone. Points can be read
+ * concurrently with additions: A point is visible when its ID is below {@link #size()}.
+ *
+ * Tombstones are bitmaps aligned with the segments and updated with compare-and-set, so {@link #isDeleted} can be
+ * called from the search loops without locking.
+ */
+public class SegmentedPoints {
+    public static final int DEFAULT_SEGMENT_POINTS = 4096;
+
+    private final int dimensions;
+    private final int segmentShift;
+    private final int segmentMask;
+    private volatile float[][] segments = new float[0][];
+    private volatile AtomicLongArray[] tombstones = new AtomicLongArray[0]; // Aligned with segments
+    private volatile int size = 0;
+
+    private final AtomicInteger deletedCount = new AtomicInteger(0);
+
+    public SegmentedPoints(int dimensions) {
+        this(dimensions, DEFAULT_SEGMENT_POINTS);
+    }
+
+    /**
+     * @param dimensions    the number of dimensions for all points.
+     * @param segmentPoints the number of points in each storage segment. Rounded up to a power of 2.
+     */
+    public SegmentedPoints(int dimensions, int segmentPoints) {
+        if (dimensions < 1 || segmentPoints < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "dimensions (%d) and segmentPoints (%d) must be >= 1", dimensions, segmentPoints));
+        }
+        this.dimensions = dimensions;
+        final int roundedPoints = segmentPoints == 1 ? 1 : Integer.highestOneBit(segmentPoints-1) << 1;
+        segmentShift = Integer.numberOfTrailingZeros(roundedPoints);
+        segmentMask = roundedPoints-1;
+    }
+
+    /**
+     * @param vector the values for all dimensions.
+     * @return the ID of the added point.
+     */
+    public synchronized int add(double[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException(
+                    "Expected a vector with " + dimensions + " dimensions but got " + vector.length);
+        }
+        final int id = size;
+        final int segment = id >>> segmentShift;
+        if (segment == segments.length) {
+            float[][] grown = Arrays.copyOf(segments, segment+1);
+            grown[segment] = new float[(segmentMask+1)*dimensions];
+            AtomicLongArray[] grownTombstones = Arrays.copyOf(tombstones, segment+1);
+            grownTombstones[segment] = new AtomicLongArray((segmentMask+64) >>> 6);
+            tombstones = grownTombstones;
+            segments = grown;
+        }
+        final float[] values = segments[segment];
+        final int offset = (id & segmentMask)*dimensions;
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            values[offset + dim] = (float) vector[dim];
+        }
+        size = id+1; // Publishes the values
+        return id;
+    }
+
+    /**
+     * Add all points from multiDimPoints.
+     * @return the ID of the first added point.
+     */
+    public int addAll(MultiDimPoints multiDimPoints) {
+        final int first = size;
+        for (int point = 0 ; point < multiDimPoints.getPoints() ; point++) {
+            add(multiDimPoints.getVector(point));
+        }
+        return first;
+    }
+
+    public double get(int dimension, int id) {
+        return segments[id >>> segmentShift][(id & segmentMask)*dimensions + dimension];
+    }
+
+    /**
+     * @return a copy of the values for all dimensions of the point.
+     */
+    public double[] getVector(int id) {
+        checkID(id);
+        final float[] values = segments[id >>> segmentShift];
+        final int offset = (id & segmentMask)*dimensions;
+        final double[] vector = new double[dimensions];
+        for (int dim = 0 ; dim < dimensions ; dim++) {
+            vector[dim] = values[offset + dim];
+        }
+        return vector;
+    }
+
+    /**
+     * Mark the point as deleted. The values are kept until the storage is discarded.
+     * @return true if the point was not already deleted.
+     */
+    public boolean delete(int id) {
+        checkID(id);
+        final AtomicLongArray words = tombstones[id >>> segmentShift];
+        final int index = (id & segmentMask) >>> 6;
+        final long mask = 1L << id; // Only the lowest 6 bits of id are used for the shift
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(index, word, word | mask));
+        deletedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Lock free check for deletion.
+     * @param id a point ID below {@link #size()}.
+     */
+    public boolean isDeleted(int id) {
+        return (tombstones[id >>> segmentShift].get((id & segmentMask) >>> 6) & (1L << id)) != 0;
+    }
+
+    public int getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * Copy the given points to new {@link MultiDimPoints.STORAGE#floats} points, where point {@code i} is
+     * {@code ids[i]}.
+     */
+    public MultiDimPoints toMultiDimPoints(int[] ids) {
+        MultiDimPoints multiDimPoints = new MultiDimPoints(dimensions, ids.length, MultiDimPoints.STORAGE.floats);
+        for (int i = 0 ; i < ids.length ; i++) {
+            checkID(ids[i]);
+            final float[] values = segments[ids[i] >>> segmentShift];
+            final int offset = (ids[i] & segmentMask)*dimensions;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                multiDimPoints.set(dim, i, values[offset + dim]);
+            }
+        }
+        return multiDimPoints;
+    }
+
+    private void checkID(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("The ID must be between 0 and " + (size-1) + " but was " + id);
+        }
+    }
+
+    /**
+     * @return the number of added points, including deleted ones.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+}
@@ -14,17 +14,20 @@
  */
 package dk.ekot.similar;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Extract the most significant signals from each point and uses that for lookups for candidates.
+ *
+ * If fewer than k candidates are found from the shared signals, the remaining points are scanned linearly, so that
+ * k neighbours are always returned when there are enough points.
  */
 // TODO: Significant it not necessarily the highest number. Could also be the one
 public class StrongestSignalsFinder extends NearestFinder {
     // Bit of a dark magic to get a nice signalCount/matchFudge combo with nice speed.
-    // Setting count=1 and fudge=0 guarantees perfect results, but is slow (speed 100%)
+    // No combination guarantees perfect results, as the nearest point does not need to share any strong signals.
+    // Setting count=1 and fudge=0 is slow (speed 100%)
     // Setting count=10 and fudge=2 has very slight mismatch, but is a bit faster (speed 200%)
     // Setting count=30 and fudge=2 has slight mismatch, but is faster (speed 500%)
     // Setting count=100 and fudge=1 has slightly higher mismatch, but is way faster (speed 1500%)
@@ -34,92 +37,216 @@ public class StrongestSignalsFinder extends NearestFinder {
 
     final int signalCount;
     final int matchFudge;
-    final int[][] signals; // dim, points
+    final byte[][] postings; // dim, VByte encoded deltas of ascending points
+    final int[] postingCounts; // dim
+
+    private final ThreadLocal<NearestHeap> strongestHeaps;
+    private final ThreadLocal<Accumulator> accumulators;
 
     public StrongestSignalsFinder(MultiDimPoints multiDimPoints) {
         this(multiDimPoints, DEFAULT_SIGNAL_COUNT, DEFAULT_MATCH_FUDGE);
     }
     public StrongestSignalsFinder(MultiDimPoints multiDimPoints, int signalCount, int matchFudge) {
         super(multiDimPoints);
-        this.signalCount = signalCount;
+        this.signalCount = Math.min(signalCount, multiDimPoints.dimensions);
         this.matchFudge = matchFudge;
+        strongestHeaps = ThreadLocal.withInitial(() -> new NearestHeap(this.signalCount));
+        accumulators = ThreadLocal.withInitial(() -> new Accumulator(multiDimPoints.points));
 
-        signals = new int[multiDimPoints.dimensions][];
-        List<List<Integer>> signalsList = new ArrayList<>(); // dim, point
-        for (int signal = 0 ; signal < multiDimPoints.dimensions ; signal++) {
-            signalsList.add(new ArrayList<>());
-        }
-        for (int point = 0 ; point < multiDimPoints.points ; point++) {
-            for (int dim: getTopDimensions(point)) {
-                signalsList.get(dim).add(point);
-            }
+        // Top dimensions for all points in parallel: point*signalCount + signal
+        final int[] topDims = new int[multiDimPoints.points * this.signalCount];
+        IntStream.range(0, multiDimPoints.points).parallel().forEach(point -> {
+            final int[] pointTop = getTopDimensions(point);
+            System.arraycopy(pointTop, 0, topDims, point * this.signalCount, pointTop.length);
+        });
+
+        // Invert to points per dimension with a counting sort. Points are added in order, so lists are ascending
+        postingCounts = new int[multiDimPoints.dimensions];
+        for (int dim: topDims) {
+            postingCounts[dim]++;
         }
+        final int[] offsets = new int[multiDimPoints.dimensions+1];
         for (int dim = 0 ; dim < multiDimPoints.dimensions ; dim++) {
-            List<Integer> points = signalsList.get(dim);
-            signals[dim] = new int[points.size()];
-            for (int i = 0 ; i < points.size() ; i++) {
-                signals[dim][i] = points.get(i);
+            offsets[dim+1] = offsets[dim] + postingCounts[dim];
+        }
+        final int[] inverted = new int[topDims.length];
+        final int[] next = Arrays.copyOf(offsets, multiDimPoints.dimensions);
+        for (int i = 0 ; i < topDims.length ; i++) {
+            inverted[next[topDims[i]]++] = i / this.signalCount;
+        }
+
+        postings = new byte[multiDimPoints.dimensions][];
+        IntStream.range(0, multiDimPoints.dimensions).parallel().forEach(
+                dim -> postings[dim] = encode(inverted, offsets[dim], offsets[dim+1]));
+    }
+
+    /**
+     * Variable byte encodes the deltas between the ascending points from start (inclusive) to end (exclusive).
+     */
+    private static byte[] encode(int[] points, int start, int end) {
+        byte[] buffer = new byte[(end-start)*5];
+        int pos = 0;
+        int last = 0;
+        for (int i = start ; i < end ; i++) {
+            int delta = points[i] - last;
+            last = points[i];
+            while ((delta & ~0x7F) != 0) {
+                buffer[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
             }
+            buffer[pos++] = (byte) delta;
         }
+        return Arrays.copyOf(buffer, pos);
     }
 
-    @SuppressWarnings("ConstantConditions")
     private int[] getTopDimensions(int point) {
-        BoundedPriorityQueue<SignalPair> pq = new BoundedPriorityQueue<>(signalCount);
+        // Negative strength as the heap keeps the smallest values
+        NearestHeap strongest = strongestHeaps.get();
+        strongest.clear();
         for (int dim = 0 ; dim < multiDimPoints.dimensions ; dim++) {
-            pq.add(new SignalPair(dim, multiDimPoints.get(dim, point)));
+            strongest.offer(dim, -multiDimPoints.get(dim, point));
         }
+        return toTopDimensions(strongest);
+    }
 
-        int[] topDim = new int[signalCount];
-        for (int i = 0 ; i < signalCount ; i++) {
-            topDim[i] = pq.poll().dimension;
+    private int[] getTopDimensions(double[] vector) {
+        NearestHeap strongest = strongestHeaps.get();
+        strongest.clear();
+        for (int dim = 0 ; dim < multiDimPoints.dimensions ; dim++) {
+            strongest.offer(dim, -vector[dim]);
         }
+        return toTopDimensions(strongest);
+    }
+
+    private static int[] toTopDimensions(NearestHeap strongest) {
+        int[] topDim = new int[strongest.size()];
+        strongest.toPoints(topDim);
         Arrays.sort(topDim);
         return topDim;
     }
 
     @Override
     public Nearest findNearest(int basePoint) {
-        int[] topDims = getTopDimensions(basePoint);
-        int[] pointCloud = new int[multiDimPoints.points];
+        NearestHeap heap = new NearestHeap(1);
+        long cloudPoints = collectKNearest(getTopDimensions(basePoint), basePoint, null, heap);
+        Nearest nearest = first(basePoint, heap.toNearest(basePoint));
+        return new Nearest(basePoint, nearest.point, nearest.distance, "cloudPoints=" + cloudPoints);
+    }
+
+    @Override
+    public Nearest[] findKNearest(int basePoint, int k) {
+        NearestHeap heap = new NearestHeap(k);
+        collectKNearest(getTopDimensions(basePoint), basePoint, null, heap);
+        return heap.toNearest(basePoint);
+    }
+
+    @Override
+    public Nearest[] findKNearest(double[] vector, int k) {
+        NearestHeap heap = new NearestHeap(k);
+        collectKNearest(getTopDimensions(vector), -1, vector, heap);
+        return heap.toNearest(-1);
+    }
+
+    /**
+     * @param topDims   the strongest signals for the base.
+     * @param basePoint the point to search for or -1 if vector is given.
+     * @param vector    the values to search for or null if basePoint is given.
+     * @return the number of points where the distance was calculated.
+     */
+    private long collectKNearest(int[] topDims, int basePoint, double[] vector, NearestHeap heap) {
+        final Accumulator cloud = accumulators.get();
         for (int topDim: topDims) {
-            for (int point : signals[topDim]) {
-                pointCloud[point]++;
+            final byte[] encoded = postings[topDim];
+            int pos = 0;
+            int point = 0;
+            for (int i = 0 ; i < postingCounts[topDim] ; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = encoded[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                point += delta;
+                cloud.add(point);
             }
         }
 
-        int bestPoint = -1;
+        // Only the points sharing at least one signal are considered. They are visited in point order
+        final int[] touched = cloud.getTouched();
+        Arrays.sort(touched, 0, cloud.getTouchedCount());
         int bestCount = -1;
-        double bestDist = Double.MAX_VALUE;
         long cloudPoints = 0;
-        for (int point = 0 ; point < pointCloud.length ; point++) {
-            if (point == basePoint || pointCloud[point] < bestCount - matchFudge) {
+        for (int i = 0 ; i < cloud.getTouchedCount() ; i++) {
+            final int point = touched[i];
+            final int count = cloud.getCount(point);
+            if (point == basePoint || count < bestCount - matchFudge) {
                 continue;
             }
             cloudPoints++;
-            double dist = atMostDistanceSquared(bestDist, basePoint, point);
-            if (dist > bestDist) {
-                continue;
+            if (heap.offer(point, distance(heap.getBound(), basePoint, vector, point))) {
+                bestCount = count;
             }
-            bestDist = dist;
-            bestPoint = point;
-            bestCount = pointCloud[point];
         }
-        return new Nearest(basePoint, bestPoint, bestDist, "cloudPoints=" + cloudPoints);
+        if (heap.size() < heap.getCapacity()) {
+            // Too few candidates. Fill up with the points that were not offered, primarily those without shared signals
+            for (int point = 0 ; point < multiDimPoints.points ; point++) {
+                if (point != basePoint && !heap.contains(point)) {
+                    cloudPoints++;
+                    heap.offer(point, distance(heap.getBound(), basePoint, vector, point));
+                }
+            }
+        }
+        cloud.clear();
+        return cloudPoints;
+    }
+
+    private double distance(double atMost, int basePoint, double[] vector, int point) {
+        return vector == null ?
+                atMostDistanceSquared(atMost, basePoint, point) :
+                atMostDistanceSquared(atMost, vector, point);
     }
 
-    static class SignalPair implements Comparable<SignalPair> {
-        final int dimension;
-        final double strength;
+    /**
+     * Sparse counter for points: Only the touched points are tracked and cleared, so the cost of a query
+     * depends on the number of postings rather than the number of points.
+     */
+    private static class Accumulator {
+        private final int[] counts;
+        private int[] touched = new int[1024];
+        private int touchedCount = 0;
+
+        Accumulator(int points) {
+            counts = new int[points];
+        }
 
-        public SignalPair(int dimension, double strength) {
-            this.dimension = dimension;
-            this.strength = strength;
+        void add(int point) {
+            if (counts[point]++ == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touched.length*2);
+                }
+                touched[touchedCount++] = point;
+            }
         }
 
-        @Override
-        public int compareTo(SignalPair o) {
-            return Double.compare(strength, o.strength);
+        int getCount(int point) {
+            return counts[point];
+        }
+
+        int[] getTouched() {
+            return touched;
+        }
+
+        int getTouchedCount() {
+            return touchedCount;
+        }
+
+        void clear() {
+            for (int i = 0 ; i < touchedCount ; i++) {
+                counts[touched[i]] = 0;
+            }
+            touchedCount = 0;
         }
     }
 }
@@ -0,0 +1,176 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary vector file with a header, so that the number of dimensions does not need to be passed out of band.
+ *
+ * All values are little endian. The header is {@link #HEADER_BYTES} long:
+ * {@code int magic, int version, int dimensions, int reserved, long points, long reserved}, followed by
+ * {@code points*dimensions} floats, point by point. Files have the extension {@link #EXTENSION}.
+ */
+public class VectorFile {
+    public static final String EXTENSION = ".vec";
+    public static final int MAGIC = 0x31434556; // "VEC1" when read as little endian bytes
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 32;
+
+    public final int dimensions;
+    public final long points;
+
+    private VectorFile(int dimensions, long points) {
+        this.dimensions = dimensions;
+        this.points = points;
+    }
+
+    public static boolean isVectorFile(Path file) {
+        return file.getFileName().toString().endsWith(EXTENSION);
+    }
+
+    /**
+     * @return the header of the given file.
+     */
+    public static VectorFile readHeader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) == -1) {
+                    throw new IOException("The file '" + file + "' is too short to hold a vector file header");
+                }
+            }
+            header.flip();
+            final int magic = header.getInt();
+            if (magic != MAGIC) {
+                throw new IOException("The file '" + file + "' is not a vector file (magic=" + magic + ")");
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported vector file version " + version + " in '" + file + "'");
+            }
+            final int dimensions = header.getInt();
+            header.getInt();
+            final long points = header.getLong();
+            if (channel.size() < HEADER_BYTES + points*dimensions*Float.BYTES) {
+                throw new IOException(String.format(
+                        "The file '%s' should hold %d points @ %d dimensions, but is only %d bytes",
+                        file, points, dimensions, channel.size()));
+            }
+            return new VectorFile(dimensions, points);
+        }
+    }
+
+    /**
+     * Writes a vector file. The data are written to a temporary file, which is moved into place with the final
+     * header on {@link #commit()}. If {@link #close()} is called without a commit, e.g. due to an exception while
+     * writing, the temporary file is deleted and any existing file is left untouched.
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path file;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024*1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final int dimensions;
+        private long values = 0;
+        private boolean committed = false;
+
+        public Writer(Path file, int dimensions) throws IOException {
+            if (dimensions < 1) {
+                throw new IllegalArgumentException("dimensions must be >= 1 but was " + dimensions);
+            }
+            this.file = file;
+            this.dimensions = dimensions;
+            tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_BYTES);
+        }
+
+        /**
+         * Write values, which must be whole points.
+         */
+        public void write(float[] floats, int offset, int length) throws IOException {
+            if (length % dimensions != 0) {
+                throw new IllegalArgumentException(
+                        "The number of values " + length + " is not a multiple of the dimensions " + dimensions);
+            }
+            for (int i = offset ; i < offset + length ; i++) {
+                if (buffer.remaining() < Float.BYTES) {
+                    flush();
+                }
+                buffer.putFloat(floats[i]);
+            }
+            values += length;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        public long getPoints() {
+            return values / dimensions;
+        }
+
+        /**
+         * Write the header and move the file into place. The writer is closed afterwards.
+         */
+        public void commit() throws IOException {
+            if (!channel.isOpen()) {
+                throw new IllegalStateException("The writer for '" + file + "' has already been closed");
+            }
+            try {
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(0).putLong(getPoints()).putLong(0);
+                header.flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } finally {
+                channel.close();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Close the writer. If {@link #commit()} has not been called, the temporary file is deleted.
+         */
+        @Override
+        public void close() throws IOException {
+            if (committed) {
+                return;
+            }
+            try {
+                channel.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel parsing of text files with one point/line and values separated by space, tab or comma.
+ * Empty lines and lines starting with {@code #} are skipped. The input can be gzipped.
+ *
+ * The input is read as raw bytes in chunks that are split at line boundaries, the last partial line being carried
+ * over to the next chunk. The chunks are parsed in parallel directly from the bytes, without creating Strings, and
+ * delivered in order to a {@link Sink}. Floats are parsed with a fast path for the common case of a decimal mantissa
+ * of at most 2^53 (15-16 significant digits) and a decimal exponent of at most 22 in magnitude, where both the
+ * mantissa and the power of 10 are exact doubles. Other values fall back to {@link Float#parseFloat}. The result is
+ * identical to {@link Float#parseFloat}.
+ */
+public class VectorIngester {
+    private static Log log = LogFactory.getLog(VectorIngester.class);
+
+    public static final int DEFAULT_CHUNK_BYTES = 4*1024*1024;
+
+    private static final double[] POW10 = new double[23]; // All exact as doubles
+    static {
+        POW10[0] = 1;
+        for (int i = 1 ; i < POW10.length ; i++) {
+            POW10[i] = POW10[i-1] * 10;
+        }
+    }
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final int threads;
+    private int chunkBytes = DEFAULT_CHUNK_BYTES;
+
+    /**
+     * Receiver of parsed points, called in input order from a single thread.
+     */
+    public interface Sink {
+        /**
+         * @param values     the parsed values, point by point. Only the first {@code points*dimensions} are valid.
+         * @param points     the number of points in values.
+         * @param dimensions the number of dimensions. The same for all calls.
+         */
+        void accept(float[] values, int points, int dimensions) throws IOException;
+    }
+
+    public VectorIngester() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads the number of threads to use for parsing.
+     */
+    public VectorIngester(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1 but was " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param chunkBytes the size of the chunks to parse. Primarily used for testing.
+     */
+    void setChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Convert a text file to a {@link VectorFile}. The output is only created or replaced if the conversion succeeds.
+     * @return the number of converted points.
+     */
+    public long convert(Path input, Path output, long maxPoints) throws IOException {
+        final VectorFile.Writer[] writer = new VectorFile.Writer[1];
+        try {
+            long points = ingest(input, maxPoints, (values, chunkPoints, dimensions) -> {
+                if (writer[0] == null) {
+                    writer[0] = new VectorFile.Writer(output, dimensions);
+                }
+                writer[0].write(values, 0, chunkPoints*dimensions);
+            });
+            if (writer[0] == null) {
+                throw new IOException("No points in '" + input + "'");
+            }
+            writer[0].commit();
+            return points;
+        } finally {
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+    }
+
+    /**
+     * Parse the points in input and deliver them to sink.
+     * @param maxPoints the maximum number of points to deliver.
+     * @return the number of delivered points.
+     */
+    public long ingest(Path input, long maxPoints, Sink sink) throws IOException {
+        final long startTime = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "VectorIngester");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Deque<Future<Parsed>> pending = new ArrayDeque<>();
+        long delivered = 0;
+        int dimensions = -1;
+        try (InputStream is = MultiDimPoints.getStream(input)) {
+            byte[] buffer = new byte[chunkBytes];
+            int filled = 0;
+            boolean eof = false;
+            while (!eof && delivered < maxPoints) {
+                // Fill the buffer
+                while (filled < buffer.length) {
+                    final int read = is.read(buffer, filled, buffer.length - filled);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    filled += read;
+                }
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && buffer[end-1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) { // A line longer than the buffer
+                        buffer = Arrays.copyOf(buffer, buffer.length*2);
+                        continue;
+                    }
+                }
+                if (end > 0) {
+                    final byte[] chunk = buffer;
+                    final int chunkEnd = end;
+                    pending.add(executor.submit(() -> parse(chunk, 0, chunkEnd)));
+                }
+                // Carry the partial line over to a new buffer as the old one is being parsed
+                final byte[] next = new byte[Math.max(chunkBytes, filled - end)];
+                System.arraycopy(buffer, end, next, 0, filled - end);
+                filled -= end;
+                buffer = next;
+
+                while (pending.size() > threads || (eof && !pending.isEmpty())) {
+                    if (delivered >= maxPoints) {
+                        break;
+                    }
+                    final Parsed parsed = get(pending.removeFirst());
+                    dimensions = deliver(input, parsed, dimensions, maxPoints - delivered, sink);
+                    delivered += Math.min(parsed.points, maxPoints - delivered);
+                }
+            }
+            while (!pending.isEmpty() && delivered < maxPoints) {
+                final Parsed parsed = get(pending.removeFirst());
+                dimensions = deliver(input, parsed, dimensions, maxPoints - delivered, sink);
+                delivered += Math.min(parsed.points, maxPoints - delivered);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info(String.format("Ingested %d points @ %d dimensions from '%s' with %d threads in %dms",
+                               delivered, dimensions, input, threads, (System.nanoTime()-startTime)/1000000L));
+        return delivered;
+    }
+
+    private int deliver(Path input, Parsed parsed, int dimensions, long maxPoints, Sink sink) throws IOException {
+        if (parsed.points == 0) {
+            return dimensions;
+        }
+        if (dimensions != -1 && parsed.dimensions != dimensions) {
+            throw new IllegalArgumentException(
+                    "The file '" + input.getFileName() + "' was expected to hold points with dimensions " +
+                    dimensions + ", but a line with dimension " + parsed.dimensions + " was encountered");
+        }
+        sink.accept(parsed.values, (int) Math.min(parsed.points, maxPoints), parsed.dimensions);
+        return parsed.dimensions;
+    }
+
+    private static <T> T get(Future<T> job) throws IOException {
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ingesting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Exception while ingesting", e.getCause());
+        }
+    }
+
+    /**
+     * Parse whole lines from start (inclusive) to end (exclusive).
+     */
+    static Parsed parse(byte[] bytes, int start, int end) {
+        Parsed parsed = new Parsed(Math.max(16, (end-start)/8));
+        int pos = start;
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (bytes[pos] != '#') {
+                parseLine(bytes, pos, lineEnd, parsed);
+            }
+            pos = lineEnd + 1;
+        }
+        return parsed;
+    }
+
+    private static void parseLine(byte[] bytes, int start, int end, Parsed parsed) {
+        int values = 0;
+        int pos = start;
+        while (true) {
+            while (pos < end && isSeparator(bytes[pos])) {
+                pos++;
+            }
+            if (pos == end) {
+                break;
+            }
+            int tokenEnd = pos;
+            while (tokenEnd < end && !isSeparator(bytes[tokenEnd])) {
+                tokenEnd++;
+            }
+            parsed.add(parseFloat(bytes, pos, tokenEnd));
+            values++;
+            pos = tokenEnd;
+        }
+        if (values == 0) { // Empty line
+            return;
+        }
+        if (parsed.dimensions == -1) {
+            parsed.dimensions = values;
+        } else if (parsed.dimensions != values) {
+            throw new IllegalArgumentException(
+                    "Expected points with dimensions " + parsed.dimensions + ", but a line with dimension " + values +
+                    " was encountered:\n" + new String(bytes, start, end-start, StandardCharsets.UTF_8));
+        }
+        parsed.points++;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == ',' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Parse the float in bytes from start (inclusive) to end (exclusive).
+     * @throws NumberFormatException if the bytes does not represent a float.
+     */
+    static float parseFloat(byte[] bytes, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+            negative = bytes[pos++] == '-';
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        boolean digits = false;
+        boolean truncated = false;
+        while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            if (mantissa < MAX_EXACT_MANTISSA) {
+                mantissa = mantissa*10 + (bytes[pos] - '0');
+            } else {
+                exponent++;
+                truncated = true;
+            }
+            digits = true;
+            pos++;
+        }
+        if (pos < end && bytes[pos] == '.') {
+            pos++;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa*10 + (bytes[pos] - '0');
+                    exponent--;
+                } else {
+                    truncated = true;
+                }
+                digits = true;
+                pos++;
+            }
+        }
+        if (digits && pos < end && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+                negativeExponent = bytes[pos++] == '-';
+            }
+            int exp = 0;
+            boolean expDigits = false;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                exp = Math.min(10000, exp*10 + (bytes[pos++] - '0'));
+                expDigits = true;
+            }
+            if (!expDigits) {
+                return fallback(bytes, start, end);
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+        if (!digits || pos != end) { // NaN, Infinity, hex and errors
+            return fallback(bytes, start, end);
+        }
+        if (mantissa == 0) {
+            return negative ? -0.0f : 0.0f;
+        }
+        if (truncated || mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22) {
+            return fallback(bytes, start, end);
+        }
+        // Correctly rounded, as both mantissa and the power of 10 are exact doubles
+        final double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+        // Rounding the double to float is only ambiguous if the double is exactly halfway between two floats
+        if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L || value < Float.MIN_NORMAL) {
+            return fallback(bytes, start, end);
+        }
+        return negative ? (float) -value : (float) value;
+    }
+
+    private static float fallback(byte[] bytes, int start, int end) {
+        return Float.parseFloat(new String(bytes, start, end-start, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * The values from a parsed chunk.
+     */
+    static class Parsed {
+        float[] values;
+        int size = 0;
+        int points = 0;
+        int dimensions = -1;
+
+        Parsed(int capacity) {
+            values = new float[capacity];
+        }
+
+        void add(float value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, values.length + (values.length >> 1) + 1);
+            }
+            values[size++] = value;
+        }
+    }
+}
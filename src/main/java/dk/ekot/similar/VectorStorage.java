@@ -0,0 +1,406 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.ekot.similar;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Backing store for the values in {@link MultiDimPoints}. Values are stored point by point, so the value for
+ * {@code (dimension, point)} is at index {@code point*dimensions+dimension}.
+ */
+public interface VectorStorage {
+
+    double get(int dimension, int point);
+
+    void set(int dimension, int point, double value);
+
+    /**
+     * @param index {@code point*dimensions+dimension}.
+     */
+    double get(long index);
+
+    /**
+     * @param index {@code point*dimensions+dimension}.
+     */
+    void set(long index, double value);
+
+    /**
+     * @return the number of values: {@code points*dimensions}.
+     */
+    long size();
+
+    /*
+     * The distance calculations are part of the storage so that the inner loops are specialised for the concrete
+     * storage. Going through {@link #get(int, int)} for each value makes the call site megamorphic, as more than
+     * two implementations are in use, which blocks inlining and vectorisation.
+     */
+
+    /**
+     * @return the squared Euclidean distance between the two points.
+     */
+    double distanceSquared(int pointA, int pointB);
+
+    /**
+     * Calculates the squared distance, stopping early if it exceeds atMost. The running sum is checked with the
+     * intervals described in {@link NearestFinder#atMostDistanceSquared(double, int, int)}.
+     * @return the exact squared distance or a partial distance larger than atMost.
+     */
+    double atMostDistanceSquared(double atMost, int pointA, int pointB);
+
+    /**
+     * Same as {@link #atMostDistanceSquared(double, int, int)} with the first point given as the values in vector,
+     * starting at offset.
+     */
+    double atMostDistanceSquared(double atMost, double[] vector, int offset, int point);
+
+    /**
+     * The original representation. Highest precision, but twice the memory of {@link Floats}.
+     * Limited to {@code Integer.MAX_VALUE} values.
+     */
+    final class Doubles implements VectorStorage {
+        private final int dimensions;
+        private final double[] values;
+
+        public Doubles(int dimensions, int points) {
+            this.dimensions = dimensions;
+            values = new double[checkSize(dimensions, points)];
+        }
+
+        @Override
+        public double get(int dimension, int point) {
+            return values[point*dimensions + dimension];
+        }
+
+        @Override
+        public void set(int dimension, int point, double value) {
+            values[point*dimensions + dimension] = value;
+        }
+
+        @Override
+        public double get(long index) {
+            return values[(int) index];
+        }
+
+        @Override
+        public void set(long index, double value) {
+            values[(int) index] = value;
+        }
+
+        @Override
+        public long size() {
+            return values.length;
+        }
+
+        @Override
+        public double distanceSquared(int pointA, int pointB) {
+            final int offsetA = pointA*dimensions;
+            final int offsetB = pointB*dimensions;
+            double distance = 0;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double diff = values[offsetA + dim] - values[offsetB + dim];
+                distance += diff*diff;
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, int pointA, int pointB) {
+            final int offsetA = pointA*dimensions;
+            final int offsetB = pointB*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = values[offsetA + dim] - values[offsetB + dim];
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, double[] vector, int offset, int point) {
+            final int pointOffset = point*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = vector[offset + dim] - values[pointOffset + dim];
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+    }
+
+    /**
+     * Same precision as the {@code .bin} files at half the memory of {@link Doubles}.
+     * Limited to {@code Integer.MAX_VALUE} values.
+     */
+    final class Floats implements VectorStorage {
+        private final int dimensions;
+        private final float[] values;
+
+        public Floats(int dimensions, int points) {
+            this.dimensions = dimensions;
+            values = new float[checkSize(dimensions, points)];
+        }
+
+        @Override
+        public double get(int dimension, int point) {
+            return values[point*dimensions + dimension];
+        }
+
+        @Override
+        public void set(int dimension, int point, double value) {
+            values[point*dimensions + dimension] = (float) value;
+        }
+
+        @Override
+        public double get(long index) {
+            return values[(int) index];
+        }
+
+        @Override
+        public void set(long index, double value) {
+            values[(int) index] = (float) value;
+        }
+
+        @Override
+        public long size() {
+            return values.length;
+        }
+
+        @Override
+        public double distanceSquared(int pointA, int pointB) {
+            final int offsetA = pointA*dimensions;
+            final int offsetB = pointB*dimensions;
+            double distance = 0;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double diff = (double) values[offsetA + dim] - values[offsetB + dim];
+                distance += diff*diff;
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, int pointA, int pointB) {
+            final int offsetA = pointA*dimensions;
+            final int offsetB = pointB*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = (double) values[offsetA + dim] - values[offsetB + dim];
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, double[] vector, int offset, int point) {
+            final int pointOffset = point*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = vector[offset + dim] - values[pointOffset + dim];
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+    }
+
+    /**
+     * Read only memory mapping of a {@code .bin} file with big endian floats or a {@link VectorFile}. Loading is
+     * instant and the data lives outside of the heap, handled by the operating system's page cache.
+     *
+     * The file is mapped in segments, each holding a power of 2 number of whole points, so that files larger than
+     * 2GB are supported and no point spans two segments.
+     */
+    final class Mapped implements VectorStorage {
+        private final int dimensions;
+        private final long size;
+        private final FloatBuffer[] segments;
+        private final int segmentShift; // pointsPerSegment == 1 << segmentShift
+        private final int segmentMask;
+
+        /**
+         * @param file       a file with big endian floats, point by point.
+         * @param dimensions the number of dimensions for each point.
+         * @param points     the number of points to map. Must be less than or equal to the points in the file.
+         */
+        public Mapped(Path file, int dimensions, int points) throws IOException {
+            this(file, dimensions, points, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param maxSegmentBytes the maximum size of a mapped segment. Primarily used for testing.
+         */
+        Mapped(Path file, int dimensions, int points, int maxSegmentBytes) throws IOException {
+            this(file, 0, ByteOrder.BIG_ENDIAN, dimensions, points, maxSegmentBytes);
+        }
+
+        /**
+         * @param file       a file with floats, point by point, starting at offset.
+         * @param offset     the number of bytes to skip before the first float, e.g. a header.
+         * @param order      the byte order of the floats.
+         * @param dimensions the number of dimensions for each point.
+         * @param points     the number of points to map. Must be less than or equal to the points in the file.
+         */
+        public Mapped(Path file, long offset, ByteOrder order, int dimensions, int points) throws IOException {
+            this(file, offset, order, dimensions, points, Integer.MAX_VALUE);
+        }
+
+        Mapped(Path file, long offset, ByteOrder order, int dimensions, int points, int maxSegmentBytes)
+                throws IOException {
+            this.dimensions = dimensions;
+            this.size = (long) dimensions * points;
+            final int pointsPerSegment = Integer.highestOneBit(Math.max(1, maxSegmentBytes / (dimensions*Float.BYTES)));
+            segmentShift = Integer.numberOfTrailingZeros(pointsPerSegment);
+            segmentMask = pointsPerSegment-1;
+            segments = new FloatBuffer[(points + pointsPerSegment - 1) / pointsPerSegment];
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() - offset < size*Float.BYTES) {
+                    throw new IllegalArgumentException(
+                            "The file '" + file + "' holds " + (channel.size()-offset)/Float.BYTES/dimensions +
+                            " points but " + points + " was requested");
+                }
+                for (int segment = 0 ; segment < segments.length ; segment++) {
+                    final long firstPoint = (long) segment * pointsPerSegment;
+                    final long segmentPoints = Math.min(pointsPerSegment, points - firstPoint);
+                    // The mapping stays valid after the channel is closed
+                    segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                    offset + firstPoint*dimensions*Float.BYTES,
+                                                    segmentPoints*dimensions*Float.BYTES)
+                            .order(order).asFloatBuffer();
+                }
+            }
+        }
+
+        @Override
+        public double get(int dimension, int point) {
+            return segments[point >>> segmentShift].get((point & segmentMask)*dimensions + dimension);
+        }
+
+        @Override
+        public void set(int dimension, int point, double value) {
+            throw new UnsupportedOperationException("Mapped storage is read only");
+        }
+
+        @Override
+        public double get(long index) {
+            return get((int) (index % dimensions), (int) (index / dimensions));
+        }
+
+        @Override
+        public void set(long index, double value) {
+            throw new UnsupportedOperationException("Mapped storage is read only");
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public double distanceSquared(int pointA, int pointB) {
+            final FloatBuffer segmentA = segments[pointA >>> segmentShift];
+            final FloatBuffer segmentB = segments[pointB >>> segmentShift];
+            final int offsetA = (pointA & segmentMask)*dimensions;
+            final int offsetB = (pointB & segmentMask)*dimensions;
+            double distance = 0;
+            for (int dim = 0 ; dim < dimensions ; dim++) {
+                final double diff = (double) segmentA.get(offsetA + dim) - segmentB.get(offsetB + dim);
+                distance += diff*diff;
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, int pointA, int pointB) {
+            final FloatBuffer segmentA = segments[pointA >>> segmentShift];
+            final FloatBuffer segmentB = segments[pointB >>> segmentShift];
+            final int offsetA = (pointA & segmentMask)*dimensions;
+            final int offsetB = (pointB & segmentMask)*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = (double) segmentA.get(offsetA + dim) - segmentB.get(offsetB + dim);
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+
+        @Override
+        public double atMostDistanceSquared(double atMost, double[] vector, int offset, int point) {
+            final FloatBuffer segment = segments[point >>> segmentShift];
+            final int pointOffset = (point & segmentMask)*dimensions;
+            double distance = 0;
+            for (int dimMajor = 0, dimMax; dimMajor < dimensions; dimMajor = dimMax) {
+                dimMax = NearestFinder.nextCheck(dimMajor, dimensions);
+                for (int dim = dimMajor; dim < dimMax; dim++) {
+                    final double diff = vector[offset + dim] - segment.get(pointOffset + dim);
+                    distance += diff*diff;
+                }
+                if (distance > atMost) {
+                    return distance;
+                }
+            }
+            return distance;
+        }
+
+        /**
+         * @return the number of mapped segments.
+         */
+        public int getSegmentCount() {
+            return segments.length;
+        }
+    }
+
+    static int checkSize(int dimensions, int points) {
+        final long size = (long) dimensions * points;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    points + " points @ " + dimensions + " dimensions exceeds the array limit. " +
+                    "Use MultiDimPoints.STORAGE.mapped instead");
+        }
+        return (int) size;
+    }
+}
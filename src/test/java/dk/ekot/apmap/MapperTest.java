@@ -460,4 +460,20 @@ public class MapperTest extends TestCase {
         PriorityAdjuster.adjustPrioritiesShape6Corners3Inner(board);
         System.out.println(board);
     }
-}
\ No newline at end of file
+
+    public void testWorkUnitsPartition() {
+        final int edge = 3;
+        Mapper full = new Mapper(edge);
+        MapWalker fullWalker = new MapWalker(full);
+        fullWalker.walk(60000, false);
+
+        int best = 0;
+        for (String prefix: APMapWorkUnits.createPrefixes(edge, 2)) {
+            String result = APMapWorkUnits.process(prefix, 60000);
+            int markers = Integer.parseInt(result.replaceAll(".*\"markers\":([0-9]+).*", "$1"));
+            best = Math.max(best, markers);
+        }
+        assertEquals("The work units should find the same best as the full walk",
+                     fullWalker.getBestBoard().getMarkedCount(), best);
+    }
+}
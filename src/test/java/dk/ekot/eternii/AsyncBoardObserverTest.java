@@ -0,0 +1,53 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class AsyncBoardObserverTest extends TestCase {
+
+    public void testCoalescing() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        List<String> events = new ArrayList<>();
+        AsyncBoardObserver observer = new AsyncBoardObserver(
+                board, (x, y, label) -> events.add(x + "," + y + ":" + label), 10000);
+        for (int i = 0 ; i < 10 ; i++) {
+            assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, "l" + i));
+            board.removePiece(0, 0);
+        }
+        assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, "last"));
+        observer.close();
+        assertEquals("Repeated changes to the same field should be coalesced", 1, events.size());
+        assertEquals("The latest label should be delivered", "0,0:last", events.get(0));
+        assertEquals("There should be no overruns", 0, observer.getOverruns());
+    }
+
+    public void testOverrun() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        List<String> events = new ArrayList<>();
+        AsyncBoardObserver observer = new AsyncBoardObserver(
+                board, (x, y, label) -> events.add(x + "," + y), 10000, 4);
+        for (int i = 0 ; i < 10 ; i++) {
+            assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, ""));
+            board.removePiece(0, 0);
+        }
+        observer.close();
+        assertEquals("An overrun should result in all fields being reported", 16, events.size());
+        assertEquals("There should be a single overrun", 1, observer.getOverruns());
+    }
+}
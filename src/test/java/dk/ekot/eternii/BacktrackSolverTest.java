@@ -0,0 +1,97 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class BacktrackSolverTest extends TestCase {
+
+    public void testSample4x4() {
+        EBoard board = getSampleBoard();
+        BacktrackSolver solver = new BacktrackSolver(board, null);
+        solver.run();
+        assertTrue("The sample should be solved", solver.isSolved());
+        assertSolved(board);
+        assertEquals("The number of placements should match the board size", 16, solver.getPlacements().length);
+    }
+
+    public void testParallelSample4x4() {
+        EBoard board = getSampleBoard();
+        ParallelBacktrackSolver solver = new ParallelBacktrackSolver(board, null, 4);
+        solver.run();
+        assertNotNull("The parallel solver should find a solution", solver.getSolution());
+        assertSolved(board);
+    }
+
+    public void testCopyAndHash() {
+        EBoard board = getSampleBoard();
+        long emptyHash = board.getHash();
+        assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, ""));
+        EBoard copy = board.copy();
+        assertEquals("The copy should have the same hash", board.getHash(), copy.getHash());
+        assertEquals("The copy should have the same free count", board.getFreeCount(), copy.getFreeCount());
+
+        copy.removePiece(0, 0);
+        assertEquals("Removing the only piece should restore the empty hash", emptyHash, copy.getHash());
+        assertEquals("The original should be unaffected by changes to the copy", 0, board.getPiece(0, 0));
+    }
+
+    public void testForwardChecking() {
+        EBoard plain = getSampleBoard();
+        BacktrackSolver plainSolver = new BacktrackSolver(plain, null);
+        plainSolver.run();
+
+        EBoard board = getSampleBoard();
+        board.setForwardChecking(true);
+        assertEquals("The corner should fit all corner pieces", 4, board.getFittingCount(0, 0));
+        BacktrackSolver solver = new BacktrackSolver(board, null);
+        solver.run();
+        assertTrue("The sample should be solved with forward checking", solver.isSolved());
+        assertSolved(board);
+        assertTrue("Forward checking should not increase attempts, but got " + solver.getAttempts() +
+                   " vs. " + plainSolver.getAttempts(), solver.getAttempts() <= plainSolver.getAttempts());
+    }
+
+    public void testForwardCheckingRollback() {
+        EBoard board = getSampleBoard();
+        board.setForwardChecking(true);
+        assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, ""));
+        int fitting = board.getFittingCount(1, 0);
+        assertTrue("The neighbour should have fitting pieces", fitting > 0);
+        board.removePiece(0, 0);
+        assertEquals("The corner should be free again", -1, board.getPiece(0, 0));
+        int incremental = board.getFittingCount(1, 0);
+        assertEquals("The neighbour count should match a fresh calculation",
+                     freshCount(board, 1, 0), incremental);
+    }
+
+    private int freshCount(EBoard board, int x, int y) {
+        board.setForwardChecking(false);
+        board.setForwardChecking(true);
+        return board.getFittingCount(x, y);
+    }
+
+    static EBoard getSampleBoard() {
+        EPieces pieces = EPieces.getSample4x4();
+        EBoard board = new EBoard(pieces, 4, 4);
+        board.registerFreePieces(pieces.getBag());
+        return board;
+    }
+
+    static void assertSolved(EBoard board) {
+        assertEquals("All fields should be filled", 0, board.getFreeCount());
+        board.streamAllFields().forEach(field -> assertTrue(field + " should be valid", field.isValid()));
+    }
+}
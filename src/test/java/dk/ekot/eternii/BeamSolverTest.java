@@ -0,0 +1,54 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class BeamSolverTest extends TestCase {
+
+    public void testSample4x4() throws IOException {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BeamSolver solver = new BeamSolver(board, 2, new AtomicBoolean(false));
+        Path output = Files.createTempFile("beam", ".txt");
+        solver.setOutput(output);
+        solver.setWidths(10, 1000, 4);
+        solver.run();
+
+        assertEquals("The sample should be solved with all edges matching", 24, solver.getBestScore());
+        int[] best = solver.getBest();
+        assertEquals("All pieces should be used exactly once", 16,
+                     Arrays.stream(best).map(rotated -> rotated >>> 2).distinct().count());
+        assertTrue("The output should contain the score",
+                   new String(Files.readAllBytes(output), StandardCharsets.UTF_8).startsWith("score=24/24"));
+        assertEquals("The board should not be changed", 0, board.getFilledCount());
+        Files.delete(output);
+    }
+
+    public void testNarrowBeamFillsBoard() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BeamSolver solver = new BeamSolver(board, 1, new AtomicBoolean(false));
+        solver.setWidths(1, 1, 1);
+        solver.run();
+        assertTrue("A greedy pass should still produce a full board", solver.getBestScore() >= 0);
+        assertFalse("A greedy pass should fill all fields", Arrays.stream(solver.getBest()).anyMatch(r -> r == -1));
+    }
+}
@@ -0,0 +1,94 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class BoardExporterTest extends TestCase {
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("boardexporter");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        super.tearDown();
+    }
+
+    public void testExportIfBetter() throws IOException {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BoardExporter exporter = new BoardExporter(board, dir, 0, BoardExporter.DEFAULT_MAX_LOG_BYTES, 1);
+
+        assertFalse("An empty board should not be exported", exporter.exportIfBetter());
+        assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, ""));
+        assertTrue("A board with a piece should be exported", exporter.exportIfBetter());
+        assertFalse("An unchanged board should not be exported again", exporter.exportIfBetter());
+        assertEquals("The best should be the single piece", 1, exporter.getBest());
+
+        String url = new String(Files.readAllBytes(dir.resolve(BoardExporter.URL)), StandardCharsets.UTF_8).trim();
+        assertEquals("The exported URL should match the board", board.getDisplayURL(), url);
+        List<String> lines = Files.readAllLines(dir.resolve(BoardExporter.PROGRESS), StandardCharsets.UTF_8);
+        assertEquals("There should be a single progress line", 1, lines.size());
+        assertTrue("The progress line should contain the filled count", lines.get(0).contains("\"filled\":1"));
+        exporter.close();
+    }
+
+    public void testRollOver() throws IOException {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BoardExporter exporter = new BoardExporter(board, dir, 0, 10, 1);
+        new BacktrackSolver(board, null).run();
+        assertTrue("The first export should succeed", exporter.exportIfBetter());
+        exporter.close();
+        board.removePiece(0, 0);
+        exporter = new BoardExporter(board, dir, 0, 10, 1);
+        assertTrue("The export from the new exporter should succeed", exporter.exportIfBetter());
+        assertTrue("The progress log should be rolled over",
+                   Files.exists(dir.resolve(BoardExporter.PROGRESS + ".1")));
+        assertEquals("The current progress log should hold a single line",
+                     1, Files.readAllLines(dir.resolve(BoardExporter.PROGRESS), StandardCharsets.UTF_8).size());
+        exporter.close();
+    }
+
+    public void testBestBetweenChecks() throws IOException {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BoardExporter exporter = new BoardExporter(board, dir, 0, BoardExporter.DEFAULT_MAX_LOG_BYTES, 1);
+        assertTrue("Placing the corner should succeed", board.placePiece(0, 0, 0, 0, ""));
+        board.removePiece(0, 0);
+        assertTrue("A best board that was backtracked from should be exported", exporter.exportIfBetter());
+        assertEquals("The best should be the single piece", 1, exporter.getBest());
+        exporter.close();
+    }
+
+    public void testDisplayURLDimensions() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        String url = board.getDisplayURL();
+        String edges = url.substring(url.indexOf("board_edges=") + "board_edges=".length());
+        assertEquals("There should be 4 edges for each field", 4*4*4, edges.length());
+    }
+}
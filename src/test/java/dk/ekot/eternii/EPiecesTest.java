@@ -49,6 +49,53 @@ public class EPiecesTest extends TestCase {
         }
     }
 
+    public void testEdgeTables() {
+        EPieces pieces = EPieces.getSample4x4();
+        for (int piece = 0 ; piece < 16 ; piece++) {
+            for (int rotation = 0 ; rotation < 4 ; rotation++) {
+                String display = pieces.toDisplayString(piece, rotation);
+                assertEquals("Top edge for piece " + piece + ", rotation " + rotation + " should match display",
+                             display.charAt(0)-'a', pieces.getTop(piece, rotation));
+                assertEquals("Right edge for piece " + piece + ", rotation " + rotation + " should match display",
+                             display.charAt(1)-'a', pieces.getRight(piece, rotation));
+                assertEquals("Bottom edge for piece " + piece + ", rotation " + rotation + " should match display",
+                             display.charAt(2)-'a', pieces.getBottom(piece, rotation));
+                assertEquals("Left edge for piece " + piece + ", rotation " + rotation + " should match display",
+                             display.charAt(3)-'a', pieces.getLeft(piece, rotation));
+            }
+        }
+    }
+
+    public void testInvalidRotation() {
+        EPieces pieces = EPieces.getSample4x4();
+        for (int rotation: new int[]{-1, 4, 7}) {
+            try {
+                pieces.getLeft(0, rotation);
+                fail("Rotation " + rotation + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    public void testNorthWestIndex() {
+        EPieces pieces = EPieces.getSample4x4();
+        int total = 0;
+        for (int north = 0 ; north < PieceTracker.EF ; north++) {
+            for (int west = 0 ; west < PieceTracker.EF ; west++) {
+                for (int rotated: pieces.getByNorthWest(north, west)) {
+                    assertEquals("North edge should match", north, EPieces.getNorth(pieces.getPacked(rotated)));
+                    assertEquals("West edge should match", west, EPieces.getWest(pieces.getPacked(rotated)));
+                    total++;
+                }
+            }
+        }
+        assertEquals("All rotated pieces should be indexed", 16*4, total);
+        // Top left corner of the sample has no neighbours
+        assertEquals("There should be 4 rotated corners with board edges at north and west",
+                     4, pieces.getByNorthWest(EPieces.EDGE_EDGE, EPieces.EDGE_EDGE).length);
+    }
+
     public void testDumpsJef() {
         System.out.println("jef : ");
         for (String piece: E2_PIECES_MOTIFS_ORDER_JEF) {
@@ -0,0 +1,51 @@
+package dk.ekot.eternii;
+
+import dk.ekot.misc.WorkQueue;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class EterniiWorkUnitsTest extends TestCase {
+
+    public void testPrefixesRestoreBoard() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        List<String> prefixes = EterniiWorkUnits.createPrefixes(board, new WalkerA(board), 2);
+        assertFalse("There should be prefixes", prefixes.isEmpty());
+        assertEquals("The board should be restored", 0, board.getFilledCount());
+        assertEquals("Each prefix should have 2 placements", 2, prefixes.get(0).split(";").length);
+    }
+
+    public void testQueueSolves4x4() throws IOException {
+        WorkQueue queue = new WorkQueue(Files.createTempDirectory("e2queue"));
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        int units = EterniiWorkUnits.enqueue(queue, board, new WalkerA(board), 1);
+        int processed = queue.processAll(
+                "test", EterniiWorkUnits.getProcessor(BacktrackSolverTest::getSampleBoard, 10000), 1000);
+        assertEquals("All units should be processed", units, processed);
+        boolean solved = false;
+        for (String id: queue.getDoneIDs()) {
+            final String result = queue.getResult(id);
+            final boolean unitSolved = result.contains("\"solved\":true");
+            assertEquals("A unit should be exhausted exactly when it is not solved: " + result,
+                         !unitSolved, result.contains("\"exhausted\":true"));
+            solved |= unitSolved;
+        }
+        assertTrue("At least one unit should contain a solution", solved);
+    }
+}
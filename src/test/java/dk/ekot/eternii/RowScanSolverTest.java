@@ -0,0 +1,49 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class RowScanSolverTest extends TestCase {
+
+    public void testBorderFirstOrder() {
+        assertEquals("The order for 4x4 should be the ring followed by the interior",
+                     "[0, 1, 2, 3, 7, 11, 15, 14, 13, 12, 8, 4, 5, 6, 9, 10]",
+                     Arrays.toString(RowScanSolver.getBorderFirstOrder(4, 4)));
+        int[] order = RowScanSolver.getBorderFirstOrder(16, 16);
+        assertEquals("All fields should be visited", 256, Arrays.stream(order).distinct().count());
+    }
+
+    public void testSample4x4() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        RowScanSolver solver = new RowScanSolver(board);
+        solver.run();
+        assertTrue("The sample should be solved", solver.isSolved());
+        BacktrackSolverTest.assertSolved(board);
+    }
+
+    public void testFixedPiece() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        // The sample is defined in solved state, so piece 5 at (1, 1) with rotation 0 is part of a solution
+        assertTrue("Placing the fixed piece should work", board.placePiece(1, 1, 5, 0, ""));
+        RowScanSolver solver = new RowScanSolver(board);
+        solver.run();
+        assertTrue("The sample should be solved with a fixed piece", solver.isSolved());
+        assertEquals("The fixed piece should be kept", 5, board.getPiece(1, 1));
+        BacktrackSolverTest.assertSolved(board);
+    }
+}
@@ -0,0 +1,109 @@
+package dk.ekot.eternii;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class SearchCheckpointTest extends TestCase {
+
+    public void testWriteRead() throws IOException {
+        Path file = Files.createTempFile("checkpoint", ".bin");
+        SearchCheckpoint checkpoint = new SearchCheckpoint(
+                16, 16, 1234567890123L, new int[][]{{0, 0, 255, 3}, {15, 1, 17, 0}}, new int[]{4, 7, 0});
+        checkpoint.write(file);
+        SearchCheckpoint read = SearchCheckpoint.read(file);
+        assertEquals("The attempts should be preserved", 1234567890123L, read.getAttempts());
+        assertEquals("The depth should be preserved", 2, read.getDepth());
+        assertEquals("The first placement should be preserved",
+                     "[0, 0, 255, 3]", Arrays.toString(read.getPlacement(0)));
+        assertEquals("The second placement should be preserved",
+                     "[15, 1, 17, 0]", Arrays.toString(read.getPlacement(1)));
+        assertEquals("The last next index should be preserved", 0, read.getNextIndex(2));
+        Files.delete(file);
+    }
+
+    public void testBacktrackResume() throws IOException {
+        EBoard full = BacktrackSolverTest.getSampleBoard();
+        BacktrackSolver fullSolver = new BacktrackSolver(full, null);
+        fullSolver.run();
+        SearchCheckpoint truncated = truncate(fullSolver.getCheckpoint(), 6);
+
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BacktrackSolver solver = new BacktrackSolver(board, null);
+        solver.resume(roundTrip(truncated));
+        assertEquals("The checkpoint moves should be on the board", 6, board.getFilledCount());
+        solver.search();
+        assertTrue("The resumed search should solve the sample", solver.isSolved());
+        BacktrackSolverTest.assertSolved(board);
+        assertEquals("The resumed search should find the same solution",
+                     Arrays.deepToString(fullSolver.getPlacements()), Arrays.deepToString(solver.getPlacements()));
+    }
+
+    public void testRowScanResume() throws IOException {
+        RowScanSolver fullSolver = new RowScanSolver(BacktrackSolverTest.getSampleBoard());
+        fullSolver.run();
+        SearchCheckpoint truncated = truncate(fullSolver.getCheckpoint(), 10);
+
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        RowScanSolver solver = new RowScanSolver(board);
+        solver.resume(roundTrip(truncated));
+        solver.search();
+        assertTrue("The resumed search should solve the sample", solver.isSolved());
+        BacktrackSolverTest.assertSolved(board);
+        assertEquals("The resumed search should find the same solution",
+                     Arrays.toString(fullSolver.getBest()), Arrays.toString(solver.getBest()));
+    }
+
+    public void testMismatch() {
+        EBoard board = BacktrackSolverTest.getSampleBoard();
+        BacktrackSolver solver = new BacktrackSolver(board, null);
+        SearchCheckpoint bogus = new SearchCheckpoint(4, 4, 0, new int[][]{{1, 1, 0, 0}}, new int[]{1, 0});
+        try {
+            solver.resume(bogus);
+            fail("Resuming from a checkpoint with an impossible move should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Keeps the first {@code depth} moves from a checkpoint for a solved board. The next index at the new top is
+     * rewound so that the move from the solution is tried again.
+     */
+    private SearchCheckpoint truncate(SearchCheckpoint solved, int depth) {
+        int[][] placements = new int[depth][];
+        int[] nextIndex = new int[depth+1];
+        for (int d = 0 ; d < depth ; d++) {
+            placements[d] = solved.getPlacement(d);
+            nextIndex[d] = solved.getNextIndex(d);
+        }
+        nextIndex[depth] = solved.getNextIndex(depth)-1;
+        return new SearchCheckpoint(solved.getWidth(), solved.getHeight(), solved.getAttempts(),
+                                    placements, nextIndex);
+    }
+
+    private SearchCheckpoint roundTrip(SearchCheckpoint checkpoint) throws IOException {
+        Path file = Files.createTempFile("checkpoint", ".bin");
+        checkpoint.write(file);
+        SearchCheckpoint read = SearchCheckpoint.read(file);
+        Files.delete(file);
+        return read;
+    }
+}
@@ -48,6 +48,10 @@ public class SolverTest extends TestCase {
         testSolver(BacktrackReturnOnBothSolver::new);
     }
 
+    public void testRowScanSolver() throws InterruptedException {
+        testSolver(RowScanSolver::new);
+    }
+
 
     private void testSolver(BiFunction<EBoard, Walker, Runnable> solverFactory) throws InterruptedException {
         EBoard board = getBoard();
@@ -0,0 +1,103 @@
+package dk.ekot.misc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class WorkQueueTest {
+
+    @Test
+    public void testClaimComplete() throws IOException {
+        WorkQueue queue = new WorkQueue(Files.createTempDirectory("workqueue"));
+        queue.add("a", "payloadA");
+        queue.add("b", "payloadB");
+        assertEquals("There should be 2 pending units", 2, queue.getPendingCount());
+
+        WorkQueue.Unit unit = queue.claim("w1");
+        assertEquals("The first unit should be claimed first", "a", unit.id);
+        assertEquals("The payload should be delivered", "payloadA", unit.payload);
+        assertEquals("There should be 1 claimed unit", 1, queue.getClaimedCount());
+
+        queue.complete(unit, "resultA");
+        assertEquals("The result should be stored", "resultA", queue.getResult("a"));
+        assertNull("An unprocessed unit should have no result", queue.getResult("b"));
+        assertEquals("There should be 1 done unit", 1, queue.getDoneCount());
+    }
+
+    @Test
+    public void testRequeueStale() throws IOException, InterruptedException {
+        WorkQueue queue = new WorkQueue(Files.createTempDirectory("workqueue"));
+        queue.add("a", "payloadA");
+        assertNotNull("The unit should be claimable", queue.claim("w1"));
+        assertNull("There should be no more units", queue.claim("w2"));
+        assertEquals("A fresh claim should not be requeued", 0, queue.requeueStale(60000));
+        Thread.sleep(50);
+        assertEquals("An old claim should be requeued", 1, queue.requeueStale(10));
+        assertEquals("The requeued unit should be claimable", "a", queue.claim("w2").id);
+    }
+
+    @Test
+    public void testCompleteRequeued() throws IOException, InterruptedException {
+        WorkQueue queue = new WorkQueue(Files.createTempDirectory("workqueue"));
+        queue.add("a", "payloadA");
+        WorkQueue.Unit slow = queue.claim("w1");
+        Thread.sleep(50);
+        assertEquals("The slow claim should be requeued", 1, queue.requeueStale(10));
+        assertFalse("Completing a requeued unit should not move it", queue.complete(slow, "resultSlow"));
+        assertEquals("The result of the requeued unit should be stored", "resultSlow", queue.getResult("a"));
+        WorkQueue.Unit fast = queue.claim("w2");
+        assertTrue("The new claim should complete", queue.complete(fast, "resultFast"));
+        assertEquals("The result should be from the last completion", "resultFast", queue.getResult("a"));
+        assertEquals("There should be 1 done unit", 1, queue.getDoneCount());
+    }
+
+    @Test
+    public void testProcessAllSharedQueue() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("workqueue");
+        WorkQueue producer = new WorkQueue(root);
+        for (int i = 0 ; i < 20 ; i++) {
+            producer.add(String.format("u%02d", i), Integer.toString(i));
+        }
+        // Two workers with separate queue instances on the same folder, as for separate JVMs
+        int[] processed = new int[2];
+        Thread[] workers = new Thread[2];
+        for (int w = 0 ; w < workers.length ; w++) {
+            final int worker = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    processed[worker] = new WorkQueue(root).processAll(
+                            "w" + worker, payload -> Integer.toString(Integer.parseInt(payload)*2), 1000);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread worker: workers) {
+            worker.join();
+        }
+        assertEquals("All units should be processed exactly once", 20, processed[0] + processed[1]);
+        assertEquals("All units should be done", 20, producer.getDoneCount());
+        assertEquals("The result should be computed from the payload", "38", producer.getResult("u19"));
+        assertEquals("The done IDs should be sorted", "u00", producer.getDoneIDs().get(0));
+    }
+}
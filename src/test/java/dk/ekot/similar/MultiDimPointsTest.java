@@ -0,0 +1,258 @@
+package dk.ekot.similar;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class MultiDimPointsTest extends TestCase {
+    private static final int DIMENSIONS = 7;
+    private static final int POINTS = 100;
+
+    public void testStorages() throws IOException {
+        Path bin = createBin();
+        for (MultiDimPoints.STORAGE storage: MultiDimPoints.STORAGE.values()) {
+            MultiDimPoints points = MultiDimPoints.load(bin, Integer.MAX_VALUE, DIMENSIONS, storage);
+            assertEquals("The number of points should be derived from the file size for " + storage,
+                         POINTS, points.getPoints());
+            assertValues(storage.toString(), points.getStorage());
+        }
+        Files.delete(bin);
+    }
+
+    public void testDistances() throws IOException {
+        Path bin = createBin();
+        List<VectorStorage> storages = new ArrayList<>();
+        for (MultiDimPoints.STORAGE storage: MultiDimPoints.STORAGE.values()) {
+            storages.add(MultiDimPoints.load(bin, Integer.MAX_VALUE, DIMENSIONS, storage).getStorage());
+        }
+        storages.add(new VectorStorage.Mapped(bin, DIMENSIONS, POINTS, 100));
+        for (VectorStorage storage: storages) {
+            for (int[] pair: new int[][]{{0, 0}, {3, 17}, {17, 3}, {1, POINTS-1}}) {
+                double expected = 0;
+                double[] vector = new double[DIMENSIONS+2];
+                for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+                    final double diff = storage.get(dim, pair[0]) - storage.get(dim, pair[1]);
+                    expected += diff*diff;
+                    vector[dim+2] = storage.get(dim, pair[0]);
+                }
+                final String message = storage.getClass().getSimpleName() + " " + Arrays.toString(pair);
+                assertEquals("distanceSquared " + message,
+                             expected, storage.distanceSquared(pair[0], pair[1]), 0.0);
+                assertEquals("atMostDistanceSquared " + message,
+                             expected, storage.atMostDistanceSquared(Double.MAX_VALUE, pair[0], pair[1]), 0.0);
+                assertEquals("atMostDistanceSquared vector " + message,
+                             expected, storage.atMostDistanceSquared(Double.MAX_VALUE, vector, 2, pair[1]), 0.0);
+            }
+        }
+        Files.delete(bin);
+    }
+
+    public void testMaxPoints() throws IOException {
+        Path bin = createBin();
+        MultiDimPoints points = MultiDimPoints.load(bin, 10, DIMENSIONS, MultiDimPoints.STORAGE.floats);
+        assertEquals("The number of points should be limited", 10, points.getPoints());
+        assertEquals("The last value should be read", value(9, DIMENSIONS-1), points.get(DIMENSIONS-1, 9), 0.0);
+        Files.delete(bin);
+    }
+
+    public void testMappedSegments() throws IOException {
+        Path bin = createBin();
+        // 3 points per 100 bytes -> 2 points/segment
+        VectorStorage.Mapped mapped = new VectorStorage.Mapped(bin, DIMENSIONS, POINTS, 100);
+        assertEquals("There should be multiple segments", POINTS/2, mapped.getSegmentCount());
+        assertValues("segmented", mapped);
+        Files.delete(bin);
+    }
+
+    public void testOrderByVariance() {
+        MultiDimPoints points = new MultiDimPoints(DIMENSIONS, POINTS);
+        Random random = new Random(87);
+        for (int point = 0 ; point < POINTS ; point++) {
+            for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+                points.set(dim, point, random.nextDouble() * ((dim * 3) % DIMENSIONS + 1)); // Scrambled spread
+            }
+        }
+        final double before = distanceSquared(points, 3, 17);
+        final double original = points.get(2, 5);
+
+        points.orderByVariance();
+        double[] variances = points.getVariances();
+        for (int dim = 1 ; dim < DIMENSIONS ; dim++) {
+            assertTrue("Variances should be descending at dimension " + dim, variances[dim-1] >= variances[dim]);
+        }
+        assertEquals("Distances should not change", before, distanceSquared(points, 3, 17), 0.000001);
+        for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+            if (points.getOriginalDimension(dim) == 2) {
+                assertEquals("The value should be in its new dimension", original, points.get(dim, 5), 0.0);
+            }
+        }
+    }
+
+    public void testOrderByVarianceIndexed() {
+        MultiDimPoints points = new MultiDimPoints(DIMENSIONS, POINTS);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        new LSHNearestFinder(points, 4, 2, 87);
+        try {
+            points.orderByVariance();
+            fail("Ordering the dimensions after building an index should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testOrderByVarianceMapped() throws IOException {
+        Path bin = createBin();
+        MultiDimPoints points = MultiDimPoints.load(bin, Integer.MAX_VALUE, DIMENSIONS, MultiDimPoints.STORAGE.mapped);
+        try {
+            points.orderByVariance();
+            fail("Ordering mapped storage should fail");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        Files.delete(bin);
+    }
+
+    public void testParseFloat() {
+        Random random = new Random(87);
+        String[] fixed = {"0", "-0", "0.0", "+1", "1e-45", "3.4028235e38", "1E39", "-2.5E-3", "007.50", "NaN",
+                          "-Infinity", "0.1", "123456789012345678901234567890", "0.000000000000000000000000001"};
+        for (String number: fixed) {
+            assertParse(number);
+        }
+        for (int i = 0 ; i < 10000 ; i++) {
+            final float value = Float.intBitsToFloat(random.nextInt());
+            final double plain = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 6);
+            assertParse(Float.toString(value));
+            assertParse(Double.toString(plain));
+            assertParse(String.format("%.9e", plain));
+            assertParse(String.format("%.6f", plain));
+        }
+    }
+
+    private void assertParse(String number) {
+        final byte[] bytes = (" " + number + " ").getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals("Parsing '" + number + "' should match Float.parseFloat",
+                     Float.floatToIntBits(Float.parseFloat(number)),
+                     Float.floatToIntBits(VectorIngester.parseFloat(bytes, 1, bytes.length-1)));
+    }
+
+    public void testIngest() throws IOException {
+        for (String extension: new String[]{".txt", ".txt.gz"}) {
+            Path text = createText(extension);
+            Path vec = Files.createTempFile("points", VectorFile.EXTENSION);
+            VectorIngester ingester = new VectorIngester(3);
+            ingester.setChunkBytes(64); // Many chunks and lines longer than a chunk
+            assertEquals("All points should be converted for " + extension,
+                         POINTS, ingester.convert(text, vec, Long.MAX_VALUE));
+
+            VectorFile header = VectorFile.readHeader(vec);
+            assertEquals("The header should hold the dimensions", DIMENSIONS, header.dimensions);
+            assertEquals("The header should hold the points", POINTS, header.points);
+            for (MultiDimPoints.STORAGE storage: MultiDimPoints.STORAGE.values()) {
+                MultiDimPoints points = MultiDimPoints.load(vec, Integer.MAX_VALUE, storage);
+                assertEquals("The points should be read from the header", POINTS, points.getPoints());
+                assertValues(extension + " as vector file with " + storage, points.getStorage());
+            }
+            assertValues(extension + " loaded directly",
+                         MultiDimPoints.load(text, Integer.MAX_VALUE, MultiDimPoints.STORAGE.floats).getStorage());
+            assertEquals("The number of points should be limited",
+                         10, MultiDimPoints.load(text, 10).getPoints());
+
+            // A failed conversion should leave the existing output untouched and no temporary file
+            final Path broken = createText(".txt");
+            Files.write(broken, "0.5 1.5\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            final byte[] before = Files.readAllBytes(vec);
+            try {
+                ingester.convert(broken, vec, Long.MAX_VALUE);
+                fail("Converting a file with inconsistent dimensions should fail for " + extension);
+            } catch (RuntimeException e) {
+                // Expected
+            }
+            Files.delete(broken);
+            assertTrue("The existing output should be unchanged for " + extension,
+                       Arrays.equals(before, Files.readAllBytes(vec)));
+            assertFalse("The temporary file should be removed for " + extension,
+                        Files.exists(vec.resolveSibling(vec.getFileName() + ".tmp")));
+            Files.delete(text);
+            Files.delete(vec);
+        }
+    }
+
+    private void assertValues(String designation, VectorStorage storage) {
+        for (int point = 0 ; point < POINTS ; point++) {
+            for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+                assertEquals("The value at point " + point + ", dimension " + dim + " should match for " + designation,
+                             value(point, dim), storage.get(dim, point), 0.0);
+            }
+        }
+    }
+
+    private Path createBin() throws IOException {
+        Path bin = Files.createTempFile("points", ".bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(bin))) {
+            for (int point = 0 ; point < POINTS ; point++) {
+                for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+                    out.writeFloat(value(point, dim));
+                }
+            }
+        }
+        return bin;
+    }
+
+    private Path createText(String extension) throws IOException {
+        Path text = Files.createTempFile("points", extension);
+        try (OutputStream os = Files.newOutputStream(text) ;
+             PrintStream out = new PrintStream(
+                     extension.endsWith(".gz") ? new GZIPOutputStream(os) : os, false, "utf-8")) {
+            out.print("# Header comment\n\n");
+            for (int point = 0 ; point < POINTS ; point++) {
+                for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+                    final float value = value(point, dim);
+                    out.print(dim == 0 ? "" : point % 3 == 0 ? ", " : point % 3 == 1 ? "\t" : " ");
+                    out.print(point % 2 == 0 ? Float.toString(value) : String.format("%.8e", value));
+                }
+                out.print(point % 5 == 0 ? "\r\n" : "\n");
+            }
+        }
+        return text;
+    }
+
+    private static double distanceSquared(MultiDimPoints points, int pointA, int pointB) {
+        double distance = 0;
+        for (int dim = 0 ; dim < points.getDimensions() ; dim++) {
+            final double diff = points.get(dim, pointA) - points.get(dim, pointB);
+            distance += diff*diff;
+        }
+        return distance;
+    }
+
+    private static float value(int point, int dim) {
+        return point + dim/10f;
+    }
+}
@@ -0,0 +1,615 @@
+package dk.ekot.similar;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class NearestFinderTest extends TestCase {
+    private static final int DIMENSIONS = 150; // More than one early termination step
+    private static final int POINTS = 600;
+
+    public void testBlockedMatchesDumb() {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        int[] all = new int[POINTS];
+        for (int i = 0 ; i < POINTS ; i++) {
+            all[i] = i;
+        }
+        for (int threads: new int[]{1, 3}) {
+            try (BlockedNearestFinder blocked = new BlockedNearestFinder(points, threads, 17, 5)) {
+                Nearest[] batch = blocked.findNearest(all);
+                for (int i = 0 ; i < POINTS ; i++) {
+                    assertSame("batch with " + threads + " threads", dumb.findNearest(i), batch[i]);
+                }
+                assertSame("single query", dumb.findNearest(42), blocked.findNearest(42));
+                assertSame("range query", dumb.findNearest(42, 100, 200), blocked.findNearest(42, 100, 200));
+            }
+        }
+    }
+
+    public void testNextCheck() {
+        int[] expected = {16, 48, 112, 240, 368, 400};
+        int checked = 0;
+        for (int check: expected) {
+            checked = NearestFinder.nextCheck(checked, 400);
+            assertEquals("Check after " + check + " dimensions", check, checked);
+        }
+    }
+
+    public void testQueryServer() throws Exception {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        try (BlockedNearestFinder blocked = new BlockedNearestFinder(points, 2, 17, 5) ;
+             QueryServer server = new QueryServer(points, blocked, 16, 1000)) {
+            List<CompletableFuture<Nearest[]>> results = new ArrayList<>();
+            for (int point = 0 ; point < 100 ; point++) {
+                results.add(server.submit(point, 1 + point % 4));
+            }
+            for (int point = 0 ; point < 100 ; point++) {
+                Nearest[] expected = dumb.findKNearest(point, 1 + point % 4);
+                Nearest[] actual = results.get(point).get();
+                assertEquals("The number of neighbours for point " + point, expected.length, actual.length);
+                for (int i = 0 ; i < expected.length ; i++) {
+                    assertSame("server point " + point, expected[i], actual[i]);
+                }
+            }
+            assertTrue("Requests should be coalesced, but there were " + server.getBatches() + " batches",
+                       server.getBatches() < 100);
+            assertEquals("All requests should be timed", 100, server.getLatencies().getCount());
+            try {
+                server.query(POINTS, 1);
+                fail("Querying a non-existing point should fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals("k should be clamped to the number of other points",
+                         POINTS-1, server.query(7, Integer.MAX_VALUE).length);
+
+            final int port = server.listen(0);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port) ;
+                 BufferedReader in = new BufferedReader(
+                         new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)) ;
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("42 3");
+                String[] tokens = in.readLine().split(" ");
+                assertEquals("The socket answer should be OK", "OK", tokens[0]);
+                Nearest[] expected = dumb.findKNearest(42, 3);
+                assertEquals("The socket answer should hold k neighbours", 4, tokens.length);
+                for (int i = 0 ; i < expected.length ; i++) {
+                    assertEquals("Socket neighbour " + i, expected[i].point,
+                                 Integer.parseInt(tokens[i+1].split(":")[0]));
+                }
+                out.println("foo");
+                assertTrue("Invalid requests should be answered with an error", in.readLine().startsWith("ERROR"));
+                out.println("STATS");
+                assertTrue("Stats should contain percentiles", in.readLine().contains("p99="));
+                out.println("QUIT");
+            }
+        }
+    }
+
+    public void testQueryServerError() {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder failing = new DumbNearestFinder(points) {
+            @Override
+            public Nearest[] findKNearest(int basePoint, int k) {
+                if (basePoint == 13) {
+                    throw new AssertionError("Failing on purpose");
+                }
+                return super.findKNearest(basePoint, k);
+            }
+        };
+        try (QueryServer server = new QueryServer(points, failing, 16, 0)) {
+            try {
+                server.query(13, 1);
+                fail("The error from the finder should be passed on");
+            } catch (IllegalStateException e) {
+                assertTrue("The cause should be the error from the finder", e.getCause() instanceof AssertionError);
+            }
+            assertEquals("The server should survive errors", 1, server.query(14, 1).length);
+        }
+    }
+
+    public void testTombstones() {
+        SegmentedPoints segmented = new SegmentedPoints(2, 100); // 128 points/segment, 2 words/segment
+        for (int id = 0 ; id < 300 ; id++) {
+            segmented.add(new double[]{id, id});
+        }
+        Set<Integer> deleted = new HashSet<>(Arrays.asList(0, 63, 64, 127, 128, 200, 299));
+        for (int id: deleted) {
+            assertTrue("The first delete of " + id + " should succeed", segmented.delete(id));
+            assertFalse("The second delete of " + id + " should fail", segmented.delete(id));
+        }
+        for (int id = 0 ; id < 300 ; id++) {
+            assertEquals("Deletion state for " + id, deleted.contains(id), segmented.isDeleted(id));
+        }
+        assertEquals("The deleted count should match", deleted.size(), segmented.getDeletedCount());
+    }
+
+    public void testIncremental() {
+        MultiDimPoints random = getRandomPoints();
+        SegmentedPoints segmented = new SegmentedPoints(DIMENSIONS, 64);
+        for (int point = 0 ; point < POINTS/2 ; point++) {
+            segmented.add(random.getVector(point));
+        }
+        try (IncrementalNearestFinder finder = new IncrementalNearestFinder(
+                segmented, DumbNearestFinder::new, 50, 3)) {
+            for (int point = POINTS/2 ; point < POINTS ; point++) {
+                assertEquals("IDs should be sequential", point, finder.add(random.getVector(point)));
+            }
+            int[] all = new int[POINTS];
+            for (int i = 0 ; i < POINTS ; i++) {
+                all[i] = i;
+            }
+            DumbNearestFinder dumb = new DumbNearestFinder(segmented.toMultiDimPoints(all));
+            for (int point = 0 ; point < POINTS ; point += 37) { // Exact while indexing is in progress
+                assertSame("concurrent indexing", dumb.findNearest(point), finder.findNearest(point));
+            }
+
+            finder.flush();
+            assertEquals("All points should be indexed", POINTS, finder.getIndexedPoints());
+            assertTrue("Segments should have been merged, but there were " + finder.getSegmentCount(),
+                       finder.getSegmentCount() < POINTS/50);
+            for (int point = 0 ; point < POINTS ; point++) {
+                assertSame("indexed", dumb.findNearest(point), finder.findNearest(point));
+            }
+
+            final int K = 5;
+            for (int id = 0 ; id < POINTS ; id += 3) {
+                finder.delete(id);
+            }
+            finder.add(random.getVector(1)); // Force a merge that drops the deleted points
+            finder.flush();
+            for (int point = 1 ; point < POINTS ; point += 3) {
+                List<Nearest> expected = new ArrayList<>();
+                for (Nearest nearest: dumb.findKNearest(point, POINTS)) {
+                    if (nearest.point % 3 != 0 && expected.size() < K) {
+                        expected.add(nearest);
+                    }
+                }
+                Nearest[] actual = finder.findKNearest(point, K);
+                assertEquals("The number of neighbours for " + point, K, actual.length);
+                for (int i = 0 ; i < K ; i++) {
+                    if (point == 1 && i == 0) { // The re-added copy of point 1
+                        assertEquals("The copy should be nearest", POINTS, actual[i].point);
+                        break;
+                    }
+                    assertSame("with deletions", expected.get(i), actual[i]);
+                }
+            }
+
+            for (int point = 2 ; point < POINTS ; point += 51) {
+                Nearest expected = null;
+                for (Nearest nearest: dumb.findKNearest(point, POINTS)) {
+                    if (nearest.point % 3 != 0 && nearest.point >= 100 && nearest.point < 300) {
+                        expected = nearest;
+                        break;
+                    }
+                }
+                assertSame("range for " + point, expected, finder.findNearest(point, 100, 300));
+            }
+        }
+    }
+
+    public void testIncrementalFactoryFailure() {
+        MultiDimPoints random = getRandomPoints();
+        SegmentedPoints segmented = new SegmentedPoints(DIMENSIONS, 64);
+        try (IncrementalNearestFinder finder = new IncrementalNearestFinder(segmented, points -> {
+            if (points.getPoints() < 50) {
+                throw new IllegalArgumentException("Too few points: " + points.getPoints());
+            }
+            return new DumbNearestFinder(points);
+        }, 50, 3)) {
+            for (int point = 0 ; point < 120 ; point++) {
+                finder.add(random.getVector(point));
+            }
+            try {
+                finder.flush();
+                fail("flush should report the failed indexing of the last 20 points");
+            } catch (IllegalStateException e) {
+                assertEquals("The cause should be from the factory",
+                             IllegalArgumentException.class, e.getCause().getClass());
+            }
+            finder.flush(); // The failure is only reported once
+            assertEquals("All points should be covered by segments", 120, finder.getIndexedPoints());
+
+            int[] all = new int[120];
+            for (int i = 0 ; i < all.length ; i++) {
+                all[i] = i;
+            }
+            DumbNearestFinder dumb = new DumbNearestFinder(segmented.toMultiDimPoints(all));
+            for (int point = 0 ; point < 120 ; point++) {
+                assertSame("Points in the failed segment should be searchable",
+                           dumb.findNearest(point), finder.findNearest(point));
+            }
+        }
+    }
+
+    public void testVectorQueries() {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        final int K = 5;
+        List<NearestFinder> finders = Arrays.asList(
+                new PivotNearestFinder(points, 4, 87), new StrongestSignalsFinder(points, 30, 2),
+                new QuantizedNearestFinder(points),
+                new QuantizedNearestFinder(points, new ProductQuantizer(points, 5, POINTS, 10, 2)),
+                new HNSWNearestFinder(points, 8, 50, 1));
+        for (NearestFinder finder: finders) {
+            final String name = finder.getClass().getSimpleName();
+            for (int point = 0 ; point < POINTS ; point += 41) {
+                Nearest[] actual = finder.findKNearest(points.getVector(point), K);
+                assertEquals(name + " should return k neighbours for " + point, K, actual.length);
+                assertEquals(name + " should find the point itself for " + point, point, actual[0].point);
+                assertEquals(name + " distances should be exact for " + point,
+                             dumb.exactDistanceSquared(point, actual[1].point), actual[1].distance, 0.000001);
+            }
+        }
+        // Pivot is exact
+        PivotNearestFinder pivot = (PivotNearestFinder) finders.get(0);
+        for (int point = 0 ; point < POINTS ; point += 13) {
+            Nearest[] expected = dumb.findKNearest(point, K-1);
+            Nearest[] actual = pivot.findKNearest(points.getVector(point), K);
+            for (int i = 0 ; i < K-1 ; i++) {
+                assertEquals("Pivot neighbour " + i + " for " + point, expected[i].point, actual[i+1].point);
+            }
+        }
+    }
+
+    public void testKNNGraph() throws IOException {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        final int K = 5;
+        KNNGraph graph = KNNGraph.build(points, K, 3, 7, 50); // Partial tiles for both rows and columns
+        assertEquals("The degree should be k", K, graph.getDegree());
+        for (int point = 0 ; point < POINTS ; point++) {
+            Nearest[] expected = dumb.findKNearest(point, K);
+            Nearest[] actual = graph.getNeighbours(point);
+            for (int i = 0 ; i < K ; i++) {
+                assertEquals("Neighbour " + i + " for point " + point, expected[i].point, actual[i].point);
+                assertEquals("Distance " + i + " for point " + point,
+                             expected[i].distance, actual[i].distance, expected[i].distance * 0.00001);
+            }
+        }
+
+        Path file = Files.createTempFile("knn", ".graph");
+        graph.save(file);
+        KNNGraph loaded = KNNGraph.load(file);
+        Files.delete(file);
+        assertEquals("The loaded graph should have all points", POINTS, loaded.getPoints());
+        for (int point = 0 ; point < POINTS ; point++) {
+            for (int i = 0 ; i < K ; i++) {
+                assertEquals("Loaded neighbour", graph.getNeighbour(point, i), loaded.getNeighbour(point, i));
+                assertEquals("Loaded distance", graph.getDistance(point, i), loaded.getDistance(point, i), 0.0f);
+            }
+        }
+    }
+
+    public void testKNNGraphNearDuplicates() {
+        // Large norms and tiny differences make |a|^2+|b|^2-2a.b useless for ordering
+        MultiDimPoints points = new MultiDimPoints(16, 20);
+        for (int point = 0 ; point < 20 ; point++) {
+            for (int dim = 0 ; dim < 16 ; dim++) {
+                points.set(dim, point, 1000000 + (dim == point % 16 ? 0.01 * point : 0));
+            }
+        }
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        KNNGraph graph = KNNGraph.build(points, 4, 1);
+        for (int point = 0 ; point < 20 ; point++) {
+            Nearest[] actual = graph.getNeighbours(point);
+            for (int i = 0 ; i < actual.length ; i++) {
+                final double exact = dumb.exactDistanceSquared(point, actual[i].point);
+                assertEquals("Distance " + i + " for point " + point, exact, actual[i].distance, exact * 0.00001);
+                if (i > 0) {
+                    assertTrue("Neighbours for point " + point + " should be sorted",
+                               actual[i-1].distance <= actual[i].distance);
+                }
+            }
+        }
+    }
+
+    public void testBenchmark() throws IOException {
+        MultiDimPoints points = getRandomPoints();
+        Path truth = Files.createTempFile("benchmark", ".truth");
+        Files.delete(truth);
+        FinderBenchmark benchmark = new FinderBenchmark(points, 50, 5, 87, truth);
+        benchmark.setWarmup(5);
+        assertTrue("The ground truth should be cached", Files.exists(truth));
+
+        List<FinderBenchmark.Candidate<?>> candidates = Arrays.asList(
+                new FinderBenchmark.Candidate<>("Dumb").build("", DumbNearestFinder::new),
+                new FinderBenchmark.Candidate<IVFNearestFinder>("IVF")
+                        .build("lists=10", p -> new IVFNearestFinder(p, 10, 600, 5, 2))
+                        .sweep("nprobe", new int[]{1, 10}, IVFNearestFinder::setNprobe));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<FinderBenchmark.Result> results = benchmark.measure(candidates, new PrintStream(bytes, true, "utf-8"));
+        assertEquals("There should be a result for each setting", 3, results.size());
+        assertEquals("An exhaustive search should have full recall", 1.0, results.get(0).recall, 0.0);
+        assertEquals("Probing all lists should have full recall", 1.0, results.get(2).recall, 0.0);
+        assertTrue("Probing 1 list should not have better recall than probing all",
+                   results.get(1).recall <= results.get(2).recall);
+        String[] lines = bytes.toString("utf-8").split("\n");
+        assertEquals("The CSV should have a header and a line per result", 4, lines.length);
+        assertEquals("The CSV should start with the header", FinderBenchmark.CSV_HEADER, lines[0]);
+        assertEquals("All columns should be present",
+                     FinderBenchmark.CSV_HEADER.split(",").length, lines[3].split(",").length);
+
+        final long cacheModified = Files.getLastModifiedTime(truth).toMillis();
+        FinderBenchmark cached = new FinderBenchmark(points, 50, 5, 87, truth);
+        assertEquals("The cached ground truth should give the same recall", 1.0,
+                     cached.measure(candidates.get(0)).get(0).recall, 0.0);
+        assertEquals("The cache should not be re-written", cacheModified, Files.getLastModifiedTime(truth).toMillis());
+        Files.delete(truth);
+    }
+
+    public void testKNearestExact() {
+        MultiDimPoints points = getRandomPoints();
+        final int K = 10;
+        Nearest[][] expected = new Nearest[POINTS][];
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        for (int i = 0 ; i < POINTS ; i++) {
+            expected[i] = dumb.findKNearest(i, K);
+            assertEquals("There should be k neighbours", K, expected[i].length);
+            assertSame("k=1", dumb.findNearest(i), expected[i][0]);
+            for (int n = 1 ; n < K ; n++) {
+                assertTrue("The neighbours should be sorted", expected[i][n-1].distance <= expected[i][n].distance);
+            }
+        }
+
+        EarlyNearestFinder early = new EarlyNearestFinder(points);
+        try (BlockedNearestFinder blocked = new BlockedNearestFinder(points, 3, 17, 5)) {
+            int[] all = new int[POINTS];
+            for (int i = 0 ; i < POINTS ; i++) {
+                all[i] = i;
+            }
+            Nearest[][] batch = blocked.findKNearest(all, K);
+            for (int i = 0 ; i < POINTS ; i++) {
+                for (int n = 0 ; n < K ; n++) {
+                    assertSame("early #" + n, expected[i][n], early.findKNearest(i, K)[n]);
+                    assertSame("blocked #" + n, expected[i][n], batch[i][n]);
+                }
+            }
+        }
+    }
+
+    public void testKNearestApproximate() {
+        MultiDimPoints points = getRandomPoints();
+        for (NearestFinder finder: new NearestFinder[]{
+                new StrongestSignalsFinder(points), new DiceNearestFinder(points), new LengthNearestFinder(points),
+                new RandomFinder(points)}) {
+            Nearest[] nearest = finder.findKNearest(7, 5);
+            assertTrue(finder.getClass().getSimpleName() + " should return between 1 and k neighbours",
+                       nearest.length >= 1 && nearest.length <= 5);
+            for (int n = 0 ; n < nearest.length ; n++) {
+                assertTrue("The base point should not be returned", nearest[n].point != 7);
+                assertEquals("The distance should be exact",
+                             finder.exactDistanceSquared(7, nearest[n].point), nearest[n].distance, 0.000001);
+            }
+        }
+    }
+
+    public void testHNSWRecall() throws IOException {
+        MultiDimPoints points = new MultiDimPoints(20, 3000);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        HNSWNearestFinder hnsw = new HNSWNearestFinder(points, 12, 100, 4);
+        final int K = 10;
+        assertTrue("The recall@" + K + " should be high", recall(points, hnsw, K) > 0.95);
+        assertEquals("A vector query should find the point itself",
+                     7, hnsw.findKNearest(points.getVector(7), K)[0].point);
+
+        // Range search: Only points in the range should be returned and they should mostly be the right ones
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        long found = 0;
+        for (int point = 0 ; point < 100 ; point++) {
+            Set<Integer> expected = new HashSet<>();
+            for (Nearest nearest: dumb.findKNearest(point, K, 1000, 2500)) {
+                expected.add(nearest.point);
+            }
+            for (Nearest nearest: hnsw.findKNearest(point, K, 1000, 2500)) {
+                assertTrue("Range result " + nearest.point + " should be in the range",
+                           nearest.point >= 1000 && nearest.point < 2500);
+                found += expected.contains(nearest.point) ? 1 : 0;
+            }
+        }
+        assertTrue("The range recall@" + K + " should be high but was " + found / (100.0*K), found > 0.9*100*K);
+        assertEquals("findNearest for a range should match the range search",
+                     hnsw.findKNearest(7, 1, 1000, 2500)[0].point, hnsw.findNearest(7, 1000, 2500).point);
+
+        Path graph = Files.createTempFile("hnsw_", ".bin");
+        hnsw.save(graph);
+        HNSWNearestFinder loaded = HNSWNearestFinder.load(graph, points);
+        Files.delete(graph);
+        for (int point = 0 ; point < 100 ; point++) {
+            Nearest[] expected = hnsw.findKNearest(point, K);
+            Nearest[] actual = loaded.findKNearest(point, K);
+            assertEquals("The loaded graph should give the same number of results", expected.length, actual.length);
+            for (int n = 0 ; n < expected.length ; n++) {
+                assertSame("loaded #" + n, expected[n], actual[n]);
+            }
+        }
+    }
+
+    public void testIVF() {
+        MultiDimPoints points = new MultiDimPoints(20, 3000);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        IVFNearestFinder ivf = new IVFNearestFinder(points, 30, 1000, 10, 3);
+        int total = 0;
+        for (int list = 0 ; list < ivf.getLists() ; list++) {
+            total += ivf.getListSize(list);
+        }
+        assertEquals("All points should be assigned to a list", 3000, total);
+
+        final int K = 10;
+        ivf.setNprobe(ivf.getLists());
+        assertEquals("Probing all lists should be exact", 1.0, recall(points, ivf, K), 0.0);
+        Nearest[] byVector = ivf.findKNearest(points.getVector(5), K+1);
+        assertEquals("A vector query should find the point itself", 5, byVector[0].point);
+        assertSame("A vector query should match the point query", ivf.findKNearest(5, K)[0], new Nearest(
+                5, byVector[1].point, byVector[1].distance));
+        ivf.setNprobe(10);
+        assertTrue("Probing a third of the lists should give reasonable recall", recall(points, ivf, K) > 0.7);
+    }
+
+    public void testQuantized() {
+        MultiDimPoints points = new MultiDimPoints(32, 2000);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        final int K = 10;
+
+        ScalarQuantizer scalar = new ScalarQuantizer(points);
+        assertEquals("Scalar codes should be 1 byte/dimension", 32 * 2000, scalar.getCodeBytes());
+        assertEquals("Decoded values should be within a quantisation step",
+                     points.get(5, 17), scalar.decode(5, 17), 1.0 / 255);
+        QuantizedNearestFinder finder = new QuantizedNearestFinder(points, scalar);
+        assertTrue("Scalar quantisation with re-ranking should give high recall", recall(points, finder, K) > 0.95);
+
+        ProductQuantizer product = new ProductQuantizer(points, 8, 2000, 10, 2);
+        assertEquals("Product codes should be 1 byte/subspace", 8 * 2000, product.getCodeBytes());
+        finder = new QuantizedNearestFinder(points, product);
+        finder.setRerank(20);
+        assertTrue("Product quantisation with re-ranking should give reasonable recall",
+                   recall(points, finder, K) > 0.8);
+    }
+
+    public void testLSH() {
+        MultiDimPoints points = new MultiDimPoints(20, 3000);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        LSHNearestFinder lsh = new LSHNearestFinder(points, 16, 8, 87);
+        final int K = 10;
+        lsh.setProbeRadius(0);
+        final double plainRecall = recall(points, lsh, K);
+        lsh.setProbeRadius(1);
+        final double probeRecall = recall(points, lsh, K);
+        assertTrue("Multi-probe should improve recall@" + K + " but radius 0 gave " + plainRecall +
+                   " and radius 1 gave " + probeRecall, probeRecall > plainRecall);
+        assertTrue("Multi-probe recall@" + K + " should be reasonable but was " + probeRecall, probeRecall > 0.8);
+        assertEquals("A vector query should find the point itself",
+                     7, lsh.findKNearest(points.getVector(7), K)[0].point);
+    }
+
+    public void testStrongestSignals() {
+        MultiDimPoints points = getRandomPoints();
+        StrongestSignalsFinder finder = new StrongestSignalsFinder(points, 30, 2);
+        final double recall = recall(points, finder, 10);
+        assertTrue("Recall@10 should be reasonable but was " + recall, recall > 0.5);
+
+        // A copy of a point shares all its signals and should always be found
+        for (int dim = 0 ; dim < DIMENSIONS ; dim++) {
+            points.set(dim, POINTS-1, points.get(dim, 123));
+        }
+        finder = new StrongestSignalsFinder(points, 30, 2);
+        assertEquals("The copy should be nearest", POINTS-1, finder.findNearest(123).point);
+        assertEquals("The copy should have distance 0", 0.0, finder.findNearest(123).distance, 0.0);
+
+        // Few signals shares few candidates, so the result must be filled from the remaining points
+        finder = new StrongestSignalsFinder(points, 1, 0);
+        assertEquals("All neighbours should be returned", POINTS-1, finder.findKNearest(7, POINTS).length);
+    }
+
+    public void testPivotExact() {
+        MultiDimPoints points = getRandomPoints();
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        PivotNearestFinder pivot = new PivotNearestFinder(points, 6, 87);
+        for (int i = 0 ; i < POINTS ; i += 7) {
+            Nearest[] expected = dumb.findKNearest(i, 5);
+            Nearest[] actual = pivot.findKNearest(i, 5);
+            for (int n = 0 ; n < expected.length ; n++) {
+                assertSame("pivot #" + n, expected[n], actual[n]);
+            }
+            assertSame("pivot range", dumb.findNearest(i, 100, 300), pivot.findNearest(i, 100, 300));
+        }
+    }
+
+    public void testLengthRange() {
+        MultiDimPoints points = getRandomPoints();
+        LengthNearestFinder length = new LengthNearestFinder(points);
+        Nearest nearest = length.findNearest(42, 100, 300);
+        assertTrue("The range should be respected", nearest.point >= 100 && nearest.point < 300);
+    }
+
+    /**
+     * @return the fraction of the true k nearest neighbours that are found for the first 200 points.
+     */
+    static double recall(MultiDimPoints points, NearestFinderBase finder, int k) {
+        DumbNearestFinder dumb = new DumbNearestFinder(points);
+        long found = 0;
+        long total = 0;
+        for (int point = 0 ; point < 200 ; point++) {
+            Set<Integer> expected = new HashSet<>();
+            for (Nearest nearest: dumb.findKNearest(point, k)) {
+                expected.add(nearest.point);
+            }
+            for (Nearest nearest: finder.findKNearest(point, k)) {
+                if (expected.contains(nearest.point)) {
+                    found++;
+                }
+            }
+            total += k;
+        }
+        return 1.0 * found / total;
+    }
+
+    public void testHeap() {
+        Random random = new Random(87);
+        NearestHeap heap = new NearestHeap(1);
+        for (int run = 0 ; run < 100 ; run++) {
+            final int capacity = random.nextInt(20) + 1;
+            heap.reset(capacity);
+            final int offers = random.nextInt(50);
+            List<double[]> offered = new ArrayList<>();
+            for (int point = 0 ; point < offers ; point++) {
+                final double distance = random.nextInt(10); // Plenty of ties
+                offered.add(new double[]{point, distance});
+                heap.offer(point, distance);
+            }
+            offered.sort((o1, o2) -> o1[1] != o2[1] ? Double.compare(o1[1], o2[1]) : Double.compare(o1[0], o2[0]));
+            Nearest[] nearest = heap.toNearest(-1);
+            assertEquals("The heap should be bounded", Math.min(capacity, offered.size()), nearest.length);
+            for (int i = 0 ; i < nearest.length ; i++) {
+                assertEquals("Run " + run + ", point #" + i, (int) offered.get(i)[0], nearest[i].point);
+            }
+            assertTrue("The heap should be empty after extraction", heap.isEmpty());
+        }
+    }
+
+    static MultiDimPoints getRandomPoints() {
+        MultiDimPoints points = new MultiDimPoints(DIMENSIONS, POINTS);
+        points.fill(NearestNeighbour.DISTRIBUTION.random, false);
+        return points;
+    }
+
+    static void assertSame(String message, Nearest expected, Nearest actual) {
+        assertEquals(message + ": base point", expected.basePoint, actual.basePoint);
+        assertEquals(message + ": nearest point for " + expected.basePoint, expected.point, actual.point);
+        assertEquals(message + ": distance for " + expected.basePoint, expected.distance, actual.distance, 0.000001);
+    }
+}